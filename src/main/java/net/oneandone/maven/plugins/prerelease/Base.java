@@ -19,8 +19,12 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import org.apache.maven.artifact.repository.ArtifactRepository;
 import org.apache.maven.execution.MavenSession;
@@ -31,15 +35,24 @@ import org.apache.maven.plugins.annotations.Parameter;
 import org.apache.maven.project.MavenProjectHelper;
 import org.apache.maven.project.ProjectBuilder;
 
+import net.oneandone.maven.plugins.prerelease.core.Archive;
+import net.oneandone.maven.plugins.prerelease.core.Backend;
+import net.oneandone.maven.plugins.prerelease.core.Blobs;
+import net.oneandone.maven.plugins.prerelease.core.Deleter;
+import net.oneandone.maven.plugins.prerelease.core.LockMode;
+import net.oneandone.maven.plugins.prerelease.core.Retention;
 import net.oneandone.maven.plugins.prerelease.util.Maven;
 import net.oneandone.maven.plugins.prerelease.util.Subversion;
+import net.oneandone.sushi.fs.Node;
 import net.oneandone.sushi.fs.World;
 import net.oneandone.sushi.fs.file.FileNode;
 import net.oneandone.sushi.util.Separator;
 
 public abstract class Base extends AbstractMojo {
     /**
-     * Where to store prereleases.
+     * Where to store prereleases. Prefix a storage with "zip:" to store every prerelease as a single zip file, e.g. for a cold
+     * storage on a network file system; the backend is recorded when the storage is first used, so the prefix is needed only once.
+     * A storage that already holds prereleases cannot switch its backend. The first storage always stores plain directories.
      */
     @Parameter(property = "prerelease.storages", defaultValue = "${settings.localRepository}/../prereleases", required = true)
     private List<String> storages;
@@ -50,12 +63,60 @@ public abstract class Base extends AbstractMojo {
     @Parameter(property = "prerelease.lockTimeout", defaultValue = "3600", required = true)
     protected int lockTimeout;
 
+    /**
+     * How to lock prerelease archives: FILE polls for an exclusive lock file, CHANNEL waits for an operating system file lock and
+     * wakes up as soon as the lock is released. All processes using the same storages have to use the same mode. Only CHANNEL
+     * lets goals share an archive, FILE always locks exclusively.
+     */
+    @Parameter(property = "prerelease.lockMode", defaultValue = "FILE", required = true)
+    protected LockMode lockMode;
+
+    /**
+     * Seconds after which the lock file of lock mode FILE is considered stale if its holder stopped refreshing it (every 10 seconds).
+     * Waiting processes remove stale lock files automatically. 0 to never remove lock files. Opt-in: enable it, e.g. with 600,
+     * only when all processes sharing the storages run a plugin version that refreshes its lock files.
+     */
+    @Parameter(property = "prerelease.lease", defaultValue = "0", required = true)
+    protected int lease;
+
     /**
      * Number of prereleases to keep in archive. 0 to keep all, which should only be used together with swap and keep.
+     * Prereleases are removed least recently used first; the prerelease with the highest revision is never removed. Before 1.6.6,
+     * the prereleases with the highest revisions were kept.
      */
     @Parameter(property = "prerelease.keep", defaultValue = "1", required = true)
     protected int keep;
 
+    /**
+     * Days after which prereleases that were not created, built or promoted are removed. 0 to keep them regardless of age.
+     */
+    @Parameter(property = "prerelease.maxAge", defaultValue = "0", required = true)
+    protected int maxAge;
+
+    /**
+     * Megabytes for all prereleases of an archive. Least recently used prereleases are removed until it fits. 0 for no limit.
+     */
+    @Parameter(property = "prerelease.quota", defaultValue = "0", required = true)
+    protected int quota;
+
+    /**
+     * Megabytes for the prereleases of an archive in one storage, in addition to prerelease.quota. 0 for no limit.
+     */
+    @Parameter(property = "prerelease.storageQuota", defaultValue = "0", required = true)
+    protected int storageQuota;
+
+    /**
+     * Maximum number of files per second to delete when reaping trash directories, to limit the I/O load. 0 for unlimited.
+     */
+    @Parameter(property = "prerelease.reap.rate", defaultValue = "5000", required = true)
+    protected int reapRate;
+
+    /**
+     * Number of threads to delete trash directories. 1 to delete sequentially.
+     */
+    @Parameter(property = "prerelease.reap.threads", defaultValue = "4", required = true)
+    protected int reapThreads;
+
     /**
      * Extra arguments to pass to the sub-maven build. A space-separated list with entries of the form -Dkey=value.
      * Similar to "arguments" parameter of the Maven Release Plugin, but restricted to -D properties.
@@ -99,6 +160,14 @@ public abstract class Base extends AbstractMojo {
         this.world = new World();
     }
 
+    protected Retention retention() {
+        return new Retention(keep, maxAge * 24L * 60 * 60 * 1000, quota * 1024L * 1024, storageQuota * 1024L * 1024);
+    }
+
+    protected Deleter deleter() {
+        return new Deleter(reapThreads, reapRate);
+    }
+
     @Override
     public void execute() throws MojoExecutionException {
         if (svnPassword == null && svnUser == null) {
@@ -155,17 +224,81 @@ public abstract class Base extends AbstractMojo {
 
     protected List<FileNode> storages() throws IOException {
         List<FileNode> result;
+        Backend backend;
+        FileNode storage;
 
         if (storages.size() == 0) {
             throw new IOException("expected at least 1 storage");
         }
         result = new ArrayList<>(storages.size());
         for (String s : storages) {
-            result.add(world.file(new File(s).getCanonicalFile()));
+            backend = Backend.prefixOpt(s);
+            if (backend != null) {
+                s = s.substring(backend.getName().length() + 1);
+            }
+            storage = world.file(new File(s).getCanonicalFile());
+            if (backend != null) {
+                Backend.init(storage, backend);
+            }
+            result.add(storage);
+        }
+        if (!Backend.forStorage(result.get(0)).isDirectory()) {
+            throw new IOException("first storage has to be a directory storage: " + result.get(0));
+        }
+        return result;
+    }
+
+    /** @return groupId/artifactId paths of all archives in the specified storages */
+    protected Set<String> archives(List<FileNode> storages) throws IOException {
+        Set<String> result;
+        FileNode storage;
+
+        result = new HashSet<>();
+        for (int level = 0; level < storages.size(); level++) {
+            storage = storages.get(level);
+            getLog().info("storage " + (level + 1) + ": " + storage.getAbsolute());
+            for (Node candidate : storage.find("*/*")) {
+                if (Archive.isArchiveDirectory(candidate)) {
+                    result.add(candidate.getRelative(storage));
+                }
+            }
+        }
+        return result;
+    }
+
+    protected static List<FileNode> directories(List<FileNode> storages, String relative) {
+        List<FileNode> result;
+
+        result = new ArrayList<>();
+        for (FileNode storage : storages) {
+            result.add(storage.join(relative));
+        }
+        return result;
+    }
+
+    /** @return number of unreferenced blobs deleted from the blob stores of all storages */
+    protected static int collectBlobs(List<FileNode> storages, Deleter deleter) throws IOException {
+        int result;
+
+        result = 0;
+        for (FileNode storage : storages) {
+            result += Blobs.forStorage(storage).collect(deleter);
         }
         return result;
     }
 
+    /** @return result of the future, with the exception of the task unwrapped */
+    protected static <T> T get(Future<T> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+
     protected String version() {
         String result;
 
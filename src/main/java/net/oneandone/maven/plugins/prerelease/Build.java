@@ -21,6 +21,7 @@ import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugins.annotations.Mojo;
 import org.apache.maven.plugins.annotations.Parameter;
 
+import net.oneandone.maven.plugins.prerelease.core.Access;
 import net.oneandone.maven.plugins.prerelease.core.Archive;
 import net.oneandone.maven.plugins.prerelease.core.Prerelease;
 import net.oneandone.maven.plugins.prerelease.core.WorkingCopy;
@@ -54,6 +55,7 @@ public class Build extends ProjectBase {
         } else {
             setTarget(archive.target(revisionForDescriptor(archive), svnCredentials));
         }
+        stageIn();
         prerelease = target.loadOpt();
         if (prerelease == null) {
             throw new MojoExecutionException("no prerelease for revision " + target.getRevision());
@@ -75,4 +77,9 @@ public class Build extends ProjectBase {
         }
     }
 
+    /** The nested build writes into the checkout of the prerelease, so it needs the revision exclusively. */
+    @Override
+    protected Access access() {
+        return Access.REVISION;
+    }
 }
@@ -18,6 +18,7 @@ package net.oneandone.maven.plugins.prerelease;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugins.annotations.Mojo;
 
+import net.oneandone.maven.plugins.prerelease.core.Access;
 import net.oneandone.maven.plugins.prerelease.core.Archive;
 import net.oneandone.maven.plugins.prerelease.core.Prerelease;
 import net.oneandone.maven.plugins.prerelease.core.WorkingCopy;
@@ -41,4 +42,10 @@ public class Check extends ProjectBase {
         }
         prerelease.check(getLog(), propertyArgs(), maven());
     }
+
+    /** The nested build writes into the checkout of the prerelease, so it needs the revision exclusively. */
+    @Override
+    protected Access access() {
+        return Access.REVISION;
+    }
 }
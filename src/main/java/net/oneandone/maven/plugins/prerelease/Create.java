@@ -53,16 +53,16 @@ public class Create extends ProjectBase {
         Maven maven;
 
         workingCopy = checkedWorkingCopy();
-        setTarget(archive.target(workingCopy.revision(), svnCredentials));
+        setTarget(newTarget(archive, workingCopy.revision()));
         if (target.exists()) {
             throw new MojoExecutionException("prerelease already exists: " + workingCopy.revision());
         }
         descriptor = checkedDescriptor(workingCopy);
         maven = maven();
-        prerelease = Prerelease.create(maven, propertyArgs(), getLog(), descriptor, target);
+        prerelease = Prerelease.create(maven, propertyArgs(), getLog(), descriptor, target, dedup);
         if (snapshots) {
             prerelease.deploySnapshot(maven, getLog(), propertyArgs(), project);
         }
-        archive.wipe(keep);
+        archive.wipe(retention());
     }
 }
@@ -0,0 +1,243 @@
+/**
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.prerelease;
+
+import net.oneandone.maven.plugins.prerelease.core.Archive;
+import net.oneandone.maven.plugins.prerelease.core.Deleter;
+import net.oneandone.maven.plugins.prerelease.core.Index;
+import net.oneandone.sushi.fs.file.FileNode;
+import net.oneandone.sushi.util.Separator;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Enforces a disk budget for each storage across all archives. All archives are scanned in parallel; prereleases are ranked
+ * globally, least recently used first, and removed until every storage fits its budget. The prerelease with the highest revision
+ * of every archive is never removed. Archives are locked with try-locks, locked archives are skipped.
+ */
+@Mojo(name = "gc", requiresProject = false)
+public class Gc extends Base {
+    /**
+     * Comma-separated budgets in megabytes, one for each storage. Missing values or 0 for no limit.
+     */
+    @Parameter(property = "prerelease.gc.budgets", defaultValue = "")
+    private String budgets;
+
+    /**
+     * Number of archives to scan or clean up in parallel.
+     */
+    @Parameter(property = "prerelease.gc.threads", defaultValue = "4", required = true)
+    private int threads;
+
+    /** A prerelease that might be removed */
+    private static class Candidate {
+        public final String archive;
+        public final Index.Entry entry;
+        /** true for the newest prerelease of the archive, which is never removed */
+        public final boolean newest;
+
+        public Candidate(String archive, Index.Entry entry, boolean newest) {
+            this.archive = archive;
+            this.entry = entry;
+            this.newest = newest;
+        }
+    }
+
+    @Override
+    public void doExecute() throws Exception {
+        final List<FileNode> storages;
+        long[] limits;
+        long started;
+        List<Candidate> candidates;
+        long[] used;
+        Map<String, List<Candidate>> victims;
+        List<Candidate> list;
+        final AtomicInteger skipped;
+        final AtomicLong reclaimed;
+        long scanned;
+        ExecutorService executor;
+        List<Future<Void>> futures;
+
+        started = System.currentTimeMillis();
+        storages = storages();
+        limits = limits(storages.size());
+        skipped = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(threads);
+        try (final Deleter deleter = deleter()) {
+            candidates = new ArrayList<>();
+            used = new long[storages.size()];
+            for (Future<List<Candidate>> future : scan(executor, storages, skipped)) {
+                for (Candidate candidate : get(future)) {
+                    used[candidate.entry.level] += Math.max(0, candidate.entry.size);
+                    if (!candidate.newest) {
+                        candidates.add(candidate);
+                    }
+                }
+            }
+            scanned = System.currentTimeMillis() - started;
+            for (int level = 0; level < used.length; level++) {
+                getLog().info("storage " + (level + 1) + ": " + mb(used[level]) + " used, budget "
+                        + (limits[level] == 0 ? "unlimited" : mb(limits[level])));
+            }
+            Collections.sort(candidates, new Comparator<Candidate>() {
+                @Override
+                public int compare(Candidate left, Candidate right) {
+                    if (left.entry.accessed != right.entry.accessed) {
+                        return left.entry.accessed < right.entry.accessed ? -1 : 1;
+                    }
+                    return Long.compare(left.entry.revision, right.entry.revision);
+                }
+            });
+            victims = new HashMap<>();
+            for (Candidate candidate : candidates) {
+                if (limits[candidate.entry.level] > 0 && used[candidate.entry.level] > limits[candidate.entry.level]) {
+                    used[candidate.entry.level] -= Math.max(0, candidate.entry.size);
+                    list = victims.get(candidate.archive);
+                    if (list == null) {
+                        list = new ArrayList<>();
+                        victims.put(candidate.archive, list);
+                    }
+                    list.add(candidate);
+                }
+            }
+            reclaimed = new AtomicLong();
+            futures = new ArrayList<>();
+            for (final Map.Entry<String, List<Candidate>> entry : victims.entrySet()) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        evict(directories(storages, entry.getKey()), entry.getValue(), deleter, reclaimed, skipped);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                get(future);
+            }
+            getLog().info("unreferenced blobs deleted: " + collectBlobs(storages, deleter));
+            getLog().info("reclaimed " + mb(reclaimed.get()) + " from " + victims.size() + " archives, " + skipped.get()
+                    + " locked archives skipped, scan " + scanned + " ms, total " + (System.currentTimeMillis() - started)
+                    + " ms, trash deleted: " + deleter);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /** @return futures for the prereleases of every archive */
+    private List<Future<List<Candidate>>> scan(ExecutorService executor, final List<FileNode> storages, final AtomicInteger skipped)
+            throws IOException {
+        List<Future<List<Candidate>>> result;
+
+        result = new ArrayList<>();
+        for (final String relative : archives(storages)) {
+            result.add(executor.submit(new Callable<List<Candidate>>() {
+                @Override
+                public List<Candidate> call() throws Exception {
+                    List<Candidate> candidates;
+                    Archive archive;
+                    List<Index.Entry> entries;
+                    Index.Entry newest;
+
+                    candidates = new ArrayList<>();
+                    archive = Archive.tryOpen(directories(storages, relative), lockMode, lease, getLog());
+                    if (archive == null) {
+                        getLog().info("skipped because it is locked: " + relative);
+                        skipped.incrementAndGet();
+                        return candidates;
+                    }
+                    try {
+                        entries = archive.prereleases(true);
+                        newest = null;
+                        for (Index.Entry entry : entries) {
+                            if (newest == null || entry.revision > newest.revision) {
+                                newest = entry;
+                            }
+                        }
+                        for (Index.Entry entry : entries) {
+                            candidates.add(new Candidate(relative, entry, entry == newest));
+                        }
+                    } finally {
+                        archive.close();
+                    }
+                    return candidates;
+                }
+            }));
+        }
+        return result;
+    }
+
+    private void evict(List<FileNode> directories, List<Candidate> victims, Deleter deleter, AtomicLong reclaimed,
+            AtomicInteger skipped) throws Exception {
+        Archive archive;
+
+        archive = Archive.tryOpen(directories, lockMode, lease, getLog());
+        if (archive == null) {
+            getLog().info("skipped because it is locked: " + victims.get(0).archive);
+            skipped.incrementAndGet();
+            return;
+        }
+        try {
+            for (Candidate victim : victims) {
+                if (archive.evict(victim.entry.revision)) {
+                    getLog().info("removed " + victim.archive + " " + victim.entry.revision + " (" + mb(victim.entry.size) + ")");
+                    reclaimed.addAndGet(Math.max(0, victim.entry.size));
+                }
+            }
+        } finally {
+            archive.close();
+        }
+        // without lock
+        Archive.reap(directories, deleter);
+    }
+
+    private long[] limits(int count) throws MojoExecutionException {
+        long[] result;
+        List<String> values;
+
+        result = new long[count];
+        values = budgets == null ? new ArrayList<String>() : Separator.COMMA.split(budgets);
+        if (values.size() > count) {
+            throw new MojoExecutionException("more budgets than storages: " + budgets);
+        }
+        for (int i = 0; i < values.size(); i++) {
+            try {
+                result[i] = Long.parseLong(values.get(i)) * 1024 * 1024;
+            } catch (NumberFormatException e) {
+                throw new MojoExecutionException("invalid budget: " + values.get(i));
+            }
+        }
+        return result;
+    }
+
+    private static String mb(long bytes) {
+        return (bytes / 1024 / 1024) + " MB";
+    }
+}
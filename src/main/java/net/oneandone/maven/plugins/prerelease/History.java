@@ -0,0 +1,61 @@
+/**
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.prerelease;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+
+import net.oneandone.maven.plugins.prerelease.core.Access;
+import net.oneandone.maven.plugins.prerelease.core.Archive;
+import net.oneandone.maven.plugins.prerelease.core.Journal;
+
+/**
+ * Lists the operations recorded in the journal of the archive, e.g. when a revision was promoted and how long it took.
+ */
+@Mojo(name = "history")
+public class History extends ProjectBase {
+    /**
+     * Revision to list operations for; 0 for all operations.
+     */
+    @Parameter(property = "prerelease.history.revision", defaultValue = "0")
+    private long revision;
+
+    @Override
+    public void doExecute(Archive archive) throws Exception {
+        SimpleDateFormat format;
+
+        format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        for (Journal.Operation operation : archive.journal().operations()) {
+            if (revision == 0 || operation.concerns(revision)) {
+                getLog().info(format.format(new Date(operation.begin)) + " " + operation + " (pid " + operation.pid()
+                        + (operation.host() == null ? "" : " on " + operation.host()) + ")");
+            }
+        }
+    }
+
+    @Override
+    public boolean definesTarget() {
+        return false;
+    }
+
+    @Override
+    protected Access access() {
+        return Access.READ;
+    }
+}
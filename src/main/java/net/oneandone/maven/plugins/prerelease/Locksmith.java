@@ -15,27 +15,29 @@
  */
 package net.oneandone.maven.plugins.prerelease;
 
-import net.oneandone.sushi.fs.FileNotFoundException;
+import net.oneandone.maven.plugins.prerelease.core.Fence;
+import net.oneandone.maven.plugins.prerelease.util.Processes;
 import net.oneandone.sushi.fs.Node;
 import net.oneandone.sushi.fs.file.FileNode;
-import net.oneandone.sushi.io.OS;
 import net.oneandone.sushi.util.Separator;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugins.annotations.Mojo;
 import org.apache.maven.plugins.annotations.Parameter;
 
 import java.io.IOException;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Locale;
-import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Find an delete stale locks. JVM crashes or kill -9 does not properly cleanup locks. This goals repairs them by looking for locks
- * from processes that no longer exists.
+ * from processes that no longer exists. All storages are scanned in parallel. On Linux, processes are looked up in /proc,
+ * otherwise ps is used. Locks of processes on other hosts sharing the storage are stale if their heartbeat is older than the
+ * lease; without lease they are never considered stale.
  *
  * Note that this locking cleanup should run in a single, separate process to avoid running into its own locking problems. It
  * must not be included in the lock file creating itself because there are multiple processes involved.
@@ -54,28 +56,34 @@ public class Locksmith extends Base {
     @Parameter(property = "prerelease.locksmith.delete")
     private boolean delete = false;
 
-    private static final long COUNT = 3;
-    private static final long HOUR = 1000L * 60 * 60;
+    /**
+     * File to write a machine-readable report to: one line per lock file with status (ok, stale or deleted), pid@host and path,
+     * separated by tabs. The file is replaced atomically, so it can be polled while the goal runs. No report if not specified.
+     */
+    @Parameter(property = "prerelease.locksmith.report")
+    private String report;
 
     @Override
     public void doExecute() throws Exception {
-        Map<String, Long> started;
-        FileNode primary;
-        String pid;
+        Processes processes;
+        String content;
+        String owner;
+        String host;
+        int pid;
+        long age;
         Long time;
         int errors;
         List<Node> locks;
+        List<String> lines;
+        String status;
 
-        started = startedMap();
+        processes = Processes.create(world);
         errors = 0;
-        primary = storages().get(0);
-        if (!primary.exists()) {
-            return;
-        }
-        locks = primary.find("*/*.LOCK");
+        locks = scan(storages());
+        lines = new ArrayList<>();
         for (Node file : locks) {
             try {
-                pid = file.readString();
+                content = file.readString().trim();
             } catch (IOException e) {
                 if (file.isFile()) {
                     throw e;
@@ -84,77 +92,98 @@ public class Locksmith extends Base {
                     continue;
                 }
             }
-            if (pid.trim().isEmpty()) {
+            if (content.isEmpty()) {
                 throw new IOException(file + ": old lock file format");
             }
-            time = started.get(pid);
-            if (time == null) {
-                getLog().info(file + ": stale lock - no process with id " + pid);
-            } else if (file.getLastModified() < time) {
-                getLog().info(file + ": stale lock - process with id " + pid + " younger than lock file");
+            owner = Separator.SPACE.split(content).get(0);
+            host = Fence.host(owner);
+            try {
+                pid = Fence.pid(owner);
+            } catch (NumberFormatException e) {
+                throw new IOException(file + ": invalid owner: " + owner);
+            }
+            if (host != null && !host.equals(Fence.host())) {
+                // process on another host: only its heartbeat tells whether it's alive
+                age = System.currentTimeMillis() - file.getLastModified();
+                if (lease == 0 || age < lease * 1000L) {
+                    getLog().debug(file + " ok, held by " + owner);
+                    lines.add("ok\t" + owner + "\t" + file);
+                    continue;
+                }
+                getLog().info(file + ": stale lock - no heartbeat from " + owner + " for " + (age / 1000) + "s");
             } else {
-                getLog().debug(file + " ok");
-                continue;
+                time = processes.started(pid);
+                if (time == null) {
+                    getLog().info(file + ": stale lock - no process with id " + pid);
+                } else if (file.getLastModified() < time) {
+                    getLog().info(file + ": stale lock - process with id " + pid + " younger than lock file");
+                } else {
+                    getLog().debug(file + " ok");
+                    lines.add("ok\t" + owner + "\t" + file);
+                    continue;
+                }
             }
             errors++;
+            status = "stale";
             if (delete) {
                 getLog().info("deleting " + file);
                 file.deleteFile();
+                status = "deleted";
             }
+            lines.add(status + "\t" + owner + "\t" + file);
         }
         getLog().info("locks checked: " + locks.size() + ", locks stale: " + errors);
+        if (report != null && !report.trim().isEmpty()) {
+            writeReport(world.file(report.trim()), lines);
+        }
         if (errors > 0 && fail) {
             throw new MojoExecutionException("stale locks: " + errors);
         }
     }
 
-    private static final SimpleDateFormat TODAY = new SimpleDateFormat("HH:mm:ss");
-    private static final SimpleDateFormat OTHER = new SimpleDateFormat("MMM dd", Locale.US);
-    private static final SimpleDateFormat MAC = new SimpleDateFormat("EEE MMM dd HH:mm:ss yyyy");
+    /** @return lock files of all storages */
+    private List<Node> scan(List<FileNode> storages) throws IOException, InterruptedException {
+        ExecutorService executor;
+        List<Future<List<Node>>> futures;
+        List<Node> result;
 
-    private Map<String, Long> startedMap() throws IOException {
-        String[] cmd;
-        Map<String, Long> result;
-        boolean first;
-        int idx;
-        String pid;
-        String startedStr;
-        Date startedDate;
-
-        result = new HashMap<>();
-        first = true;
-        if (OS.CURRENT == OS.MAC) {
-            cmd = new String[] { "ps", "ax", "-o", "pid", "-o", "lstart"};
-        } else {
-            cmd = new String[] { "ps", "ax", "--format", "pid,start" };
-        }
-
-        for (String line : Separator.RAW_LINE.split(((FileNode) world.getWorking()).exec(cmd))) {
-            if (first) {
-                if (!line.contains("PID")) {
-                    throw new IllegalStateException(line);
-                }
-                first = false;
-            } else {
-                line = line.trim();
-                idx = line.indexOf(' ');
-                if (idx == -1) {
-                    throw new IllegalStateException(line);
-                }
-                pid = line.substring(0, idx);
-                startedStr = line.substring(idx + 1).trim();
+        executor = Executors.newFixedThreadPool(storages.size());
+        try {
+            futures = new ArrayList<>();
+            for (final FileNode storage : storages) {
+                futures.add(executor.submit(new Callable<List<Node>>() {
+                    @Override
+                    public List<Node> call() throws IOException {
+                        if (!storage.exists()) {
+                            return new ArrayList<>();
+                        }
+                        return storage.find("*/*.LOCK");
+                    }
+                }));
+            }
+            result = new ArrayList<>();
+            for (Future<List<Node>> future : futures) {
                 try {
-                    if (OS.CURRENT == OS.MAC) {
-                        startedDate = MAC.parse(startedStr);
-                    } else {
-                        startedDate = (startedStr.indexOf(':') == -1 ? OTHER: TODAY).parse(startedStr);
+                    result.addAll(future.get());
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
                     }
-                } catch (ParseException e) {
-                    throw new IllegalStateException("invalid date in line " + line, e);
+                    throw new IllegalStateException(e.getCause());
                 }
-                result.put(pid, startedDate.getTime());
             }
+            return result;
+        } finally {
+            executor.shutdownNow();
         }
-        return result;
+    }
+
+    private static void writeReport(FileNode file, List<String> lines) throws IOException {
+        FileNode tmp;
+
+        file.getParent().mkdirsOpt();
+        tmp = file.getParent().join(file.getName() + ".tmp");
+        tmp.writeLines(lines);
+        tmp.move(file, true);
     }
 }
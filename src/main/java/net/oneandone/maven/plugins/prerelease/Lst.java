@@ -17,9 +17,9 @@ package net.oneandone.maven.plugins.prerelease;
 
 import org.apache.maven.plugins.annotations.Mojo;
 
+import net.oneandone.maven.plugins.prerelease.core.Access;
 import net.oneandone.maven.plugins.prerelease.core.Archive;
 import net.oneandone.maven.plugins.prerelease.core.WorkingCopy;
-import net.oneandone.sushi.fs.file.FileNode;
 
 /**
  * Lists available prepreleases and display up-to-date information.
@@ -32,8 +32,8 @@ public class Lst extends ProjectBase {
         String name;
 
         revision = Long.toString(WorkingCopy.load(basedir(), svnCredentials).revision());
-        for (FileNode prerelease : archive.list().values()) {
-            name = prerelease.getName();
+        for (Long prerelease : archive.list().keySet()) {
+            name = prerelease.toString();
             if (name.equals(revision)) {
                 name = name + " <- CURRENT";
             }
@@ -45,4 +45,9 @@ public class Lst extends ProjectBase {
     public boolean definesTarget() {
         return false;
     }
+
+    @Override
+    protected Access access() {
+        return Access.READ;
+    }
 }
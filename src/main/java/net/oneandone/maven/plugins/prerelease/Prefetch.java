@@ -0,0 +1,74 @@
+/**
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.prerelease;
+
+import java.util.TreeMap;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+
+import net.oneandone.maven.plugins.prerelease.core.Archive;
+import net.oneandone.maven.plugins.prerelease.core.WorkingCopy;
+import net.oneandone.sushi.fs.file.FileNode;
+
+/**
+ * Moves the prerelease that is most likely promoted next from a cold storage back into the primary storage, so a later promote
+ * or build doesn't have to wait for it. That's the prerelease of the working copy revision if there is one, otherwise the latest
+ * prerelease. Noop if the prerelease is already in the primary storage.
+ */
+@Mojo(name = "prefetch")
+public class Prefetch extends ProjectBase {
+    /**
+     * Revision to prefetch instead of the most likely one. A revision number, or LATEST_PRERELEASE.
+     */
+    @Parameter(property = "prerelease.prefetch.revision", required = false)
+    private String prefetchRevision;
+
+    @Override
+    public void doExecute(Archive archive) throws Exception {
+        long revision;
+
+        revision = revision(archive);
+        setTarget(archive.target(revision, svnCredentials));
+        if (!target.exists()) {
+            throw new MojoExecutionException("no prerelease for revision " + revision);
+        }
+        if (!target.stageIn(getLog(), Math.max(1, stageInThreads))) {
+            getLog().info("prerelease " + revision + " is already in the primary storage");
+        }
+    }
+
+    private long revision(Archive archive) throws Exception {
+        TreeMap<Long, FileNode> prereleases;
+        long current;
+
+        if (prefetchRevision != null && !BareBase.LASTEST_PRERELEASE.equals(prefetchRevision)) {
+            return Long.parseLong(prefetchRevision);
+        }
+        prereleases = archive.list();
+        if (prereleases.isEmpty()) {
+            throw new MojoExecutionException("no existing prerelease");
+        }
+        if (prefetchRevision == null) {
+            current = WorkingCopy.load(basedir(), svnCredentials).revision();
+            if (prereleases.containsKey(current)) {
+                return current;
+            }
+        }
+        return prereleases.lastKey();
+    }
+}
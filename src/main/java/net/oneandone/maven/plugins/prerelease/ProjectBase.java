@@ -15,15 +15,23 @@
  */
 package net.oneandone.maven.plugins.prerelease;
 
+import java.io.IOException;
+import java.util.List;
+
 import org.apache.maven.plugin.logging.Log;
 import org.apache.maven.plugins.annotations.Parameter;
 import org.apache.maven.project.MavenProject;
 
+import net.oneandone.maven.plugins.prerelease.core.Access;
 import net.oneandone.maven.plugins.prerelease.core.Archive;
+import net.oneandone.maven.plugins.prerelease.core.Deleter;
 import net.oneandone.maven.plugins.prerelease.core.Descriptor;
+import net.oneandone.maven.plugins.prerelease.core.Peers;
+import net.oneandone.maven.plugins.prerelease.core.Prerelease;
 import net.oneandone.maven.plugins.prerelease.core.Target;
 import net.oneandone.maven.plugins.prerelease.core.WorkingCopy;
 import net.oneandone.sushi.fs.file.FileNode;
+import net.oneandone.sushi.util.Separator;
 
 public abstract class ProjectBase extends Base {
     @Parameter(property = "project", required = true, readonly = true)
@@ -48,6 +56,43 @@ public abstract class ProjectBase extends Base {
     @Parameter(property = "prerelease.checkoutLink", defaultValue = "${basedir}/target/checkout")
     private String checkoutLink;
 
+    /**
+     * Create and update build new prereleases in a staging directory next to the primary storage and lock the archive only to
+     * publish the result and to wipe old prereleases. A prerelease built concurrently by someone else is discarded at publish time.
+     */
+    @Parameter(property = "prerelease.staging", defaultValue = "false")
+    protected boolean staging;
+
+    /**
+     * Delete the trash of the archive after the goal has released the archive lock. Disabled by default because it delays the end
+     * of the goal; run the reap goal regularly instead, e.g. from cron.
+     */
+    @Parameter(property = "prerelease.reap", defaultValue = "false")
+    protected boolean reap;
+
+    /**
+     * Replace the artifacts and svn pristines of new prereleases by hard links into a content-addressed blob store of the storage,
+     * so identical files of different prereleases share their disk space. Unreferenced blobs are deleted by the reap, gc and swap
+     * goals.
+     */
+    @Parameter(property = "prerelease.dedup", defaultValue = "false")
+    protected boolean dedup;
+
+    /**
+     * Number of threads to copy a prerelease from a cold storage back into the primary storage before it's built or promoted,
+     * see prerelease:prefetch. 0 to build and promote prereleases in place, which fails for prereleases packed in zip storages.
+     */
+    @Parameter(property = "prerelease.stageIn.threads", defaultValue = "4")
+    protected int stageInThreads;
+
+    /**
+     * Archives of other hosts to copy new prereleases from instead of building them, separated by commas: storage directories
+     * (e.g. read-only mounts of other agents' primary storages) or http urls serving a zip storage. A peer prerelease is used if
+     * it was built from the same svn url and revision with the same plugin version and matches its recorded checksums.
+     */
+    @Parameter(property = "prerelease.peers", defaultValue = "")
+    protected String peers;
+
     protected Target target = null;
 
     public ProjectBase() {
@@ -55,7 +100,11 @@ public abstract class ProjectBase extends Base {
 
     @Override
     public void doExecute() throws Exception {
-        try (Archive archive = Archive.open(Archive.directories(storages(), project), lockTimeout, getLog())) {
+        List<FileNode> directories;
+
+        directories = Archive.directories(storages(), project);
+        try (Archive archive = staging ? Archive.openDeferred(directories, lockMode, access(), lockTimeout, lease, getLog())
+                : Archive.open(directories, lockMode, access(), lockTimeout, lease, getLog())) {
             try {
                 doExecute(archive);
             } finally {
@@ -70,6 +119,18 @@ public abstract class ProjectBase extends Base {
                 }
             }
         }
+        if (reap && access() != Access.READ) {
+            reap(directories);
+        }
+    }
+
+    private void reap(List<FileNode> directories) throws IOException {
+        try (Deleter deleter = deleter()) {
+            Archive.reap(directories, deleter);
+            if (deleter.getFiles() > 0) {
+                getLog().info("reaped trash: " + deleter);
+            }
+        }
     }
 
     public abstract void doExecute(Archive archive) throws Exception;
@@ -82,6 +143,51 @@ public abstract class ProjectBase extends Base {
         return true;
     }
 
+    /** @return target to create a new prerelease in; staged if staging is enabled and the prerelease does not exist yet */
+    protected Target newTarget(Archive archive, long revision) throws IOException {
+        if (staging && !archive.contains(revision)) {
+            return archive.stage(revision, svnCredentials);
+        }
+        return archive.target(revision, svnCredentials);
+    }
+
+    /**
+     * Copies the prerelease for the descriptor from a peer and makes it the current target.
+     *
+     * @return null if no peer has a matching prerelease
+     */
+    protected Prerelease fetchOpt(Archive archive, Descriptor descriptor) throws IOException {
+        Peers all;
+        Target fetched;
+
+        all = Peers.create(world, Separator.COMMA.split(peers == null ? "" : peers), Math.max(1, stageInThreads));
+        if (all.isEmpty()) {
+            return null;
+        }
+        fetched = all.fetchOpt(archive, descriptor, svnCredentials, getLog());
+        if (fetched == null) {
+            getLog().info("no peer has a prerelease for revision " + descriptor.revision);
+            return null;
+        }
+        setTarget(fetched);
+        return fetched.loadOpt();
+    }
+
+    /** Moves the prerelease of the current target into the primary storage if stage-in is enabled. */
+    protected void stageIn() throws IOException {
+        if (stageInThreads > 0) {
+            target.stageIn(getLog(), stageInThreads);
+        }
+    }
+
+    /**
+     * @return what this goal does with the archive. Has no effect with lock mode FILE, which always locks exclusively. READ only
+     * for goals that don't touch the checkout of a prerelease, because nested builds write into its target directories.
+     */
+    protected Access access() {
+        return Access.REVISION;
+    }
+
 
     public FileNode basedir() {
         return world.file(project.getBasedir());
@@ -73,6 +73,7 @@ public class Promote extends ProjectBase {
         workingCopy = checkedWorkingCopy();
         revision = workingCopy.revision();
         setTarget(archive.target(revision, svnCredentials));
+        stageIn();
         prerelease = target.loadOpt();
         if (prerelease == null) {
             throw new MojoExecutionException("no prerelease for revision " + revision);
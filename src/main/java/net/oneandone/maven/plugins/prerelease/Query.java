@@ -0,0 +1,131 @@
+/**
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.prerelease;
+
+import net.oneandone.maven.plugins.prerelease.core.Access;
+import net.oneandone.maven.plugins.prerelease.core.Archive;
+import net.oneandone.maven.plugins.prerelease.core.Catalog;
+import net.oneandone.maven.plugins.prerelease.core.Index;
+import net.oneandone.sushi.fs.file.FileNode;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Lists prereleases of all archives from the catalog, e.g. all unpromoted prereleases of a group newer than some revision, or all
+ * prereleases of an svn url. Queries read the memory-mapped catalog file only, they don't touch archive directories. Every archive
+ * modification updates the catalog; rebuild it if it's missing, e.g. for storages created by older versions of this plugin.
+ */
+@Mojo(name = "query", requiresProject = false)
+public class Query extends Base {
+    /**
+     * groupId or groupId:artifactId of the archives to list. All archives if not specified.
+     */
+    @Parameter(property = "prerelease.query.artifact", required = false)
+    private String artifact;
+
+    /**
+     * Prefix of the svn url prereleases were created from. All urls if not specified.
+     */
+    @Parameter(property = "prerelease.query.svn", required = false)
+    private String svn;
+
+    /**
+     * Lists only prereleases with a higher revision. 0 for all revisions.
+     */
+    @Parameter(property = "prerelease.query.newer", defaultValue = "0", required = true)
+    private long newer;
+
+    /**
+     * READY to list unpromoted prereleases only, PROMOTED or REMOVE for prereleases waiting to be reaped. All states if not
+     * specified.
+     */
+    @Parameter(property = "prerelease.query.state", required = false)
+    private Index.State state;
+
+    /**
+     * Rebuilds the catalog from all archives before the query. Locked archives are skipped and keep their old records.
+     */
+    @Parameter(property = "prerelease.query.rebuild", defaultValue = "false", required = true)
+    private boolean rebuild;
+
+    @Override
+    public void doExecute() throws Exception {
+        List<FileNode> storages;
+        Catalog catalog;
+        String groupId;
+        String artifactId;
+        int idx;
+        long started;
+        int count;
+
+        storages = storages();
+        catalog = Catalog.forStorage(storages.get(0));
+        if (rebuild) {
+            rebuild(storages, catalog);
+        }
+        if (artifact == null) {
+            groupId = null;
+            artifactId = null;
+        } else {
+            idx = artifact.indexOf(':');
+            groupId = idx == -1 ? artifact : artifact.substring(0, idx);
+            artifactId = idx == -1 ? null : artifact.substring(idx + 1);
+        }
+        started = System.currentTimeMillis();
+        count = 0;
+        for (Catalog.Record record : catalog.select(groupId, artifactId)) {
+            if (record.revision > newer && (state == null || record.state == state)
+                    && (svn == null || record.svnOrig.startsWith(svn))) {
+                getLog().info(record.toString());
+                count++;
+            }
+        }
+        getLog().info(count + " prereleases, " + (System.currentTimeMillis() - started) + " ms");
+    }
+
+    private void rebuild(List<FileNode> storages, Catalog catalog) throws Exception {
+        List<Catalog.Record> records;
+        Archive archive;
+
+        records = new ArrayList<>();
+        for (String relative : archives(storages)) {
+            archive = Archive.tryOpen(directories(storages, relative), lockMode, Access.READ, lease, getLog());
+            if (archive == null) {
+                getLog().info("skipped because it is locked: " + relative);
+                records.addAll(catalog.select(groupId(relative), artifactId(relative)));
+                continue;
+            }
+            try {
+                records.addAll(Catalog.records(archive));
+            } finally {
+                archive.close();
+            }
+        }
+        catalog.rebuild(records, lockTimeout, getLog());
+        getLog().info("catalog rebuilt: " + records.size() + " prereleases");
+    }
+
+    private static String groupId(String relative) {
+        return relative.substring(0, relative.indexOf('/'));
+    }
+
+    private static String artifactId(String relative) {
+        return relative.substring(relative.indexOf('/') + 1);
+    }
+}
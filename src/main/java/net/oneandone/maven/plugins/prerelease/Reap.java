@@ -0,0 +1,52 @@
+/**
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.prerelease;
+
+import net.oneandone.maven.plugins.prerelease.core.Deleter;
+import net.oneandone.maven.plugins.prerelease.core.Trash;
+import net.oneandone.sushi.fs.Node;
+import net.oneandone.sushi.fs.file.FileNode;
+import org.apache.maven.plugins.annotations.Mojo;
+
+/**
+ * Deletes the trash directories of all archives in all storages. Prereleases removed by wipe, create or promote are moved into
+ * the trash of their storage; only goals executed with prerelease.reap=true delete it themselves. Run this goal regularly, e.g. from
+ * cron, to delete the trash and to clean up after builds that were killed. Also deletes unreferenced blobs, see prerelease.dedup.
+ * Archives are not locked.
+ */
+@Mojo(name = "reap", requiresProject = false)
+public class Reap extends Base {
+    @Override
+    public void doExecute() throws Exception {
+        int trashes;
+
+        trashes = 0;
+        try (Deleter deleter = deleter()) {
+            for (FileNode storage : storages()) {
+                if (!storage.exists()) {
+                    continue;
+                }
+                for (Node trash : storage.find("*/*" + Trash.SUFFIX)) {
+                    getLog().debug("reaping " + trash);
+                    Trash.reap((FileNode) trash, deleter);
+                    trashes++;
+                }
+            }
+            getLog().info("trash directories reaped: " + trashes + ", unreferenced blobs: " + collectBlobs(storages(), deleter)
+                    + ", deleted: " + deleter);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.prerelease;
+
+import net.oneandone.maven.plugins.prerelease.core.Access;
+import net.oneandone.maven.plugins.prerelease.core.Archive;
+import net.oneandone.sushi.fs.file.FileNode;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Verifies the checksums recorded when prereleases were created, for all prereleases of all archives in all storages, to find
+ * prereleases damaged by bit rot or an interrupted copy before they are promoted. Prereleases created by older versions of this
+ * plugin have no checksums and are skipped, as are locked archives. Fails if corrupted prereleases are found, unless they are
+ * removed.
+ */
+@Mojo(name = "scrub", requiresProject = false)
+public class Scrub extends Base {
+    /**
+     * Number of files hashed in parallel.
+     */
+    @Parameter(property = "prerelease.scrub.threads", defaultValue = "4", required = true)
+    private int threads;
+
+    /**
+     * Schedules corrupted prereleases for removal instead of only reporting them.
+     */
+    @Parameter(property = "prerelease.scrub.remove", defaultValue = "false", required = true)
+    private boolean remove;
+
+    @Override
+    public void doExecute() throws Exception {
+        List<FileNode> storages;
+        List<String> corrupted;
+        int verified;
+        int unchecked;
+        int skipped;
+        Archive archive;
+        List<String> problems;
+        long started;
+
+        started = System.currentTimeMillis();
+        storages = storages();
+        corrupted = new ArrayList<>();
+        verified = 0;
+        unchecked = 0;
+        skipped = 0;
+        for (String relative : new TreeSet<>(archives(storages))) {
+            archive = Archive.tryOpen(directories(storages, relative), lockMode, remove ? Access.REVISION : Access.READ, lease,
+                    getLog());
+            if (archive == null) {
+                getLog().info("skipped because it is locked: " + relative);
+                skipped++;
+                continue;
+            }
+            try {
+                for (Long revision : archive.list().keySet()) {
+                    problems = archive.scrub(revision, threads);
+                    if (problems == null) {
+                        unchecked++;
+                    } else if (problems.isEmpty()) {
+                        verified++;
+                    } else {
+                        corrupted.add(relative + " " + revision);
+                        for (String problem : problems) {
+                            getLog().error(relative + " " + revision + ": " + problem);
+                        }
+                        if (remove) {
+                            archive.target(revision, svnCredentials).scheduleRemove(getLog(),
+                                    "scrub found " + problems.size() + " corrupted files");
+                        }
+                    }
+                }
+            } finally {
+                archive.close();
+            }
+        }
+        getLog().info(verified + " prereleases intact, " + corrupted.size() + " corrupted, " + unchecked + " without checksums, "
+                + skipped + " locked archives skipped, " + (System.currentTimeMillis() - started) + " ms");
+        if (!corrupted.isEmpty() && !remove) {
+            throw new MojoExecutionException("corrupted prereleases: " + corrupted);
+        }
+    }
+}
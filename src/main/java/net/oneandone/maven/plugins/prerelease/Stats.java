@@ -0,0 +1,138 @@
+/**
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.prerelease;
+
+import net.oneandone.maven.plugins.prerelease.core.Access;
+import net.oneandone.maven.plugins.prerelease.core.Archive;
+import net.oneandone.maven.plugins.prerelease.core.Usage;
+import net.oneandone.sushi.fs.file.FileNode;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Reports the disk usage of all archives in all storages: number of prereleases, bytes, oldest and newest revision and REMOVE
+ * leftovers, largest archives first. Sizes are cached in the index of every archive, so only the first run walks the prereleases.
+ * Archives are scanned in parallel; locked archives are skipped.
+ */
+@Mojo(name = "stats", requiresProject = false)
+public class Stats extends Base {
+    /**
+     * Number of archives to scan in parallel.
+     */
+    @Parameter(property = "prerelease.stats.threads", defaultValue = "4", required = true)
+    private int threads;
+
+    @Override
+    public void doExecute() throws Exception {
+        final List<FileNode> storages;
+        Map<String, Future<List<Usage>>> futures;
+        final Map<String, List<Usage>> archives;
+        List<Usage> stats;
+        List<Usage> totals;
+        List<String> names;
+        ExecutorService executor;
+        int skipped;
+        long started;
+
+        started = System.currentTimeMillis();
+        storages = storages();
+        futures = new TreeMap<>();
+        executor = Executors.newFixedThreadPool(threads);
+        try {
+            for (final String relative : archives(storages)) {
+                futures.put(relative, executor.submit(new Callable<List<Usage>>() {
+                    @Override
+                    public List<Usage> call() throws Exception {
+                        return stats(directories(storages, relative));
+                    }
+                }));
+            }
+            archives = new TreeMap<>();
+            skipped = 0;
+            for (Map.Entry<String, Future<List<Usage>>> entry : futures.entrySet()) {
+                stats = get(entry.getValue());
+                if (stats == null) {
+                    getLog().info("skipped because it is locked: " + entry.getKey());
+                    skipped++;
+                } else {
+                    archives.put(entry.getKey(), stats);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        names = new ArrayList<>(archives.keySet());
+        Collections.sort(names, new Comparator<String>() {
+            @Override
+            public int compare(String left, String right) {
+                return Long.compare(total(archives.get(right)), total(archives.get(left)));
+            }
+        });
+        totals = new ArrayList<>();
+        for (int level = 0; level < storages.size(); level++) {
+            totals.add(new Usage(level));
+        }
+        for (String name : names) {
+            for (Usage level : archives.get(name)) {
+                if (!level.isEmpty()) {
+                    getLog().info(name + " storage " + (level.level + 1) + ": " + level);
+                }
+                totals.get(level.level).add(level);
+            }
+        }
+        for (Usage level : totals) {
+            getLog().info("total storage " + (level.level + 1) + ": " + level);
+        }
+        getLog().info(archives.size() + " archives, " + skipped + " locked archives skipped, "
+                + (System.currentTimeMillis() - started) + " ms");
+    }
+
+    /** @return null if the archive is locked */
+    private List<Usage> stats(List<FileNode> directories) throws Exception {
+        Archive archive;
+
+        archive = Archive.tryOpen(directories, lockMode, Access.REVISION, lease, getLog());
+        if (archive == null) {
+            return null;
+        }
+        try {
+            return archive.usage();
+        } finally {
+            archive.close();
+        }
+    }
+
+    private static long total(List<Usage> stats) {
+        long result;
+
+        result = 0;
+        for (Usage level : stats) {
+            result += level.total();
+        }
+        return result;
+    }
+}
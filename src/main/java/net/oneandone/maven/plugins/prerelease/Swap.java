@@ -15,92 +15,349 @@
  */
 package net.oneandone.maven.plugins.prerelease;
 
+import net.oneandone.maven.plugins.prerelease.core.Access;
 import net.oneandone.maven.plugins.prerelease.core.Archive;
-import net.oneandone.sushi.fs.Node;
+import net.oneandone.maven.plugins.prerelease.core.Backend;
+import net.oneandone.maven.plugins.prerelease.core.Deleter;
+import net.oneandone.maven.plugins.prerelease.core.Index;
+import net.oneandone.maven.plugins.prerelease.core.Placement;
+import net.oneandone.maven.plugins.prerelease.core.Retention;
+import net.oneandone.maven.plugins.prerelease.core.Throttle;
 import net.oneandone.sushi.fs.file.FileNode;
+import net.oneandone.sushi.util.Separator;
+import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
 
+import java.io.IOException;
+import java.nio.file.Files;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Wipes archives and moves prereleases to the next storage. You usually have two storages, primary and secondary.
+ * Wipes archives and moves prereleases between storages. You usually have two storages, primary and secondary.
  * Useful when you use ram disks: use the ramdisk as primary storage, and a harddisk as secondary storage.
+ *
+ * Without prerelease.swap.idle, every prerelease moves one storage down per run. With it, every prerelease moves directly to the
+ * storage it belongs to according to its last access and size, up or down, see Placement. All archives are scanned first, the
+ * resulting move plan is logged with an estimate, and then executed in one pass.
+ *
+ * Archives are processed in parallel; the number of concurrent moves is limited per pair of source and destination device, so
+ * every disk is busy without being overloaded. Copies between devices can be throttled to leave bandwidth for builds. Locked
+ * archives are skipped.
  */
 @Mojo(name = "swap", requiresProject = false)
 public class Swap extends Base {
+    /** assumed copy rate for the estimate if there's no bandwidth limit */
+    private static final long ESTIMATE = 100L * 1024 * 1024;
+
+    /**
+     * Number of archives to process in parallel.
+     */
+    @Parameter(property = "prerelease.swap.threads", defaultValue = "4", required = true)
+    private int threads;
+
+    /**
+     * Maximum number of prereleases moved concurrently from one device to another. Storages on the same device share this limit.
+     */
+    @Parameter(property = "prerelease.swap.perDevice", defaultValue = "2", required = true)
+    private int perDevice;
+
+    /**
+     * Megabytes per second for all copies between devices together. 0 for no limit. Renames within a device are not throttled.
+     */
+    @Parameter(property = "prerelease.swap.bandwidth", defaultValue = "0", required = true)
+    private int bandwidth;
+
+    /**
+     * Files per second for all copies between devices together. 0 for no limit.
+     */
+    @Parameter(property = "prerelease.swap.iops", defaultValue = "0", required = true)
+    private int iops;
+
+    /**
+     * Comma-separated hours since the last access, ascending, one for every storage but the last: prereleases idle for less than
+     * the first value belong to the first storage, less than the second value to the second storage, and so on. Empty to move
+     * every prerelease one storage down per run.
+     */
+    @Parameter(property = "prerelease.swap.idle", defaultValue = "")
+    private String idle;
+
+    /**
+     * Megabytes above which a prerelease goes one storage further than its idle time says. 0 for no limit. Only used with
+     * prerelease.swap.idle.
+     */
+    @Parameter(property = "prerelease.swap.large", defaultValue = "0", required = true)
+    private int large;
+
+    /**
+     * Log the move plan without moving or wiping anything.
+     */
+    @Parameter(property = "prerelease.swap.dryRun", defaultValue = "false")
+    private boolean dryRun;
+
+    /** devices of the storages */
+    private List<String> devices;
+    private final Map<String, Semaphore> pairs = new HashMap<>();
+
     @Override
     public void doExecute() throws Exception {
-        Set<String> relatives;
-        List<FileNode> storages;
-        List<Node> archives;
-        Archive archive;
-        FileNode dest;
-        FileNode storage;
-        int count;
-        int level;
+        final List<FileNode> storages;
+        final Placement placement;
+        final Retention retention;
+        final Throttle throttle;
+        final AtomicInteger count;
+        final AtomicInteger skipped;
+        Map<String, Future<List<Placement.Move>>> scans;
+        Map<String, List<Placement.Move>> plan;
+        List<Placement.Move> moves;
+        ExecutorService executor;
+        List<Future<Void>> futures;
+        long started;
 
-        count = 0;
+        started = System.currentTimeMillis();
         storages = storages();
-        relatives = new HashSet<>();
-        for (level = 0; level < storages.size(); level++) {
-            storage = storages.get(level);
-            getLog().info("storage " + (level + 1) + ": " + storage.getAbsolute());
-            archives = storage.find("*/*");
-            for (Node candidate : archives) {
-                if (!candidate.isDirectory()) {
-                    continue;
+        devices = devices(storages);
+        placement = placement(storages.size());
+        retention = retention();
+        throttle = new Throttle(bandwidth * 1024L * 1024L, iops);
+        count = new AtomicInteger();
+        skipped = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(threads);
+        try (final Deleter deleter = deleter()) {
+            scans = new TreeMap<>();
+            for (final String relative : archives(storages)) {
+                scans.put(relative, executor.submit(new Callable<List<Placement.Move>>() {
+                    @Override
+                    public List<Placement.Move> call() throws Exception {
+                        return scan(directories(storages, relative), placement, retention, skipped);
+                    }
+                }));
+            }
+            getLog().info("archives found: " + scans.size());
+            plan = new TreeMap<>();
+            for (Map.Entry<String, Future<List<Placement.Move>>> entry : scans.entrySet()) {
+                moves = get(entry.getValue());
+                if (moves != null) {
+                    // also without moves: the archive is wiped
+                    plan.put(entry.getKey(), moves);
                 }
-                relatives.add(candidate.getRelative(storage));
             }
+            report(plan);
+            if (dryRun) {
+                return;
+            }
+            futures = new ArrayList<>();
+            for (final Map.Entry<String, List<Placement.Move>> entry : plan.entrySet()) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        execute(directories(storages, entry.getKey()), entry.getValue(), throttle, deleter, count, skipped);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                get(future);
+            }
+            getLog().info(count + " prereleases moved, " + skipped + " locked archives skipped, throttle " + throttle + ", "
+                    + (System.currentTimeMillis() - started) + " ms, " + collectBlobs(storages, deleter)
+                    + " unreferenced blobs, trash deleted: " + deleter);
+        } finally {
+            executor.shutdownNow();
         }
-        getLog().info("archives found: " + relatives.size());
-        for (String relative : relatives) {
-            archive = Archive.tryOpen(directories(storages, relative));
-            if (archive == null) {
-                getLog().info("skipped because it is locked: " + relative);
-                continue;
+    }
+
+    /** @return null if the archive is locked. A dry run opens the archive for reading, so it's not recovered. */
+    private List<Placement.Move> scan(List<FileNode> directories, Placement placement, Retention retention, AtomicInteger skipped)
+            throws Exception {
+        Archive archive;
+        List<Index.Entry> entries;
+        List<Placement.Move> result;
+        long now;
+
+        archive = Archive.tryOpen(directories, lockMode, dryRun ? Access.READ : Access.EXCLUSIVE, lease, getLog());
+        if (archive == null) {
+            getLog().info("skipped because it is locked: " + directories.get(0));
+            skipped.incrementAndGet();
+            return null;
+        }
+        try {
+            now = System.currentTimeMillis();
+            // sizes for the estimate; they're cached in the index. A dry run doesn't compute missing sizes, it must not modify
+            // archives; the report counts them as unknown
+            entries = archive.prereleases(!dryRun);
+            // wiped before moving
+            entries.removeAll(retention.select(entries, directories.size(), now));
+            if (placement != null) {
+                return placement.plan(entries, directories.size(), now);
             }
-            try {
-                archive.wipe(keep);
-                for (FileNode src : archive.list().values()) {
-                    level = findLevel(storages, src);
-                    getLog().debug(src + ": level " + level);
-                    if (level == storages.size() - 1) {
-                        getLog().debug("already in final storage: " + src);
-                    } else {
-                        dest = storages.get(level + 1).join(relative, src.getName());
-                        dest.getParent().mkdirsOpt();
-                        src.move(dest);
-                        getLog().info("swapped " + src.getAbsolute() + " -> " + dest.getAbsolute());
-                        count++;
+            result = new ArrayList<>();
+            for (Index.Entry entry : entries) {
+                if (entry.level < directories.size() - 1) {
+                    result.add(new Placement.Move(entry.revision, entry.level, entry.level + 1, entry.size));
+                }
+            }
+            return result;
+        } finally {
+            archive.close();
+        }
+    }
+
+    private void report(Map<String, List<Placement.Move>> plan) {
+        int down;
+        int up;
+        long bytes;
+        long copied;
+        int unknown;
+
+        down = 0;
+        up = 0;
+        bytes = 0;
+        copied = 0;
+        unknown = 0;
+        for (Map.Entry<String, List<Placement.Move>> entry : plan.entrySet()) {
+            for (Placement.Move move : entry.getValue()) {
+                getLog().debug("plan " + entry.getKey() + " " + move);
+                if (move.isUp()) {
+                    up++;
+                } else {
+                    down++;
+                }
+                if (move.size < 0) {
+                    unknown++;
+                } else {
+                    bytes += move.size;
+                    if (isCopy(move)) {
+                        copied += move.size;
                     }
                 }
-            } finally {
-                archive.close();
             }
         }
-        getLog().info(count + " archives swapped.");
+        getLog().info("plan: " + down + " moves down, " + up + " moves up, " + mb(bytes) + " total, " + mb(copied)
+                + " copied between devices" + (unknown == 0 ? "" : ", " + unknown + " sizes unknown") + ", estimated "
+                + (copied / (bandwidth > 0 ? bandwidth * 1024L * 1024L : ESTIMATE)) + " seconds"
+                + (bandwidth > 0 ? "" : " at " + mb(ESTIMATE) + "/s"));
     }
 
-    private static int findLevel(List<FileNode> storages, Node prerelease) {
-        for (int level = 0; level < storages.size(); level++) {
-            if (prerelease.hasAnchestor(storages.get(level))) {
-                return level;
+    private void execute(List<FileNode> directories, List<Placement.Move> moves, Throttle throttle, Deleter deleter,
+            AtomicInteger count, AtomicInteger skipped) throws Exception {
+        Archive archive;
+        Map<Long, Index.Entry> entries;
+        Index.Entry entry;
+        Semaphore pair;
+        FileNode dest;
+
+        archive = Archive.tryOpen(directories, lockMode, lease, getLog());
+        if (archive == null) {
+            getLog().info("skipped because it is locked: " + directories.get(0));
+            skipped.incrementAndGet();
+            return;
+        }
+        try {
+            archive.wipe(retention());
+            entries = new HashMap<>();
+            for (Index.Entry e : archive.prereleases(false)) {
+                entries.put(e.revision, e);
+            }
+            for (Placement.Move move : moves) {
+                entry = entries.get(move.revision);
+                if (entry == null || entry.level != move.from) {
+                    getLog().debug("changed since the plan was made: " + directories.get(0) + " " + move);
+                    continue;
+                }
+                pair = pair(move.from, move.to);
+                pair.acquire();
+                try {
+                    dest = archive.move(move.revision, move.to, throttle);
+                } finally {
+                    pair.release();
+                }
+                getLog().info("moved " + directories.get(0).getName() + " " + move + ": " + dest.getAbsolute());
+                count.incrementAndGet();
+            }
+        } finally {
+            archive.close();
+        }
+        // without lock
+        Archive.reap(directories, deleter);
+    }
+
+    //--
+
+    /** @return null to move every prerelease one storage down */
+    private Placement placement(int levels) throws MojoExecutionException {
+        List<String> values;
+        long[] hours;
+
+        if (idle == null || idle.trim().isEmpty()) {
+            return null;
+        }
+        values = Separator.COMMA.split(idle);
+        if (values.size() >= levels) {
+            throw new MojoExecutionException("expected at most " + (levels - 1) + " idle times for " + levels + " storages: " + idle);
+        }
+        hours = new long[values.size()];
+        for (int i = 0; i < hours.length; i++) {
+            try {
+                hours[i] = Long.parseLong(values.get(i)) * 60 * 60 * 1000;
+            } catch (NumberFormatException e) {
+                throw new MojoExecutionException("invalid idle time: " + values.get(i));
             }
         }
-        throw new IllegalStateException(prerelease.toString());
+        try {
+            return new Placement(hours, large * 1024L * 1024L);
+        } catch (IllegalArgumentException e) {
+            throw new MojoExecutionException(e.getMessage() + ": " + idle);
+        }
+    }
+
+    /** @return true if the move copies data, i.e. it's not a rename */
+    private boolean isCopy(Placement.Move move) {
+        return !devices.get(move.from).equals(devices.get(move.to));
     }
 
-    private static List<FileNode> directories(List<FileNode> storages, String relative) {
-        List<FileNode> result;
+    /** @return limit of concurrent moves between two storages; storage pairs on the same devices share one limit */
+    private synchronized Semaphore pair(int from, int to) {
+        String key;
+        Semaphore result;
+
+        key = devices.get(from) + " -> " + devices.get(to);
+        result = pairs.get(key);
+        if (result == null) {
+            result = new Semaphore(Math.max(1, perDevice));
+            pairs.put(key, result);
+            getLog().debug("device pair " + key + ": " + perDevice + " concurrent moves");
+        }
+        return result;
+    }
+
+    /** @return device and backend of every storage; moves between storages with the same device and backend are renames */
+    private static List<String> devices(List<FileNode> storages) throws IOException {
+        List<String> result;
+        FileNode existing;
 
         result = new ArrayList<>();
         for (FileNode storage : storages) {
-            result.add(storage.join(relative));
+            existing = storage;
+            while (!existing.exists()) {
+                existing = existing.getParent();
+            }
+            result.add(Files.getFileStore(existing.toPath()).toString() + " " + Backend.forStorage(storage));
         }
         return result;
     }
+
+    private static String mb(long bytes) {
+        return (bytes / 1024 / 1024) + " MB";
+    }
 }
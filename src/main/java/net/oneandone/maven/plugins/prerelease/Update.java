@@ -24,7 +24,7 @@ import net.oneandone.maven.plugins.prerelease.core.WorkingCopy;
 import net.oneandone.maven.plugins.prerelease.util.Maven;
 
 /**
- * Checks if there is a prerelease for the last change in your svn working directory; creates one if not.
+ * Checks if there is a prerelease for the last change in your svn working directory; fetches it from a peer or creates one if not.
  */
 @Mojo(name = "update")
 public class Update extends ProjectBase {
@@ -42,13 +42,16 @@ public class Update extends ProjectBase {
         revision = workingCopy.revision();
         descriptor = Descriptor.create(version(), project, revision, svnCredentials);
         workingCopy.checkCompatibility(descriptor);
-        setTarget(archive.target(revision, svnCredentials));
+        setTarget(newTarget(archive, revision));
         if (target.exists()) {
             getLog().info("prerelease already exists: " + descriptor.getName());
         } else {
             maven = maven();
-            prerelease = Prerelease.create(maven, propertyArgs(), getLog(), descriptor, target);
-            archive.wipe(keep);
+            prerelease = fetchOpt(archive, descriptor);
+            if (prerelease == null) {
+                prerelease = Prerelease.create(maven, propertyArgs(), getLog(), descriptor, target, dedup);
+            }
+            archive.wipe(retention());
             try {
                 descriptor.check(world, project, allowSnapshots, allowPrereleaseSnapshots);
             } catch (RuntimeException e) {
@@ -18,6 +18,7 @@ package net.oneandone.maven.plugins.prerelease;
 import org.apache.maven.plugins.annotations.Mojo;
 
 import net.oneandone.maven.plugins.prerelease.core.Archive;
+import net.oneandone.maven.plugins.prerelease.core.Descriptor;
 import net.oneandone.maven.plugins.prerelease.core.Prerelease;
 import net.oneandone.maven.plugins.prerelease.core.WorkingCopy;
 import net.oneandone.maven.plugins.prerelease.util.Maven;
@@ -29,19 +30,25 @@ import net.oneandone.maven.plugins.prerelease.util.Maven;
 public class UpdatePromote extends Promote {
     public void doExecute(Archive archive) throws Exception {
         WorkingCopy workingCopy;
+        Descriptor descriptor;
         Prerelease prerelease;
         Maven maven;
 
         workingCopy = checkedWorkingCopy();
         setTarget(archive.target(workingCopy.revision(), svnCredentials));
+        stageIn();
         prerelease = target.loadOpt();
         if (prerelease == null) {
             maven = maven();
-            prerelease = Prerelease.create(maven, propertyArgs(), getLog(), checkedDescriptor(workingCopy), target);
+            descriptor = checkedDescriptor(workingCopy);
+            prerelease = fetchOpt(archive, descriptor);
+            if (prerelease == null) {
+                prerelease = Prerelease.create(maven, propertyArgs(), getLog(), descriptor, target, dedup);
+            }
             if (snapshots) {
                 prerelease.deploySnapshot(maven, getLog(), propertyArgs(), project);
             }
-            archive.wipe(keep);
+            archive.wipe(retention());
         }
         prerelease.promote(getLog(), propertyArgs(), createTagMessage, revertTagMessage, nextIterationMessage, maven());
         workingCopy.update(getLog());
@@ -0,0 +1,34 @@
+/**
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.prerelease.core;
+
+/**
+ * What a process wants to do with an archive. Only lock mode CHANNEL distinguishes them, lock mode FILE always locks the archive
+ * exclusively.
+ */
+public enum Access {
+    /** Read existing prereleases. Shared archive lock, shared revision locks. */
+    READ,
+
+    /**
+     * Create, promote or remove the prereleases of the revisions passed to Archive.target. Shared archive lock, exclusive revision
+     * locks. Prereleases of other revisions are only touched by wipe, and only if their revision lock is free.
+     */
+    REVISION,
+
+    /** Everything, e.g. move prereleases to other storages. Exclusive archive lock. */
+    EXCLUSIVE
+}
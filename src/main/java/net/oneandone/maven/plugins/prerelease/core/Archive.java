@@ -17,23 +17,34 @@ package net.oneandone.maven.plugins.prerelease.core;
 
 import java.io.IOException;
 import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.maven.plugin.logging.Log;
 import org.apache.maven.project.MavenProject;
 import org.xml.sax.SAXException;
 
 import net.oneandone.maven.plugins.prerelease.util.ChangesXml;
+import net.oneandone.maven.plugins.prerelease.util.Processes;
 import net.oneandone.maven.plugins.prerelease.util.Subversion;
-import net.oneandone.sushi.fs.DirectoryNotFoundException;
 import net.oneandone.sushi.fs.FileNotFoundException;
-import net.oneandone.sushi.fs.ListException;
+import net.oneandone.sushi.fs.GetLastModifiedException;
 import net.oneandone.sushi.fs.MkfileException;
+import net.oneandone.sushi.fs.Node;
 import net.oneandone.sushi.fs.OnShutdown;
 import net.oneandone.sushi.fs.file.FileNode;
+import net.oneandone.sushi.util.Separator;
 import net.oneandone.sushi.xml.XmlException;
 
 /**
@@ -42,7 +53,18 @@ import net.oneandone.sushi.xml.XmlException;
  */
 //
 // primaryStorage             <- defaults to ~/.m2/prereleases
-//   groupId/artifactId.LOCK  <- optional, indicates that a process operates on this archive
+//   groupId/artifactId.LOCK  <- optional, indicates that a process operates on this archive; for lock mode FILE, the holder
+//                               refreshes its last-modified time every HEARTBEAT seconds; contains pid@host token acquired
+//   groupId/artifactId.FENCE <- last fencing token issued for an exclusive lock, see Fence
+//   groupId/artifactId.FENCE<n>  <- last fencing token issued for revision lock n, see Fence
+//   groupId/artifactId.QUEUE/   <- tickets of processes waiting for the lock file, see Tickets
+//   groupId/artifactId.HISTORY  <- how long the last processes held the lock file
+//   groupId/artifactId.LATCH <- operating system lock, only for lock mode CHANNEL
+//   groupId/artifactId.STRIPE<n>  <- revision locks, only for lock mode CHANNEL without exclusive access
+//   groupId/artifactId.INDEX <- maps revisions to storage and state, see Index
+//   groupId/artifactId.INDEX.LATCH <- serializes index updates, only for lock mode CHANNEL without exclusive access
+//   groupId/artifactId.STAGING/    <- private directories for prereleases that are built without holding the lock
+//   groupId/artifactId.TRASH/      <- removed directories, deleted later without lock; one per storage, see Trash
 //   groupId/artifactId/      <- archive directory
 //    |- revision1           <- prerelease directory, ready to promote; promoting the prerelease removes this directory
 //    |     |- tags
@@ -70,126 +92,757 @@ public class Archive implements AutoCloseable {
         return directories;
     }
 
-    public static Archive tryOpen(List<FileNode> directories) {
+    /** directories next to the archive directories that are not archives themselves */
+    private static final String[] INTERNAL_DIRECTORIES = { ".STAGING", ".QUEUE", Trash.SUFFIX };
+
+    /** @return true if the specified directory of a storage is an archive directory, i.e. not one of its internal siblings */
+    public static boolean isArchiveDirectory(Node directory) throws IOException {
+        if (!directory.isDirectory()) {
+            return false;
+        }
+        for (String suffix : INTERNAL_DIRECTORIES) {
+            if (directory.getName().endsWith(suffix)) {
+                return false;
+            }
+        }
+        return !directory.getParent().getName().equals(Blobs.NAME);
+    }
+
+    public static Archive tryOpen(List<FileNode> directories) throws IOException {
+        return tryOpen(directories, LockMode.FILE);
+    }
+
+    public static Archive tryOpen(List<FileNode> directories, LockMode lockMode) throws IOException {
+        return tryOpen(directories, lockMode, 0, null);
+    }
+
+    /** @param log may be null */
+    public static Archive tryOpen(List<FileNode> directories, LockMode lockMode, int lease, Log log) throws IOException {
+        return tryOpen(directories, lockMode, Access.EXCLUSIVE, lease, log);
+    }
+
+    /**
+     * Opens the archive without waiting for the lock.
+     *
+     * @return null if the archive is locked; other problems, e.g. failed recovery, are thrown
+     */
+    public static Archive tryOpen(List<FileNode> directories, LockMode lockMode, Access access, int lease, Log log) throws IOException {
         try {
-            return open(directories, -1, null);
-        } catch (IOException e) {
+            return open(directories, lockMode, access, -1, lease, log);
+        } catch (LockTimeout | MkfileException e) {
             return null;
         }
     }
 
     public static Archive open(List<FileNode> directories, int timeout, Log log) throws IOException {
+        return open(directories, LockMode.FILE, Access.EXCLUSIVE, timeout, log);
+    }
+
+    public static Archive open(List<FileNode> directories, LockMode lockMode, int timeout, Log log) throws IOException {
+        return open(directories, lockMode, Access.EXCLUSIVE, timeout, log);
+    }
+
+    /**
+     * @param access for lock mode FILE, the archive is always locked exclusively; READ still skips recovery.
+     * @param timeout in seconds; -1 to try only once and never wait.
+     * @param log may be null
+     */
+    public static Archive open(List<FileNode> directories, LockMode lockMode, Access access, int timeout, Log log) throws IOException {
+        return open(directories, lockMode, access, timeout, 0, log);
+    }
+
+    /**
+     * @param lease seconds without heartbeat after which a lock file is considered stale and removed by waiters; 0 to never remove
+     *              lock files. Only for lock mode FILE.
+     */
+    public static Archive open(List<FileNode> directories, LockMode lockMode, Access access, int timeout, int lease, Log log)
+            throws IOException {
         Archive archive;
 
-        archive = new Archive(directories);
-        archive.open(timeout, log);
+        archive = new Archive(directories, lockMode, lockMode == LockMode.FILE ? Access.EXCLUSIVE : access, access != Access.READ,
+                timeout, lease, log, false);
+        archive.open();
         return archive;
     }
 
+    /**
+     * Same as open, but the archive is locked when first needed, i.e. by the first method that looks into the archive. Used to build
+     * staged prereleases without holding the lock, see stage().
+     */
+    public static Archive openDeferred(List<FileNode> directories, LockMode lockMode, Access access, int timeout, int lease, Log log) {
+        return new Archive(directories, lockMode, lockMode == LockMode.FILE ? Access.EXCLUSIVE : access, access != Access.READ,
+                timeout, lease, log, true);
+    }
+
+    /** seconds between two heartbeats of a lock file holder */
+    public static final int HEARTBEAT = 10;
+
+    private static final Timer HEARTBEATS = new Timer("prerelease-heartbeat", true);
+
+    /** Deletes the trash of all storages. Does not need the archive lock. */
+    public static void reap(List<FileNode> directories, Deleter deleter) throws IOException {
+        for (FileNode directory : directories) {
+            Trash.reap(Trash.directory(directory), deleter);
+        }
+    }
+
+    /** makes staging directories unique within this process */
+    private static final AtomicInteger STAGED = new AtomicInteger();
+
+    /** number of revision locks per archive; revisions with the same remainder share a lock. */
+    private static final int STRIPES = 16;
+
     private final List<FileNode> directories;
+    private final LockMode lockMode;
+    private final Access access;
+    /** false for read-only access, which must not modify the archive, not even to recover it */
+    private final boolean recover;
+    private final int timeout;
+    private final int lease;
+    /** may be null */
+    private final Log log;
+    private Index index = null;
+    private Journal journal = null;
+    /** only for lock mode CHANNEL */
+    private Latch latch = null;
+    /** revision locks held by this archive, only for lock mode CHANNEL and access other than EXCLUSIVE */
+    private final Map<Integer, Latch> stripes;
+    /** fencing tokens of the revision locks held exclusively */
+    private final Map<Integer, Long> stripeTokens;
+    /** true to open the archive when first needed */
+    private final boolean deferred;
     private boolean opened = false;
     private boolean closed = false;
+    /** when the exclusive lock was acquired; recorded in the lock file */
+    private long openedMillis = 0;
+    /** only for lock mode FILE */
+    private TimerTask heartbeat = null;
+    /** fencing token of the exclusive lock; 0 without exclusive lock */
+    private long token = 0;
 
-    private Archive(List<FileNode> directories) {
+    private Archive(List<FileNode> directories, LockMode lockMode, Access access, boolean recover, int timeout, int lease, Log log,
+            boolean deferred) {
         if (directories.size() == 0) {
             throw new IllegalArgumentException();
         }
         this.directories = directories;
+        this.lockMode = lockMode;
+        this.access = access;
+        this.recover = recover;
+        if (lease != 0 && lease < 3 * HEARTBEAT) {
+            throw new IllegalArgumentException("lease too short: " + lease);
+        }
+        this.timeout = timeout;
+        this.lease = lease;
+        this.log = log;
+        this.deferred = deferred;
+        this.stripes = new HashMap<>();
+        this.stripeTokens = new HashMap<>();
     }
 
-    public Target target(long revision, Subversion.SvnCredentials svnCredentials) {
-        String name;
-        FileNode prerelease;
+    /** Locks the revision as specified by the access this archive was opened for. The lock is held until the archive is closed. */
+    public Target target(long revision, Subversion.SvnCredentials svnCredentials) throws IOException {
+        Index.Entry entry;
 
-        name = Long.toString(revision);
-        for (int i = directories.size() - 1; i >= 0; i--) {
-            prerelease = directories.get(i).join(name);
-            if (i == 0 || prerelease.exists()) {
-                return new Target(prerelease, revision, svnCredentials);
-            }
+        lockRevision(revision);
+        entry = index().refresh().lookup(revision);
+        if (entry == null || entry.state != Index.State.READY) {
+            return new Target(this, 0, node(0, revision), revision, svnCredentials, false);
+        } else {
+            // for the retention
+            index().touch(revision);
+            return new Target(this, entry.level, index().directory(entry), revision, svnCredentials, false);
         }
-        throw new IllegalStateException();
     }
 
-    /** */
-    public TreeMap<Long, FileNode> list() throws ListException, DirectoryNotFoundException {
-        TreeMap<Long, FileNode> result;
-        long revision;
+    /**
+     * Returns a target in a private staging directory next to the primary storage. Neither the archive nor the revision is locked
+     * to create it; Target.publish moves it into the archive.
+     */
+    public Target stage(long revision, Subversion.SvnCredentials svnCredentials) {
+        FileNode directory;
 
-        result = new TreeMap<>();
-        for (FileNode directory : directories) {
-            if (directory.exists()) {
-                for (FileNode prerelease : directory.list()) {
-                    if (!prerelease.getName().equals(Target.REMOVE)) {
-                        revision = Long.parseLong(prerelease.getName());
-                        result.put(revision, prerelease);
-                    }
+        checkWritable();
+        directory = sibling(".STAGING").join(revision + "-" + pid() + "-" + STAGED.incrementAndGet());
+        return new Target(this, 0, directory, revision, svnCredentials, true);
+    }
+
+    /** Checks the storage directories without locking, the result may be outdated. */
+    public boolean contains(long revision) {
+        for (int level = 0; level < directories.size(); level++) {
+            try {
+                if (node(level, revision).exists()) {
+                    return true;
                 }
+            } catch (IOException e) {
+                // unreadable backend marker: treat like a missing prerelease
             }
         }
-        return result;
+        return false;
+    }
+
+    /** @return directory or container of the prerelease in the specified storage; may not exist */
+    private FileNode node(int level, long revision) throws IOException {
+        return Backend.forArchive(directories.get(level)).prerelease(directories.get(level), revision);
+    }
+
+    /** @return directories or containers of all prereleases, regardless of the storage they are in */
+    public TreeMap<Long, FileNode> list() throws IOException {
+        return index().refresh().list();
+    }
+
+    /**
+     * Moves the prerelease for the specified revision into the next storage. Requires exclusive access. If the next storage
+     * has another backend, the prerelease is converted, e.g. packed into a container.
+     *
+     * @return the new prerelease directory or container; null if the prerelease is already in the final storage
+     */
+    public FileNode swap(long revision) throws IOException {
+        return swap(revision, Throttle.NONE);
+    }
+
+    /** @param throttle for copies between file systems or backends */
+    public FileNode swap(long revision, Throttle throttle) throws IOException {
+        Index.Entry entry;
+
+        entry = ready(revision);
+        if (entry.level == directories.size() - 1) {
+            return null;
+        }
+        return move(revision, entry.level + 1, throttle);
+    }
+
+    /**
+     * Moves the prerelease for the specified revision into the specified storage, up or down. Requires exclusive access.
+     *
+     * @param throttle for copies between file systems or backends
+     * @return the new prerelease directory or container; null if the prerelease is already in this storage
+     */
+    public FileNode move(long revision, int level, Throttle throttle) throws IOException {
+        Index.Entry entry;
+        Backend from;
+        Backend to;
+        FileNode src;
+        FileNode dest;
+        String operation;
+        boolean relink;
+
+        entry = ready(revision);
+        if (entry.level == level) {
+            return null;
+        }
+        relink = false;
+        from = index().backend(entry.level);
+        to = index().backend(level);
+        src = index().directory(entry);
+        dest = to.prerelease(directories.get(level), revision);
+        dest.getParent().mkdirsOpt();
+        fence(revision, "move prerelease " + revision);
+        operation = journal().begin(Journal.SWAP, revision, entry.level + " " + level);
+        if (from != to || !move(src, dest)) {
+            // different backends or file systems: copy to a temporary name and rename when complete, then rename the source
+            // into the trash, so recovery can tell a complete copy from a partial delete
+            if (from.isDirectory() && to.isDirectory()) {
+                new Mover(throttle, 1).copy(src, dest);
+                // the copy breaks the links of a deduped source
+                relink = Blobs.forArchive(directories.get(entry.level)).getDirectory().isDirectory();
+            } else {
+                Mover.discard(dest);
+                to.copy(from, src, Mover.temp(dest), throttle);
+                Files.move(Mover.temp(dest).toPath(), dest.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            }
+            journal().step(operation, "copied");
+            fence(revision, "remove the source of prerelease " + revision);
+            Trash.move(directories.get(entry.level), src);
+        }
+        index().put(revision, level, Index.State.READY);
+        journal().commit(operation);
+        if (relink) {
+            Blobs.forArchive(directories.get(level)).dedupPrerelease(dest);
+        }
+        return dest;
+    }
+
+    /** @return entry of the prerelease; checks for exclusive access */
+    private Index.Entry ready(long revision) throws IOException {
+        Index.Entry entry;
+
+        if (access != Access.EXCLUSIVE) {
+            throw new IllegalStateException("moving prereleases needs exclusive access: " + access);
+        }
+        entry = index().lookup(revision);
+        if (entry == null || entry.state != Index.State.READY) {
+            throw new IllegalArgumentException("no prerelease for revision " + revision);
+        }
+        return entry;
+    }
+
+    /**
+     * Moves the prerelease for the specified revision from a cold storage back into the primary storage, so builds and promotion
+     * run on the primary storage. Needs the revision lock, i.e. a target for this revision. Files are copied in parallel and
+     * verified, see StageIn. An archive opened for reading upgrades its revision lock, so readers lock exclusively only if there's
+     * something to move.
+     *
+     * @return the new prerelease directory; null if the prerelease is already in the primary storage
+     */
+    FileNode stageIn(long revision, int threads) throws IOException {
+        Index.Entry entry;
+        Backend from;
+        FileNode src;
+        FileNode dest;
+        String operation;
+
+        if (access == Access.READ) {
+            upgradeRevision(revision);
+        } else {
+            checkWritable();
+            lockRevision(revision);
+        }
+        // the index is not locked while copying: other processes don't touch this revision, and an index rebuild from the
+        // partial copy prefers the source because later storages win
+        entry = index().refresh().lookup(revision);
+        if (entry == null || entry.state != Index.State.READY) {
+            throw new IllegalArgumentException("no prerelease for revision " + revision);
+        }
+        if (entry.level == 0) {
+            return null;
+        }
+        from = index().backend(entry.level);
+        src = index().directory(entry);
+        dest = node(0, revision);
+        dest.getParent().mkdirsOpt();
+        fence(revision, "stage in prerelease " + revision);
+        operation = journal().begin(Journal.STAGE, revision, Integer.toString(entry.level));
+        if (!from.isDirectory() || !move(src, dest)) {
+            try {
+                StageIn.copy(from, src, dest, threads);
+            } catch (IOException e) {
+                // the partial copy is kept under its temporary name to resume the next stage-in
+                journal().abort(operation, e.getMessage());
+                throw e;
+            }
+            journal().step(operation, "copied");
+            fence(revision, "remove the source of prerelease " + revision);
+            Trash.move(directories.get(entry.level), src);
+        }
+        index().put(revision, 0, Index.State.READY);
+        journal().commit(operation);
+        return dest;
+    }
+
+    /** @return false if src and dest are in different file systems */
+    private static boolean move(FileNode src, FileNode dest) {
+        try {
+            Files.move(src.toPath(), dest.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /** @return journal of this archive; also readable without lock */
+    public Journal journal() {
+        if (journal == null) {
+            journal = new Journal(sibling(".JOURNAL"));
+        }
+        return journal;
+    }
+
+    Index index() throws IOException {
+        openDeferred();
+        if (index == null) {
+            // exclusive access: nobody else modifies the index
+            index = Index.load(directories, access == Access.EXCLUSIVE ? null : sibling(".INDEX.LATCH"), timeout, log);
+        }
+        return index;
     }
 
-    public long latest() throws ListException, DirectoryNotFoundException {
+    FileNode directory(int level) {
+        return directories.get(level);
+    }
+
+    /** Invoked before modifying the archive */
+    void checkWritable() {
+        if (access == Access.READ) {
+            throw new IllegalStateException("archive is opened for reading only");
+        }
+    }
+
+    public long latest() throws IOException {
         return list().lastKey();
     }
 
+    /** Locks the revision as specified by the access this archive was opened for; noop if it's already locked. */
+    void lockRevision(long revision) throws IOException {
+        int stripe;
+
+        // the archive is always locked before the revision, otherwise a waiting exclusive lock could dead-lock us
+        openDeferred();
+        if (access != Access.EXCLUSIVE) {
+            stripe = stripe(revision);
+            if (!stripes.containsKey(stripe)) {
+                stripes.put(stripe, Latch.acquire(stripeFile(stripe), access == Access.READ, timeout, log));
+                if (access == Access.REVISION) {
+                    stripeTokens.put(stripe, stripeFence(stripe).next());
+                }
+            }
+        }
+    }
+
+    /**
+     * Replaces the shared revision lock by an exclusive one, which is held until the archive is closed. The shared lock is released
+     * before waiting for the exclusive one - two upgrading readers would dead-lock otherwise - so the caller has to look up the
+     * revision again.
+     */
+    private void upgradeRevision(long revision) throws IOException {
+        int stripe;
+        Latch shared;
+
+        openDeferred();
+        stripe = stripe(revision);
+        shared = stripes.get(stripe);
+        if (shared != null) {
+            if (!shared.isShared()) {
+                return;
+            }
+            stripes.remove(stripe);
+            shared.close();
+        }
+        stripes.put(stripe, Latch.acquire(stripeFile(stripe), false, timeout, log));
+        stripeTokens.put(stripe, stripeFence(stripe).next());
+    }
+
     //--
 
+    private void openDeferred() throws IOException {
+        if (!opened) {
+            if (!deferred) {
+                throw new IllegalStateException("not opened");
+            }
+            if (closed) {
+                throw new IllegalStateException("already closed");
+            }
+            open();
+        }
+    }
+
+    private static int stripe(long revision) {
+        return (int) (revision % STRIPES);
+    }
+
+    private FileNode stripeFile(int stripe) {
+        return sibling(".STRIPE" + stripe);
+    }
+
+    /**
+     * @param locked revision locks acquired by this method
+     * @return true if this archive holds the lock for the specified revision exclusively, or if it can get it without waiting
+     */
+    private boolean tryLockRevision(long revision, Map<Integer, Latch> locked) throws IOException {
+        int stripe;
+
+        if (access == Access.EXCLUSIVE) {
+            return true;
+        }
+        stripe = stripe(revision);
+        if (stripes.containsKey(stripe)) {
+            return !stripes.get(stripe).isShared();
+        }
+        if (!locked.containsKey(stripe)) {
+            try {
+                locked.put(stripe, Latch.acquire(stripeFile(stripe), false, -1, log));
+            } catch (LockTimeout e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     private FileNode lockFile() {
+        return sibling(".LOCK");
+    }
+
+    private FileNode historyFile() {
+        return sibling(".HISTORY");
+    }
+
+    private FileNode latchFile() {
+        return sibling(".LATCH");
+    }
+
+    private FileNode sibling(String suffix) {
         FileNode primary;
 
         primary = directories.get(0);
-        return primary.getParent().join(primary.getName() + ".LOCK");
+        return primary.getParent().join(primary.getName() + suffix);
+    }
+
+    private void open() throws IOException {
+        acquire();
+        if (recover) {
+            try {
+                recover();
+            } catch (IOException e) {
+                // the index rebuild still fixes what recovery couldn't
+                if (log != null) {
+                    log.warn("recovery failed: " + e.getMessage());
+                }
+            }
+        }
     }
 
     /**
-     * @param timeout in seconds; -1 to try only once and never wait.
-     * @param log may be null
+     * Finishes or rolls back journaled operations of processes that died, see Journal. Operations of running processes and
+     * revisions locked by others are left alone. Operations of other hosts are recovered with exclusive access only.
      */
-    private void open(int timeout, Log log) throws IOException {
+    private void recover() throws IOException {
+        Processes processes;
+        Long started;
+        Map<Integer, Latch> locked;
+
+        if (journal().pending().isEmpty()) {
+            if (journal().isFull()) {
+                index().lock();
+                try {
+                    journal().rotateOpt();
+                } finally {
+                    index().unlock();
+                }
+            }
+            return;
+        }
+        processes = null;
+        locked = new HashMap<>();
+        index().lock();
+        try {
+            // again, now that concurrent recoveries are excluded
+            for (Journal.Operation operation : journal().pending()) {
+                if (operation.isOwn()) {
+                    continue;
+                }
+                if (operation.isRemote()) {
+                    // the process cannot be checked; only the exclusive holder knows that nobody works on the archive
+                    if (access != Access.EXCLUSIVE) {
+                        continue;
+                    }
+                } else {
+                    if (processes == null) {
+                        processes = Processes.create(directories.get(0).getWorld());
+                    }
+                    started = processes.started(operation.pid());
+                    if (started != null && started <= operation.begin) {
+                        continue;
+                    }
+                }
+                if (operation.revision != 0 && !tryLockRevision(operation.revision, locked)) {
+                    continue;
+                }
+                recover(operation);
+            }
+        } finally {
+            try {
+                index().unlock();
+            } finally {
+                for (Latch latch : locked.values()) {
+                    latch.close();
+                }
+            }
+        }
+    }
+
+    private void recover(Journal.Operation operation) throws IOException {
+        long revision;
+        Index.Entry entry;
+        FileNode directory;
+        FileNode dest;
+        String[] text;
+        int level;
+        int target;
+        List<Long> removed;
+        String message;
+
+        revision = operation.revision;
+        entry = index().lookup(revision);
+        directory = node(0, revision);
+        switch (operation.name) {
+            case Journal.CREATE:
+                if (entry != null && entry.state == Index.State.READY && entry.level == 0 && directory.isDirectory()) {
+                    Trash.move(directories.get(0), directory);
+                    index().remove(revision);
+                    message = "rolled back";
+                } else {
+                    message = "nothing to roll back";
+                }
+                break;
+            case Journal.PUBLISH:
+                if (directory.isDirectory() && (entry == null || entry.state != Index.State.READY)) {
+                    index().put(revision, 0, Index.State.READY);
+                    message = "finished";
+                } else {
+                    message = "nothing to finish";
+                }
+                break;
+            case Journal.REMOVE:
+                text = operation.text.split(" ");
+                level = Integer.parseInt(text[0]);
+                if (entry != null && entry.state == Index.State.READY && !index().directory(entry).exists()
+                        && directories.get(level).join(Target.REMOVE).isDirectory()) {
+                    index().put(revision, level, Index.State.valueOf(text[1]));
+                    message = "finished";
+                } else {
+                    message = "nothing to finish";
+                }
+                break;
+            case Journal.SWAP:
+            case Journal.STAGE:
+                text = operation.text.trim().split(" ");
+                level = Integer.parseInt(text[0]);
+                if (operation.name.equals(Journal.STAGE)) {
+                    target = 0;
+                } else {
+                    target = text.length > 1 ? Integer.parseInt(text[1]) : level + 1;
+                }
+                directory = node(level, revision);
+                dest = node(target, revision);
+                // copies are renamed when complete, so dest is never partial
+                if (dest.exists()) {
+                    if (directory.exists()) {
+                        Trash.move(directories.get(level), directory);
+                    }
+                    index().put(revision, target, Index.State.READY);
+                    message = "finished";
+                } else if (Mover.temp(dest).exists()) {
+                    message = "partial copy kept to resume";
+                } else {
+                    message = "nothing to finish";
+                }
+                break;
+            case Journal.WIPE:
+                removed = new ArrayList<>();
+                for (String str : Separator.SPACE.split(operation.text)) {
+                    entry = index().lookup(Long.parseLong(str));
+                    if (entry != null && !index().directory(entry).exists()) {
+                        removed.add(entry.revision);
+                    }
+                }
+                if (!removed.isEmpty()) {
+                    index().removeAll(removed);
+                }
+                message = "finished";
+                break;
+            case Journal.PROMOTE:
+                message = "interrupted " + (operation.lastStep() == null ? "before svn commit" : "after step " + operation.lastStep())
+                        + " - check the svn tag and the deployed artifacts";
+                if (log != null) {
+                    log.warn("promote of revision " + revision + " " + message);
+                }
+                break;
+            default:
+                message = "unknown operation";
+                break;
+        }
+        if (log != null) {
+            log.info("recovered " + operation + ": " + message);
+        }
+        journal().abort(operation.id, "recovered: " + message);
+    }
+
+    private void acquire() throws IOException {
         FileNode file;
         int seconds;
+        Tickets tickets;
+        int position;
+        MkfileException busy;
+        long eta;
 
         if (opened) {
             throw new IllegalStateException();
         }
         file = lockFile();
+        if (lockMode == LockMode.CHANNEL) {
+            latch = Latch.acquire(latchFile(), access != Access.EXCLUSIVE, timeout, log);
+            if (access != Access.EXCLUSIVE) {
+                // no lock file: the archive is shared, and operating system locks cannot get stale
+                opened = true;
+                return;
+            }
+            try {
+                // the lock file is not used for locking, it's just a stamp for the locksmith goal
+                OnShutdown.get().deleteAtExit(file);
+                openedMillis = System.currentTimeMillis();
+                token = fence().next();
+                file.writeString(lockContent());
+            } catch (IOException | RuntimeException | Error e) {
+                OnShutdown.get().dontDeleteAtExit(file);
+                latch.close();
+                throw e;
+            }
+            opened = true;
+            if (log != null) {
+                log.debug("latched for pid " + pid());
+            }
+            return;
+        }
+        tickets = null;
         try {
             seconds = 0;
             while (true) {
                 // every time - if someone wiped the primary storage directory
                 file.getParent().mkdirsOpt();
-                try {
-                    file.mkfile();
-                    OnShutdown.get().deleteAtExit(file);
-                    opened = true;
-                    file.writeString(Integer.toString(pid()));
-                    if (log != null) {
-                        log.debug("locked for pid " + pid());
-                    }
-                    return;
-                } catch (MkfileException e) {
-                    if (seconds > timeout) {
+                if (tickets == null) {
+                    tickets = Tickets.enter(sibling(".QUEUE"));
+                }
+                position = tickets.position();
+                busy = null;
+                if (position == 0) {
+                    try {
+                        file.mkfile();
+                        OnShutdown.get().deleteAtExit(file);
+                        opened = true;
+                        openedMillis = System.currentTimeMillis();
+                        token = fence().next();
+                        file.writeString(lockContent());
+                        heartbeat = new Heartbeat(file, lockContent(), log);
+                        HEARTBEATS.schedule(heartbeat, HEARTBEAT * 1000L, HEARTBEAT * 1000L);
                         if (log != null) {
-                            log.warn("Lock timed out after " + seconds + "s.");
+                            log.debug("locked for pid " + pid());
                         }
-                        throw e;
+                        return;
+                    } catch (MkfileException e) {
+                        busy = e;
                     }
-                    if (seconds % 10 == 0) {
-                        if (log != null) {
-                            log.info("Waiting for " + file + ": " + seconds + "s");
-                            log.debug(e);
+                    if (lease > 0 && removeStale(file)) {
+                        // try again immediately
+                        continue;
+                    }
+                }
+                if (seconds > timeout) {
+                    if (log != null) {
+                        log.warn("Lock timed out after " + seconds + "s.");
+                    }
+                    throw busy != null ? busy : new LockTimeout(file, seconds);
+                }
+                if (seconds % 10 == 0) {
+                    if (log != null) {
+                        eta = Tickets.estimate(historyFile(), file, position);
+                        log.info("Waiting for " + file + ": " + seconds + "s, queue position " + (position + 1)
+                                + (eta < 0 ? "" : ", estimated wait " + eta + "s"));
+                        if (busy != null) {
+                            log.debug(busy);
                         }
                     }
-                    seconds++;
-                    Thread.sleep(1000);
                 }
+                seconds++;
+                Thread.sleep(1000);
             }
         } catch (InterruptedException e) {
             if (log != null) {
                 log.warn("interrupted");
             }
+        } finally {
+            if (tickets != null) {
+                tickets.leave();
+            }
         }
     }
 
@@ -197,13 +850,52 @@ public class Archive implements AutoCloseable {
     public void close() throws Exception {
         FileNode file;
 
-        if (!opened) {
-            throw new IllegalStateException("not opened");
-        }
         if (closed) {
             throw new IllegalStateException("already closed");
         }
+        if (!opened) {
+            if (!deferred) {
+                throw new IllegalStateException("not opened");
+            }
+            // never needed the lock
+            closed = true;
+            return;
+        }
         file = lockFile();
+        if (latch != null) {
+            try {
+                for (Latch stripe : stripes.values()) {
+                    stripe.close();
+                }
+                stripes.clear();
+                stripeTokens.clear();
+                if (access == Access.EXCLUSIVE) {
+                    file.deleteFileOpt();
+                    OnShutdown.get().dontDeleteAtExit(file);
+                }
+            } finally {
+                latch.close();
+                closed = true;
+            }
+            return;
+        }
+        heartbeat.cancel();
+        try {
+            Tickets.record(historyFile(), System.currentTimeMillis() - openedMillis);
+        } catch (IOException e) {
+            // statistics only
+            if (log != null) {
+                log.debug(e);
+            }
+        }
+        if (!isOwner(file)) {
+            if (log != null) {
+                log.warn("lock file has been taken over by another process, not deleting it: " + file);
+            }
+            OnShutdown.get().dontDeleteAtExit(file);
+            closed = true;
+            return;
+        }
         file.deleteFile();
         // because another thread waiting for this lock might create this file again.
         // The shutdown hook must not delete the file created by this other thread.
@@ -211,6 +903,136 @@ public class Archive implements AutoCloseable {
         closed = true;
     }
 
+    /**
+     * Removes the lock file if its heartbeat is older than the lease. The lock file is renamed before it's checked again, so only
+     * one waiter removes it, and a lock file that was just re-created is not removed.
+     *
+     * @return true if the lock file was stale and has been removed
+     */
+    private boolean removeStale(FileNode file) throws IOException {
+        FileNode stale;
+        long age;
+        String owner;
+
+        try {
+            age = System.currentTimeMillis() - file.getLastModified();
+        } catch (GetLastModifiedException e) {
+            // just removed
+            return false;
+        }
+        if (age < lease * 1000L) {
+            return false;
+        }
+        stale = file.getParent().join(file.getName() + "." + pid() + "-" + STAGED.incrementAndGet() + ".stale");
+        try {
+            Files.move(file.toPath(), stale.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // someone else was faster
+            return false;
+        }
+        age = System.currentTimeMillis() - stale.getLastModified();
+        if (age < lease * 1000L) {
+            // we've renamed a lock file that was created or refreshed after our first check - give it back
+            try {
+                Files.move(stale.toPath(), file.toPath());
+            } catch (IOException e) {
+                throw new IOException("cannot restore lock file " + file + " from " + stale, e);
+            }
+            return false;
+        }
+        owner = stale.readString().trim();
+        stale.deleteFile();
+        if (log != null) {
+            log.warn("removed stale lock file " + file + " of " + owner + ", last heartbeat " + (age / 1000) + "s ago");
+        }
+        return true;
+    }
+
+    private boolean isOwner(FileNode file) {
+        try {
+            return lockContent().equals(file.readString().trim());
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /** The acquisition time is in the file because the heartbeat refreshes its last-modified time. */
+    private String lockContent() {
+        return Fence.owner() + " " + token + " " + openedMillis;
+    }
+
+    private Fence fence() {
+        return new Fence(sibling(".FENCE"));
+    }
+
+    private Fence stripeFence(int stripe) {
+        return new Fence(sibling(".FENCE" + stripe));
+    }
+
+    /** @return fencing token of the exclusive lock; 0 without exclusive lock */
+    public long token() {
+        return token;
+    }
+
+    /** @return fencing token of the lock that protects modifications of the revision; 0 if there is none */
+    public long token(long revision) {
+        Long result;
+
+        if (access == Access.EXCLUSIVE) {
+            return token;
+        }
+        result = stripeTokens.get(stripe(revision));
+        return result == null ? 0 : result;
+    }
+
+    /**
+     * Invoked before renaming prereleases or writing descriptors: checks the token of the archive lock for exclusive access, and the
+     * token of the revision lock otherwise.
+     *
+     * @throws Fenced if this process has lost its lock to another process
+     */
+    void fence(long revision, String what) throws IOException {
+        if (access == Access.EXCLUSIVE) {
+            fence().check(token, what);
+        } else {
+            stripeFence(stripe(revision)).check(token(revision), what);
+        }
+    }
+
+    /**
+     * Refreshes the last-modified time of the lock file to tell waiters that its holder is alive. Stops if the lock file has been
+     * taken over, so the new holder's lock doesn't look alive because of us.
+     */
+    private static class Heartbeat extends TimerTask {
+        private final FileNode file;
+        private final String content;
+        private final Log log;
+
+        public Heartbeat(FileNode file, String content, Log log) {
+            this.file = file;
+            this.content = content;
+            this.log = log;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (!content.equals(file.readString().trim())) {
+                    if (log != null) {
+                        log.warn("lock file " + file + " has been taken over, lock lost");
+                    }
+                    cancel();
+                    return;
+                }
+                file.setLastModified(System.currentTimeMillis());
+            } catch (IOException e) {
+                if (log != null) {
+                    log.warn("cannot refresh lock file " + file + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
     //--
 
     private static int pid = 0;
@@ -249,21 +1071,235 @@ public class Archive implements AutoCloseable {
      * @param keep number of prereleases after this method
      */
     public void wipe(int keep) throws IOException {
-        TreeMap<Long, FileNode> prereleases;
-        FileNode d;
-
         if (keep < 1) {
             throw new IllegalArgumentException("keep " + keep);
         }
-        for (FileNode directory : directories) {
-            d = directory.join(Target.REMOVE);
-            if (d.isDirectory()) {
-                d.deleteTree();
+        wipe(Retention.keep(keep));
+    }
+
+    /**
+     * Moves all prereleases scheduled for removal and all prereleases selected by the retention into the trash. Unless the archive
+     * is opened exclusively, prereleases locked by other processes are skipped.
+     */
+    public void wipe(Retention retention) throws IOException {
+        List<Index.Entry> removed;
+        Map<Integer, Latch> locked;
+        FileNode d;
+
+        checkWritable();
+        locked = new HashMap<>();
+        try {
+            if (retention.needsSizes()) {
+                // outside of the index lock because it walks directory trees
+                computeSizes(locked);
+            }
+            index().lock();
+            try {
+                for (int level = 0; level < directories.size(); level++) {
+                    d = directories.get(level).join(Target.REMOVE);
+                    if (d.isDirectory()) {
+                        Trash.move(directories.get(level), d);
+                        index().removeScheduled(level);
+                    }
+                }
+                discardCopies(locked);
+                removed = new ArrayList<>();
+                for (Index.Entry entry : retention.select(index().ready(), directories.size(), System.currentTimeMillis())) {
+                    if (tryLockRevision(entry.revision, locked)) {
+                        removed.add(entry);
+                    } else if (log != null) {
+                        log.info("skipped locked prerelease " + index().directory(entry));
+                    }
+                }
+                remove(removed);
+            } finally {
+                index().unlock();
+            }
+        } finally {
+            for (Latch latch : locked.values()) {
+                latch.close();
             }
         }
-        prereleases = list();
-        while (prereleases.size() > keep) {
-            prereleases.remove(prereleases.firstKey()).deleteTree();
+    }
+
+    /**
+     * Used by the gc goal.
+     *
+     * @param sizes true to compute missing sizes
+     * @return all prereleases
+     */
+    public List<Index.Entry> prereleases(boolean sizes) throws IOException {
+        Map<Integer, Latch> locked;
+
+        if (sizes) {
+            checkWritable();
+            locked = new HashMap<>();
+            try {
+                computeSizes(locked);
+            } finally {
+                for (Latch latch : locked.values()) {
+                    latch.close();
+                }
+            }
+        }
+        return index().refresh().ready();
+    }
+
+    /**
+     * Verifies the recorded checksums of a prerelease without touching its access time. Locks the revision.
+     *
+     * @param threads number of files hashed in parallel
+     * @return problems found, empty if the prerelease is intact; null if it has no checksums or no longer exists
+     */
+    public List<String> scrub(long revision, int threads) throws IOException {
+        Index.Entry entry;
+
+        lockRevision(revision);
+        entry = index().refresh().lookup(revision);
+        if (entry == null || entry.state != Index.State.READY) {
+            return null;
+        }
+        return new Checksums(threads).verify(index().backend(entry.level), index().directory(entry));
+    }
+
+    /**
+     * Used by the stats goal. Sizes are computed once and cached in the index; create caches the size of new prereleases, swap
+     * keeps it, and removed prereleases drop out of the index, so this is usually a plain index lookup.
+     *
+     * @return usage of every storage, ordered by level
+     */
+    public List<Usage> usage() throws IOException {
+        List<Usage> result;
+        Map<Long, Long> sizes;
+        Usage usage;
+        long size;
+
+        prereleases(true);
+        result = new ArrayList<>();
+        for (int level = 0; level < directories.size(); level++) {
+            result.add(new Usage(level));
+        }
+        sizes = new HashMap<>();
+        try (Sizer sizer = new Sizer(Sizer.THREADS)) {
+            for (Index.Entry entry : index().refresh().entries()) {
+                usage = result.get(entry.level);
+                if (entry.state == Index.State.READY) {
+                    usage.prerelease(entry.revision, entry.size);
+                } else {
+                    size = entry.size;
+                    if (size < 0) {
+                        try {
+                            size = sizer.size(index().directory(entry).toPath());
+                            sizes.put(entry.revision, size);
+                        } catch (IOException e) {
+                            // moved concurrently
+                        }
+                    }
+                    usage.remove(size);
+                }
+            }
+        }
+        if (!sizes.isEmpty()) {
+            index().sizes(sizes);
+        }
+        return result;
+    }
+
+    /**
+     * Moves the prerelease into the trash. Used by the gc goal, needs exclusive access.
+     *
+     * @return false if there's no such prerelease
+     */
+    public boolean evict(long revision) throws IOException {
+        Index.Entry entry;
+
+        if (access != Access.EXCLUSIVE) {
+            throw new IllegalStateException("evict needs exclusive access: " + access);
+        }
+        entry = index().lookup(revision);
+        if (entry == null || entry.state != Index.State.READY) {
+            return false;
+        }
+        remove(Collections.singletonList(entry));
+        return true;
+    }
+
+    /** Moves prereleases into the trash and removes them from the index. Caller holds the revision locks. */
+    private void remove(List<Index.Entry> entries) throws IOException {
+        List<Long> revisions;
+        String operation;
+
+        if (entries.isEmpty()) {
+            return;
+        }
+        revisions = new ArrayList<>();
+        for (Index.Entry entry : entries) {
+            revisions.add(entry.revision);
+        }
+        operation = journal().begin(Journal.WIPE, 0, Separator.SPACE.join(revisions));
+        for (Index.Entry entry : entries) {
+            Trash.move(directories.get(entry.level), index().directory(entry));
+        }
+        index().removeAll(revisions);
+        journal().commit(operation);
+    }
+
+    /**
+     * Deletes partial copies (see Mover) that cannot be resumed because their prerelease has been removed or already moved.
+     * Caller holds the index lock.
+     */
+    private void discardCopies(Map<Integer, Latch> locked) throws IOException {
+        FileNode directory;
+        long revision;
+        Index.Entry entry;
+
+        for (int level = 0; level < directories.size(); level++) {
+            directory = directories.get(level);
+            if (!directory.isDirectory()) {
+                continue;
+            }
+            for (FileNode file : directory.list()) {
+                revision = Mover.revision(file);
+                if (revision == -1) {
+                    continue;
+                }
+                entry = index().lookup(revision);
+                if ((entry == null || entry.state != Index.State.READY || entry.level == level)
+                        && tryLockRevision(revision, locked) && file.exists()) {
+                    if (file.isDirectory()) {
+                        Trash.move(directory, file);
+                    } else {
+                        file.deleteFile();
+                    }
+                }
+            }
+        }
+    }
+
+    /** Computes and caches missing sizes. Skips prereleases locked by other processes because they might be incomplete. */
+    private void computeSizes(Map<Integer, Latch> locked) throws IOException {
+        Map<Long, Long> sizes;
+
+        sizes = new HashMap<>();
+        try (Sizer sizer = new Sizer(Sizer.THREADS)) {
+            for (Index.Entry entry : index().refresh().ready()) {
+                if (entry.size < 0 && tryLockRevision(entry.revision, locked)) {
+                    sizes.put(entry.revision, sizer.size(index().directory(entry).toPath()));
+                }
+            }
+        }
+        if (!sizes.isEmpty()) {
+            index().sizes(sizes);
+        }
+    }
+
+    /**
+     * @return bytes of all files in the tree, symlinks are not followed. Files linked to a blob count with their share, i.e. the
+     * size divided by the number of prereleases referencing the blob
+     */
+    public static long size(Path root) throws IOException {
+        try (Sizer sizer = new Sizer(1)) {
+            return sizer.size(root);
         }
     }
 }
@@ -0,0 +1,402 @@
+/**
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.prerelease.core;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Enumeration;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import net.oneandone.sushi.fs.Node;
+import net.oneandone.sushi.fs.file.FileNode;
+
+/**
+ * How prereleases are stored in one storage. The backend of a storage is recorded in the file storage/.BACKEND, so all processes
+ * agree on it; storages without this file are directory storages. The first storage is always a directory storage because
+ * prereleases are created and built there.
+ */
+public abstract class Backend {
+    public static final String MARKER = ".BACKEND";
+
+    public static final Backend DIRECTORY = new Directory();
+    public static final Backend CONTAINER = new Container();
+
+    /** @return backend for the specified name as used in the prerelease.storages parameter */
+    public static Backend lookup(String name) {
+        if (DIRECTORY.getName().equals(name)) {
+            return DIRECTORY;
+        }
+        if (CONTAINER.getName().equals(name)) {
+            return CONTAINER;
+        }
+        throw new IllegalArgumentException("unknown storage backend: " + name);
+    }
+
+    public static Backend forStorage(FileNode storage) throws IOException {
+        FileNode marker;
+
+        marker = storage.join(MARKER);
+        return marker.exists() ? lookup(marker.readString().trim()) : DIRECTORY;
+    }
+
+    /** @param archiveDirectory storage/groupId/artifactId */
+    public static Backend forArchive(FileNode archiveDirectory) throws IOException {
+        return forStorage(archiveDirectory.getParent().getParent());
+    }
+
+    /** @return backend of a "name:" prefix of a prerelease.storages entry; null if the entry has no backend prefix */
+    public static Backend prefixOpt(String storage) {
+        for (Backend backend : new Backend[] { DIRECTORY, CONTAINER }) {
+            if (storage.startsWith(backend.getName() + ":")) {
+                return backend;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Records the backend of a storage when it's used for the first time. Fails if the storage already uses another backend, or if
+     * it already holds archives: their prereleases would become invisible to the new backend and never be wiped or reaped.
+     */
+    public static void init(FileNode storage, Backend backend) throws IOException {
+        Backend existing;
+
+        existing = forStorage(storage);
+        if (existing == backend) {
+            return;
+        }
+        if (storage.join(MARKER).exists()) {
+            throw new IOException(storage + ": configured as " + backend.getName() + " storage, but it's a "
+                    + existing.getName() + " storage");
+        }
+        if (hasArchives(storage)) {
+            throw new IOException(storage + ": configured as " + backend.getName() + " storage, but it already holds "
+                    + existing.getName() + " prereleases - swap or remove them first, or use a new storage directory");
+        }
+        storage.mkdirsOpt();
+        storage.join(MARKER).writeString(backend.getName());
+    }
+
+    private static boolean hasArchives(FileNode storage) throws IOException {
+        if (!storage.exists()) {
+            return false;
+        }
+        for (Node candidate : storage.find("*/*")) {
+            if (Archive.isArchiveDirectory(candidate)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    //--
+
+    public abstract String getName();
+
+    /** @return true if prereleases are plain directories that can be used in place */
+    public abstract boolean isDirectory();
+
+    /** @return file or directory of the specified prerelease; may not exist */
+    public abstract FileNode prerelease(FileNode archiveDirectory, long revision);
+
+    /** @return revision of the prerelease stored in node; -1 if node is not a prerelease, e.g. REMOVE */
+    public abstract long revision(FileNode node);
+
+    /** @param path relative to the prerelease directory */
+    public abstract InputStream createInputStream(FileNode prerelease, String path) throws IOException;
+
+    /** Copies a prerelease stored by the specified backend. Dest does not exist. */
+    public abstract void copy(Backend from, FileNode src, FileNode dest, Throttle throttle) throws IOException;
+
+    @Override
+    public String toString() {
+        return getName();
+    }
+
+    /** Copies in chunks of 64 KB, each chunk is throttled. */
+    static void copy(InputStream src, OutputStream dest, Throttle throttle) throws IOException {
+        byte[] buffer;
+        int count;
+
+        buffer = new byte[65536];
+        while (true) {
+            count = src.read(buffer);
+            if (count == -1) {
+                return;
+            }
+            throttle.bytes(count);
+            dest.write(buffer, 0, count);
+        }
+    }
+
+    //--
+
+    /** Every prerelease is a directory named by its revision. */
+    public static class Directory extends Backend {
+        @Override
+        public String getName() {
+            return "directory";
+        }
+
+        @Override
+        public boolean isDirectory() {
+            return true;
+        }
+
+        @Override
+        public FileNode prerelease(FileNode archiveDirectory, long revision) {
+            return archiveDirectory.join(Long.toString(revision));
+        }
+
+        @Override
+        public long revision(FileNode node) {
+            try {
+                return Long.parseLong(node.getName());
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        @Override
+        public InputStream createInputStream(FileNode prerelease, String path) throws IOException {
+            return prerelease.join(path).createInputStream();
+        }
+
+        @Override
+        public void copy(Backend from, FileNode src, FileNode dest, Throttle throttle) throws IOException {
+            if (from.isDirectory()) {
+                copyTree(src.toPath(), dest.toPath(), throttle);
+            } else {
+                Container.unpack(src, dest, throttle);
+            }
+        }
+
+        /** Copies directories, files and symlinks; keeps executable flags and last-modified times. */
+        public static void copyTree(final Path src, final Path dest, final Throttle throttle) throws IOException {
+            Files.walkFileTree(src, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                    throttle.file();
+                    Files.createDirectory(dest.resolve(src.relativize(dir)));
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    Path target;
+
+                    target = dest.resolve(src.relativize(file));
+                    throttle.file();
+                    if (attrs.isSymbolicLink()) {
+                        Files.createSymbolicLink(target, Files.readSymbolicLink(file));
+                    } else {
+                        try (InputStream in = Files.newInputStream(file); OutputStream out = Files.newOutputStream(target)) {
+                            copy(in, out, throttle);
+                        }
+                        if (Files.isExecutable(file)) {
+                            target.toFile().setExecutable(true);
+                        }
+                        Files.setLastModifiedTime(target, attrs.lastModifiedTime());
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+    }
+
+    /**
+     * Every prerelease is a single zip file named revision.zip. Moving a prerelease into this storage is one sequential write, and
+     * the central directory of the zip file is an index to read single files without unpacking. Symlinks and executable files
+     * are marked with entry comments.
+     */
+    public static class Container extends Backend {
+        private static final String SUFFIX = ".zip";
+        private static final String LINK = "link";
+        private static final String EXECUTABLE = "exec";
+
+        @Override
+        public String getName() {
+            return "zip";
+        }
+
+        @Override
+        public boolean isDirectory() {
+            return false;
+        }
+
+        @Override
+        public FileNode prerelease(FileNode archiveDirectory, long revision) {
+            return archiveDirectory.join(revision + SUFFIX);
+        }
+
+        @Override
+        public long revision(FileNode node) {
+            String name;
+
+            name = node.getName();
+            if (!name.endsWith(SUFFIX)) {
+                return -1;
+            }
+            try {
+                return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        @Override
+        public InputStream createInputStream(FileNode prerelease, String path) throws IOException {
+            ByteArrayOutputStream dest;
+            ZipEntry entry;
+
+            try (ZipFile zip = new ZipFile(prerelease.toPath().toFile())) {
+                entry = zip.getEntry(path);
+                if (entry == null) {
+                    throw new FileNotFoundException(prerelease + ": " + path);
+                }
+                dest = new ByteArrayOutputStream();
+                try (InputStream src = zip.getInputStream(entry)) {
+                    copy(src, dest, Throttle.NONE);
+                }
+            }
+            return new ByteArrayInputStream(dest.toByteArray());
+        }
+
+        @Override
+        public void copy(Backend from, FileNode src, FileNode dest, Throttle throttle) throws IOException {
+            if (from.isDirectory()) {
+                pack(src.toPath(), dest.toPath(), throttle);
+            } else {
+                throttle.file();
+                try (InputStream in = src.createInputStream(); OutputStream out = dest.createOutputStream()) {
+                    copy(in, out, throttle);
+                }
+            }
+        }
+
+        public static void pack(final Path src, Path dest, final Throttle throttle) throws IOException {
+            try (final ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(dest), 65536))) {
+                Files.walkFileTree(src, new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                        if (!dir.equals(src)) {
+                            zip.putNextEntry(entry(src, dir, attrs, "/", null));
+                            zip.closeEntry();
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                        throttle.file();
+                        if (attrs.isSymbolicLink()) {
+                            zip.putNextEntry(entry(src, file, attrs, "", LINK));
+                            zip.write(Files.readSymbolicLink(file).toString().getBytes(StandardCharsets.UTF_8));
+                        } else {
+                            zip.putNextEntry(entry(src, file, attrs, "", Files.isExecutable(file) ? EXECUTABLE : null));
+                            try (InputStream in = Files.newInputStream(file)) {
+                                copy(in, zip, throttle);
+                            }
+                        }
+                        zip.closeEntry();
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            }
+        }
+
+        private static ZipEntry entry(Path root, Path path, BasicFileAttributes attrs, String suffix, String comment) {
+            ZipEntry result;
+
+            result = new ZipEntry(root.relativize(path).toString().replace('\\', '/') + suffix);
+            result.setTime(attrs.lastModifiedTime().toMillis());
+            if (comment != null) {
+                result.setComment(comment);
+            }
+            return result;
+        }
+
+        public static boolean isLink(ZipEntry entry) {
+            return LINK.equals(entry.getComment());
+        }
+
+        public static boolean isExecutable(ZipEntry entry) {
+            return EXECUTABLE.equals(entry.getComment());
+        }
+
+        public static Path readLink(InputStream src) throws IOException {
+            ByteArrayOutputStream link;
+
+            link = new ByteArrayOutputStream();
+            copy(src, link, Throttle.NONE);
+            return Paths.get(new String(link.toByteArray(), StandardCharsets.UTF_8));
+        }
+
+        public static void unpack(FileNode src, FileNode dest, Throttle throttle) throws IOException {
+            Enumeration<? extends ZipEntry> entries;
+            ZipEntry entry;
+            Path root;
+            Path path;
+
+            root = dest.toPath();
+            Files.createDirectory(root);
+            try (ZipFile zip = new ZipFile(src.toPath().toFile())) {
+                entries = zip.entries();
+                while (entries.hasMoreElements()) {
+                    entry = entries.nextElement();
+                    path = root.resolve(entry.getName());
+                    if (!path.normalize().startsWith(root)) {
+                        throw new IOException(src + ": invalid entry " + entry.getName());
+                    }
+                    if (entry.isDirectory()) {
+                        Files.createDirectories(path);
+                        continue;
+                    }
+                    Files.createDirectories(path.getParent());
+                    throttle.file();
+                    try (InputStream in = zip.getInputStream(entry)) {
+                        if (isLink(entry)) {
+                            Files.createSymbolicLink(path, readLink(in));
+                            continue;
+                        }
+                        try (OutputStream out = Files.newOutputStream(path)) {
+                            copy(in, out, throttle);
+                        }
+                    }
+                    if (isExecutable(entry)) {
+                        path.toFile().setExecutable(true);
+                    }
+                    Files.setLastModifiedTime(path, FileTime.fromMillis(entry.getTime()));
+                }
+            }
+        }
+    }
+}
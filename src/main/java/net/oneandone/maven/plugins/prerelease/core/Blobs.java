@@ -0,0 +1,258 @@
+/**
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.prerelease.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import net.oneandone.sushi.fs.file.FileNode;
+
+/**
+ * Content-addressed store of artifact and svn pristine files, one per storage: storage/.BLOBS/ab/abcdef..., named by the SHA-256
+ * (artifacts) or SHA-1 (pristines) of the content. Files of prereleases are hard links to blobs, so identical files of different
+ * prereleases share their disk space.
+ * The link count of a blob is its reference count: removing a prerelease just removes links, and blobs with no other link than
+ * the one in the store are deleted by collect. Blobs are never modified; promote unshares artifacts before moving them into
+ * the local repository.
+ */
+public class Blobs {
+    public static final String NAME = ".BLOBS";
+
+    /** smaller files are not worth a blob */
+    public static final long MIN_SIZE = 4096;
+
+    private static final String PRISTINE_SUFFIX = ".svn-base";
+
+    /** @param archiveDirectory storage/groupId/artifactId */
+    public static Blobs forArchive(FileNode archiveDirectory) {
+        return forStorage(archiveDirectory.getParent().getParent());
+    }
+
+    public static Blobs forStorage(FileNode storage) {
+        return new Blobs(storage.join(NAME));
+    }
+
+    /** @return number of hard links to the file; 1 if the file system does not report link counts */
+    public static int links(Path file) throws IOException {
+        try {
+            return (Integer) Files.getAttribute(file, "unix:nlink", LinkOption.NOFOLLOW_LINKS);
+        } catch (UnsupportedOperationException | IllegalArgumentException e) {
+            return 1;
+        }
+    }
+
+    /** Replaces a shared file by a private copy, so it can be modified without modifying the blob. */
+    public static void unshare(Path file) throws IOException {
+        Path tmp;
+
+        if (links(file) > 1) {
+            tmp = file.resolveSibling(file.getFileName() + ".unshare");
+            Files.copy(file, tmp, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    //--
+
+    private final FileNode directory;
+
+    public Blobs(FileNode directory) {
+        this.directory = directory;
+    }
+
+    public FileNode getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Links the artifacts and the svn pristines of the tag checkout of a prerelease directory to blobs.
+     *
+     * @return bytes saved
+     */
+    public long dedupPrerelease(FileNode prerelease) throws IOException {
+        return dedup(prerelease.join("artifacts")) + dedupPristines(prerelease.join("tags", ".svn", "pristine"));
+    }
+
+    /**
+     * Replaces the files of the directory tree by links to blobs. Files on another file system than the store are left alone.
+     *
+     * @return bytes saved, i.e. the size of the files linked to blobs that already existed
+     */
+    public long dedup(FileNode root) throws IOException {
+        long result;
+
+        result = 0;
+        if (!root.isDirectory()) {
+            return result;
+        }
+        for (FileNode file : root.list()) {
+            if (file.isDirectory()) {
+                result += dedup(file);
+            } else {
+                result += dedupFile(file.toPath());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Replaces the pristine files of a Subversion working copy by links to blobs. Pristines are named by the SHA-1 of their content,
+     * which is used as the blob name, so there's no need to hash them again. Subversion never modifies pristines, it adds new ones
+     * and deletes unused ones, so the working copy stays fully usable.
+     *
+     * @param pristine the .svn/pristine directory of a working copy
+     * @return bytes saved
+     */
+    public long dedupPristines(FileNode pristine) throws IOException {
+        long result;
+        String name;
+        BasicFileAttributes attrs;
+
+        result = 0;
+        if (!pristine.isDirectory()) {
+            return result;
+        }
+        for (FileNode prefix : pristine.list()) {
+            if (!prefix.isDirectory()) {
+                continue;
+            }
+            for (FileNode file : prefix.list()) {
+                name = file.getName();
+                if (!name.endsWith(PRISTINE_SUFFIX)) {
+                    continue;
+                }
+                name = name.substring(0, name.length() - PRISTINE_SUFFIX.length());
+                if (name.length() != 40) {
+                    continue;
+                }
+                attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                if (attrs.isRegularFile() && attrs.size() > 0 && links(file.toPath()) == 1) {
+                    result += link(file.toPath(), attrs, name);
+                }
+            }
+        }
+        return result;
+    }
+
+    private long dedupFile(Path file) throws IOException {
+        BasicFileAttributes attrs;
+
+        attrs = Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        if (!attrs.isRegularFile() || attrs.size() < MIN_SIZE || links(file) > 1) {
+            return 0;
+        }
+        return link(file, attrs, sha256(file));
+    }
+
+    /** @return bytes saved */
+    private long link(Path file, BasicFileAttributes attrs, String hash) throws IOException {
+        Path blob;
+        Path tmp;
+
+        blob = directory.join(hash.substring(0, 2), hash).toPath();
+        Files.createDirectories(blob.getParent());
+        tmp = file.resolveSibling(file.getFileName() + ".dedup");
+        // a second attempt if collect deleted the blob concurrently
+        for (int i = 0; i < 2; i++) {
+            try {
+                Files.createLink(blob, file);
+                return 0;
+            } catch (FileAlreadyExistsException e) {
+                // fall-through
+            } catch (FileSystemException e) {
+                // different file system, too many links, no link support
+                return 0;
+            }
+            if (Files.size(blob) != attrs.size()) {
+                // modified blob, don't spread it
+                return 0;
+            }
+            try {
+                Files.createLink(tmp, blob);
+            } catch (NoSuchFileException e) {
+                continue;
+            } catch (FileSystemException e) {
+                return 0;
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return attrs.size();
+        }
+        return 0;
+    }
+
+    /**
+     * Deletes blobs that are not referenced by any prerelease. Not locked: a blob deleted while being linked is harmless because
+     * the content lives on in the link.
+     *
+     * @return number of blobs deleted
+     */
+    public int collect(Deleter deleter) throws IOException {
+        int result;
+
+        result = 0;
+        if (!directory.isDirectory()) {
+            return result;
+        }
+        for (FileNode prefix : directory.list()) {
+            for (FileNode blob : prefix.list()) {
+                if (links(blob.toPath()) == 1) {
+                    deleter.delete(blob.toPath());
+                    result++;
+                }
+            }
+        }
+        return result;
+    }
+
+    private static String sha256(Path file) throws IOException {
+        MessageDigest digest;
+        byte[] buffer;
+        int count;
+        StringBuilder result;
+
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        buffer = new byte[65536];
+        try (InputStream src = Files.newInputStream(file)) {
+            while (true) {
+                count = src.read(buffer);
+                if (count == -1) {
+                    break;
+                }
+                digest.update(buffer, 0, count);
+            }
+        }
+        result = new StringBuilder();
+        for (byte b : digest.digest()) {
+            result.append(Character.forDigit((b >> 4) & 0xf, 16));
+            result.append(Character.forDigit(b & 0xf, 16));
+        }
+        return result.toString();
+    }
+}
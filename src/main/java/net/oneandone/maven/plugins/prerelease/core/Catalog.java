@@ -0,0 +1,519 @@
+/**
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.prerelease.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.maven.plugin.logging.Log;
+
+import net.oneandone.sushi.fs.file.FileNode;
+
+/**
+ * Host-wide catalog of all prereleases of all archives, stored in the first storage. Records hold the index fields and the
+ * descriptor fields needed for queries, so queries over all prereleases don't touch the archive directories.
+ *
+ * The catalog is a binary base file with records sorted by groupId, artifactId and revision - lookups of one archive are a binary
+ * search in the memory-mapped file - and a log. Every state change of an index (see Index) appends all records of its archive to
+ * the log, which replace the records of this archive in the base file; access times and sizes are not propagated, so the accessed
+ * field is as of the last state change. Descriptors are read only for records without descriptor fields. When the log outgrows
+ * the base file, the appending process merges it into a new base file with the next generation, and the log of the previous
+ * generation is deleted; readers of the old base file still find its log. Files are renamed into place or appended with a single
+ * write, so readers don't need a lock. Writers serialize with a latch file, it's never acquired while holding an index lock. The
+ * catalog is a cache: if it's missing or outdated, the query goal rebuilds it from the archives.
+ *
+ * Base format: magic, version, generation, count, count record offsets, records. Log format: blocks of length, groupId,
+ * artifactId, count, records. Strings are stored as unsigned short length and UTF-8 bytes.
+ */
+public class Catalog {
+    public static final String FILE = ".CATALOG";
+
+    /** minimum log size for merging it into the base file */
+    public static final long COMPACT = 256 * 1024;
+
+    private static final int MAGIC = 0x50524354;
+    private static final int VERSION = 2;
+    private static final int HEADER = 16;
+
+    /** Catalog entry of one prerelease. */
+    public static class Record implements Comparable<Record> {
+        public final String groupId;
+        public final String artifactId;
+        public final long revision;
+        public final int level;
+        public final Index.State state;
+        /** as of the last state change */
+        public final long accessed;
+        /** release version; empty if the prerelease has no descriptor (yet) */
+        public final String version;
+        public final String svnOrig;
+        public final String svnTag;
+
+        public Record(String groupId, String artifactId, long revision, int level, Index.State state, long accessed,
+                String version, String svnOrig, String svnTag) {
+            this.groupId = groupId;
+            this.artifactId = artifactId;
+            this.revision = revision;
+            this.level = level;
+            this.state = state;
+            this.accessed = accessed;
+            this.version = version;
+            this.svnOrig = svnOrig;
+            this.svnTag = svnTag;
+        }
+
+        public boolean hasDescriptor() {
+            return !version.isEmpty();
+        }
+
+        public boolean matches(String group, String artifact) {
+            return (group == null || groupId.equals(group)) && (artifact == null || artifactId.equals(artifact));
+        }
+
+        @Override
+        public int compareTo(Record other) {
+            return compare(groupId, artifactId, revision, other.groupId, other.artifactId, other.revision);
+        }
+
+        @Override
+        public String toString() {
+            return groupId + ":" + artifactId + " " + revision + " " + state + " storage " + (level + 1)
+                    + (hasDescriptor() ? " " + version + " " + svnOrig : "");
+        }
+    }
+
+    public static Catalog forStorage(FileNode storage) {
+        return new Catalog(storage.join(FILE));
+    }
+
+    /** @param archiveDirectory storage/groupId/artifactId */
+    public static Catalog forArchive(FileNode archiveDirectory) {
+        return forStorage(archiveDirectory.getParent().getParent());
+    }
+
+    //--
+
+    private final FileNode file;
+
+    public Catalog(FileNode file) {
+        this.file = file;
+    }
+
+    public FileNode getFile() {
+        return file;
+    }
+
+    /** @return all records, sorted */
+    public List<Record> all() throws IOException {
+        return select(null, null);
+    }
+
+    /**
+     * @param groupId null for all
+     * @param artifactId null for all of the group
+     * @return sorted records
+     */
+    public List<Record> select(String groupId, String artifactId) throws IOException {
+        ByteBuffer buffer;
+        Map<String, List<Record>> logged;
+        List<Record> result;
+        Iterator<Record> iter;
+
+        buffer = map();
+        result = buffer == null ? new ArrayList<Record>() : select(buffer, groupId, artifactId);
+        logged = log(buffer == null ? 0 : buffer.getInt(8));
+        if (logged.isEmpty()) {
+            return result;
+        }
+        iter = result.iterator();
+        while (iter.hasNext()) {
+            if (logged.containsKey(key(iter.next()))) {
+                iter.remove();
+            }
+        }
+        for (List<Record> records : logged.values()) {
+            for (Record record : records) {
+                if (record.matches(groupId, artifactId)) {
+                    result.add(record);
+                }
+            }
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    private static List<Record> select(ByteBuffer buffer, String groupId, String artifactId) {
+        int count;
+        int low;
+        int high;
+        int mid;
+        List<Record> result;
+        Record record;
+
+        result = new ArrayList<>();
+        count = buffer.getInt(12);
+        low = 0;
+        if (groupId != null) {
+            // first record >= groupId:artifactId
+            high = count;
+            while (low < high) {
+                mid = (low + high) >>> 1;
+                record = read(buffer, buffer.getInt(HEADER + mid * 4));
+                if (compare(record.groupId, record.artifactId, record.revision, groupId, artifactId == null ? "" : artifactId,
+                        Long.MIN_VALUE) < 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+        }
+        for (int i = low; i < count; i++) {
+            record = read(buffer, buffer.getInt(HEADER + i * 4));
+            if (!record.matches(groupId, artifactId)) {
+                break;
+            }
+            result.add(record);
+        }
+        return result;
+    }
+
+    /**
+     * Replaces the records of the archive of this index by appending them to the log. Reads the index file, not the entries in
+     * memory, so the last update of concurrent processes always has the latest state. Must not be invoked with the index lock.
+     */
+    public void update(Index index, int timeout, Log log) throws IOException {
+        FileNode primary;
+        String groupId;
+        String artifactId;
+        Map<Long, Record> known;
+        Latch latch;
+        int generation;
+
+        primary = index.primary();
+        groupId = primary.getParent().getName();
+        artifactId = primary.getName();
+        latch = Latch.acquire(latchFile(), false, timeout, log);
+        try {
+            known = new HashMap<>();
+            for (Record record : select(groupId, artifactId)) {
+                known.put(record.revision, record);
+            }
+            generation = generation();
+            append(generation, groupId, artifactId, records(groupId, artifactId, index, index.saved(), known));
+            if (logFile(generation).length() > Math.max(COMPACT, file.exists() ? file.length() : 0)) {
+                compact(all(), generation);
+            }
+        } finally {
+            latch.close();
+        }
+    }
+
+    /** @return current records of the archive, with all descriptors read; used to rebuild the catalog */
+    public static List<Record> records(Archive archive) throws IOException {
+        Index index;
+        FileNode primary;
+
+        index = archive.index().refresh();
+        primary = index.primary();
+        return records(primary.getParent().getName(), primary.getName(), index, index.entries(), new HashMap<Long, Record>());
+    }
+
+    /** Replaces all records; archives without records drop out. */
+    public void rebuild(List<Record> records, int timeout, Log log) throws IOException {
+        Latch latch;
+
+        latch = Latch.acquire(latchFile(), false, timeout, log);
+        try {
+            compact(new ArrayList<>(records), generation());
+        } finally {
+            latch.close();
+        }
+    }
+
+    private FileNode latchFile() {
+        return file.getParent().join(file.getName() + ".LATCH");
+    }
+
+    private FileNode logFile(int generation) {
+        return file.getParent().join(file.getName() + "." + generation + ".LOG");
+    }
+
+    /** @param known records of this archive from the catalog, to avoid reading their descriptors again */
+    private static List<Record> records(String groupId, String artifactId, Index index, List<Index.Entry> entries,
+            Map<Long, Record> known) {
+        List<Record> result;
+        Record old;
+        Properties descriptor;
+
+        result = new ArrayList<>();
+        for (Index.Entry entry : entries) {
+            old = known.get(entry.revision);
+            if (old != null && old.hasDescriptor()) {
+                result.add(new Record(groupId, artifactId, entry.revision, entry.level, entry.state, entry.accessed,
+                        old.version, old.svnOrig, old.svnTag));
+            } else {
+                descriptor = entry.state == Index.State.READY ? descriptor(index, entry) : new Properties();
+                result.add(new Record(groupId, artifactId, entry.revision, entry.level, entry.state, entry.accessed,
+                        descriptor.getProperty(Descriptor.PROJECT_VERSION, ""), descriptor.getProperty(Descriptor.SVN_ORIG, ""),
+                        descriptor.getProperty(Descriptor.SVN_TAG, "")));
+            }
+        }
+        return result;
+    }
+
+    /** @return empty properties if the prerelease has no descriptor yet */
+    private static Properties descriptor(Index index, Index.Entry entry) {
+        Properties result;
+
+        result = new Properties();
+        try (InputStream src = index.backend(entry.level).createInputStream(index.directory(entry), Descriptor.FILE)) {
+            result.load(src);
+        } catch (IOException e) {
+            // not yet created or moved concurrently; read again with the next update
+        }
+        return result;
+    }
+
+    //--
+
+    /** @return null if there's no catalog */
+    private ByteBuffer map() throws IOException {
+        MappedByteBuffer buffer;
+
+        if (!file.exists()) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buffer.limit() < HEADER || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException(file + ": not a catalog or unsupported version, rebuild it");
+        }
+        return buffer;
+    }
+
+    /** @return generation of the base file; 0 if there is none or if it's invalid */
+    private int generation() throws IOException {
+        try {
+            return file.exists() ? map().getInt(8) : 0;
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /** @return records of the log by archive; later blocks replace earlier ones. An incomplete last block is ignored. */
+    private Map<String, List<Record>> log(int generation) throws IOException {
+        FileNode log;
+        ByteBuffer buffer;
+        Map<String, List<Record>> result;
+        int length;
+        int start;
+        int count;
+        List<Record> records;
+        String key;
+
+        result = new LinkedHashMap<>();
+        log = logFile(generation);
+        try (FileChannel channel = FileChannel.open(log.toPath(), StandardOpenOption.READ)) {
+            buffer = ByteBuffer.allocate((int) channel.size());
+            while (buffer.hasRemaining() && channel.read(buffer) > 0) {
+                // keep reading
+            }
+        } catch (NoSuchFileException e) {
+            return result;
+        }
+        buffer.flip();
+        while (buffer.remaining() >= 4) {
+            length = buffer.getInt();
+            if (buffer.remaining() < length) {
+                break;
+            }
+            start = buffer.position();
+            key = string(buffer) + ":" + string(buffer);
+            count = buffer.getInt();
+            records = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                records.add(read(buffer));
+            }
+            result.remove(key);
+            result.put(key, records);
+            buffer.position(start + length);
+        }
+        return result;
+    }
+
+    private void append(int generation, String groupId, String artifactId, List<Record> records) throws IOException {
+        ByteArrayOutputStream data;
+        DataOutputStream dest;
+        ByteBuffer block;
+
+        data = new ByteArrayOutputStream();
+        dest = new DataOutputStream(data);
+        string(groupId, dest);
+        string(artifactId, dest);
+        dest.writeInt(records.size());
+        for (Record record : records) {
+            write(record, dest);
+        }
+        dest.flush();
+        block = ByteBuffer.allocate(4 + data.size());
+        block.putInt(data.size());
+        block.put(data.toByteArray());
+        block.flip();
+        file.getParent().mkdirsOpt();
+        try (FileChannel channel = FileChannel.open(logFile(generation).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND)) {
+            channel.write(block);
+        }
+    }
+
+    /** Writes records into a new base file with the next generation and deletes the log before the current one. */
+    private void compact(List<Record> records, int generation) throws IOException {
+        write(records, generation + 1);
+        logFile(generation - 1).deleteFileOpt();
+    }
+
+    private void write(List<Record> records, int generation) throws IOException {
+        ByteArrayOutputStream data;
+        DataOutputStream dest;
+        int[] offsets;
+        ByteBuffer header;
+        FileNode tmp;
+        int base;
+
+        Collections.sort(records);
+        offsets = new int[records.size()];
+        data = new ByteArrayOutputStream();
+        dest = new DataOutputStream(data);
+        base = HEADER + records.size() * 4;
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = base + dest.size();
+            write(records.get(i), dest);
+        }
+        dest.flush();
+        header = ByteBuffer.allocate(base);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(generation);
+        header.putInt(offsets.length);
+        for (int offset : offsets) {
+            header.putInt(offset);
+        }
+        header.flip();
+        file.getParent().mkdirsOpt();
+        tmp = file.getParent().join(file.getName() + "." + Archive.pid() + "-" + Thread.currentThread().getId() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.write(header);
+            channel.write(ByteBuffer.wrap(data.toByteArray()));
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void write(Record record, DataOutputStream dest) throws IOException {
+        string(record.groupId, dest);
+        string(record.artifactId, dest);
+        dest.writeLong(record.revision);
+        dest.writeInt(record.level);
+        dest.writeByte(record.state.ordinal());
+        dest.writeLong(record.accessed);
+        string(record.version, dest);
+        string(record.svnOrig, dest);
+        string(record.svnTag, dest);
+    }
+
+    private static void string(String str, DataOutputStream dest) throws IOException {
+        byte[] bytes;
+
+        bytes = str.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xffff) {
+            throw new IOException("string too long for catalog: " + str.substring(0, 100));
+        }
+        dest.writeShort(bytes.length);
+        dest.write(bytes);
+    }
+
+    private static Record read(ByteBuffer buffer, int offset) {
+        ByteBuffer src;
+
+        src = buffer.duplicate();
+        src.position(offset);
+        return read(src);
+    }
+
+    /** Reads the record at the position of src and advances it. */
+    private static Record read(ByteBuffer src) {
+        String groupId;
+        String artifactId;
+        long revision;
+        int level;
+        Index.State state;
+        long accessed;
+
+        groupId = string(src);
+        artifactId = string(src);
+        revision = src.getLong();
+        level = src.getInt();
+        state = Index.State.values()[src.get()];
+        accessed = src.getLong();
+        return new Record(groupId, artifactId, revision, level, state, accessed, string(src), string(src), string(src));
+    }
+
+    private static String key(Record record) {
+        return record.groupId + ":" + record.artifactId;
+    }
+
+    private static String string(ByteBuffer src) {
+        byte[] bytes;
+
+        bytes = new byte[src.getShort() & 0xffff];
+        src.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int compare(String leftGroup, String leftArtifact, long leftRevision,
+            String rightGroup, String rightArtifact, long rightRevision) {
+        int result;
+
+        result = leftGroup.compareTo(rightGroup);
+        if (result != 0) {
+            return result;
+        }
+        result = leftArtifact.compareTo(rightArtifact);
+        if (result != 0) {
+            return result;
+        }
+        return Long.compare(leftRevision, rightRevision);
+    }
+}
@@ -0,0 +1,312 @@
+/**
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.prerelease.core;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import net.oneandone.sushi.fs.file.FileNode;
+
+/**
+ * SHA-1 checksums of the files of a prerelease, recorded when the prerelease is created and verified by the scrub goal. Covers
+ * the artifacts, the svn pristines and the tag checkout except build output in target directories, i.e. everything that must not
+ * change until the prerelease is promoted. Files are hashed in parallel; files of directory prereleases are memory-mapped.
+ *
+ * The checksums file has one line per file: hex checksum, size and path relative to the prerelease.
+ */
+public class Checksums {
+    public static final String FILE = "checksums";
+
+    /** bytes mapped at once; files may be larger than 2 GB */
+    private static final long CHUNK = 64 * 1024 * 1024;
+
+    private final int threads;
+
+    public Checksums(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Writes the checksums file of a new prerelease directory.
+     *
+     * @return number of files
+     */
+    public int record(FileNode prerelease) throws IOException {
+        final Path root;
+        final List<Path> files;
+        final ExecutorService executor;
+        List<Future<String>> futures;
+        StringBuilder lines;
+
+        root = prerelease.toPath();
+        files = new ArrayList<>();
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                return isCovered(root.relativize(dir).toString()) ? FileVisitResult.CONTINUE : FileVisitResult.SKIP_SUBTREE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile() && isCovered(root.relativize(file).toString())) {
+                    files.add(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        Collections.sort(files);
+        futures = new ArrayList<>();
+        executor = Executors.newFixedThreadPool(threads);
+        try {
+            for (final Path file : files) {
+                futures.add(executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws IOException {
+                        return hash(file) + " " + Files.size(file) + " " + root.relativize(file).toString().replace('\\', '/');
+                    }
+                }));
+            }
+            lines = new StringBuilder();
+            for (Future<String> future : futures) {
+                lines.append(get(future)).append('\n');
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        prerelease.join(FILE).writeString(lines.toString());
+        return files.size();
+    }
+
+    /**
+     * @param prerelease directory or container
+     * @return problems found, empty if the prerelease is intact; null if the prerelease has no checksums file because it was created
+     *         by an older version
+     */
+    public List<String> verify(Backend backend, final FileNode prerelease) throws IOException {
+        final ZipFile zip;
+        List<String> lines;
+        List<Future<String>> futures;
+        ExecutorService executor;
+        List<String> result;
+        String problem;
+
+        try (InputStream src = backend.createInputStream(prerelease, FILE)) {
+            lines = readLines(src);
+        } catch (FileNotFoundException | net.oneandone.sushi.fs.FileNotFoundException e) {
+            return null;
+        }
+        zip = backend.isDirectory() ? null : new ZipFile(prerelease.toPath().toFile());
+        result = new ArrayList<>();
+        futures = new ArrayList<>();
+        executor = Executors.newFixedThreadPool(threads);
+        try {
+            for (final String line : lines) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                futures.add(executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws IOException {
+                        return zip == null ? verify(prerelease, line) : verify(zip, line);
+                    }
+                }));
+            }
+            for (Future<String> future : futures) {
+                problem = get(future);
+                if (problem != null) {
+                    result.add(problem);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+            if (zip != null) {
+                zip.close();
+            }
+        }
+        return result;
+    }
+
+    /** @return problem or null */
+    private static String verify(FileNode prerelease, String line) throws IOException {
+        String[] fields;
+        Path file;
+        long size;
+
+        fields = fields(line);
+        file = prerelease.join(fields[2]).toPath();
+        if (!Files.isRegularFile(file)) {
+            return "missing: " + fields[2];
+        }
+        size = Files.size(file);
+        if (size != Long.parseLong(fields[1])) {
+            return "size " + size + ", expected " + fields[1] + ": " + fields[2];
+        }
+        return hash(file).equals(fields[0]) ? null : "checksum mismatch: " + fields[2];
+    }
+
+    /** @return problem or null */
+    private static String verify(ZipFile zip, String line) throws IOException {
+        String[] fields;
+        ZipEntry entry;
+        MessageDigest digest;
+        byte[] buffer;
+        int count;
+        long size;
+
+        fields = fields(line);
+        entry = zip.getEntry(fields[2]);
+        if (entry == null) {
+            return "missing: " + fields[2];
+        }
+        digest = digest();
+        buffer = new byte[65536];
+        size = 0;
+        try (InputStream src = zip.getInputStream(entry)) {
+            while (true) {
+                count = src.read(buffer);
+                if (count == -1) {
+                    break;
+                }
+                digest.update(buffer, 0, count);
+                size += count;
+            }
+        }
+        if (size != Long.parseLong(fields[1])) {
+            return "size " + size + ", expected " + fields[1] + ": " + fields[2];
+        }
+        return hex(digest.digest()).equals(fields[0]) ? null : "checksum mismatch: " + fields[2];
+    }
+
+    private static String[] fields(String line) throws IOException {
+        String[] result;
+
+        result = line.split(" ", 3);
+        if (result.length != 3) {
+            throw new IOException("invalid line in " + FILE + ": " + line);
+        }
+        return result;
+    }
+
+    /** @param path relative to the prerelease, with forward slashes on all platforms */
+    static boolean isCovered(String path) {
+        String[] segments;
+
+        path = path.replace('\\', '/');
+        if (path.isEmpty() || path.equals("artifacts") || path.startsWith("artifacts/")) {
+            return true;
+        }
+        segments = path.split("/");
+        if (!segments[0].equals("tags")) {
+            return false;
+        }
+        if (segments.length > 1 && segments[1].equals(".svn")) {
+            // the working copy database changes with every svn command, the pristines don't
+            return segments.length == 2 || segments[2].equals("pristine");
+        }
+        for (String segment : segments) {
+            if (segment.equals("target")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Hashes through memory-mapped chunks, so file content is not copied into the heap. */
+    static String hash(Path file) throws IOException {
+        MessageDigest digest;
+        MappedByteBuffer buffer;
+        long size;
+        long position;
+
+        digest = digest();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            size = channel.size();
+            for (position = 0; position < size; position += CHUNK) {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(CHUNK, size - position));
+                digest.update(buffer);
+            }
+        }
+        return hex(digest.digest());
+    }
+
+    private static MessageDigest digest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder result;
+
+        result = new StringBuilder();
+        for (byte b : bytes) {
+            result.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return result.toString();
+    }
+
+    private static List<String> readLines(InputStream src) throws IOException {
+        BufferedReader reader;
+        List<String> result;
+        String line;
+
+        reader = new BufferedReader(new InputStreamReader(src, StandardCharsets.UTF_8));
+        result = new ArrayList<>();
+        while ((line = reader.readLine()) != null) {
+            result.add(line);
+        }
+        return result;
+    }
+
+    private static <T> T get(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new IOException("checksums interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("checksums failed", e.getCause());
+        }
+    }
+}
@@ -0,0 +1,212 @@
+/**
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.prerelease.core;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Deletes directory trees. With more than one thread, subdirectories are deleted in parallel on a fork/join pool, which is
+ * considerably faster for large trees (e.g. svn pristines) on SSDs and NFS. Symlinks are deleted, not followed. Files deleted
+ * concurrently by someone else are ignored. Counts files, bytes and time for reporting; bytes of files with other hard links
+ * (e.g. to blobs) are not counted because deleting them frees nothing.
+ */
+public class Deleter implements AutoCloseable {
+    private final ForkJoinPool pool;
+    private final int rate;
+    private final AtomicLong files;
+    private final AtomicLong bytes;
+    private final AtomicLong millis;
+    private long started;
+
+    /**
+     * @param threads 1 to delete sequentially in the calling thread
+     * @param rate maximum number of files to delete per second to limit the I/O load; 0 for unlimited
+     */
+    public Deleter(int threads, int rate) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads: " + threads);
+        }
+        this.pool = threads == 1 ? null : new ForkJoinPool(threads);
+        this.rate = rate;
+        this.files = new AtomicLong();
+        this.bytes = new AtomicLong();
+        this.millis = new AtomicLong();
+        this.started = 0;
+    }
+
+    public void delete(Path path) throws IOException {
+        long start;
+
+        start = System.currentTimeMillis();
+        if (started == 0) {
+            started = start;
+        }
+        try {
+            if (pool == null) {
+                deleteTree(path);
+            } else {
+                try {
+                    pool.invoke(new Task(path));
+                } catch (Wrapper e) {
+                    throw e.getCause();
+                }
+            }
+        } finally {
+            millis.addAndGet(System.currentTimeMillis() - start);
+        }
+    }
+
+    /** files and directories deleted */
+    public long getFiles() {
+        return files.get();
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    /** time spent in delete */
+    public long getMillis() {
+        return millis.get();
+    }
+
+    @Override
+    public void close() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return files.get() + " files, " + bytes.get() + " bytes, " + millis.get() + " ms";
+    }
+
+    //--
+
+    private void deleteTree(Path path) throws IOException {
+        for (Path child : deleteFiles(path)) {
+            deleteTree(child);
+        }
+        deleteOne(path, 0);
+    }
+
+    /** Deletes all files of the directory. @return subdirectories to delete; empty if path is not a directory */
+    private List<Path> deleteFiles(Path path) throws IOException {
+        List<Path> result;
+        BasicFileAttributes attrs;
+
+        result = new ArrayList<>();
+        attrs = attributesOpt(path);
+        if (attrs == null || !attrs.isDirectory()) {
+            return result;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
+            for (Path child : stream) {
+                attrs = attributesOpt(child);
+                if (attrs == null) {
+                    continue;
+                }
+                if (attrs.isDirectory()) {
+                    result.add(child);
+                } else {
+                    // deleting a file linked to a blob or another prerelease frees nothing
+                    deleteOne(child, attrs.isRegularFile() && Blobs.links(child) == 1 ? attrs.size() : 0);
+                }
+            }
+        } catch (NoSuchFileException e) {
+            // deleted concurrently
+        }
+        return result;
+    }
+
+    private void deleteOne(Path path, long size) throws IOException {
+        long count;
+        long ahead;
+
+        if (Files.deleteIfExists(path)) {
+            count = files.incrementAndGet();
+            bytes.addAndGet(size);
+            if (rate > 0) {
+                ahead = count * 1000 / rate - (System.currentTimeMillis() - started);
+                if (ahead > 0) {
+                    try {
+                        Thread.sleep(ahead);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("delete interrupted");
+                    }
+                }
+            }
+        }
+    }
+
+    private static BasicFileAttributes attributesOpt(Path path) throws IOException {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    private class Task extends RecursiveAction {
+        private final Path path;
+
+        public Task(Path path) {
+            this.path = path;
+        }
+
+        @Override
+        protected void compute() {
+            List<Task> subtasks;
+
+            try {
+                subtasks = new ArrayList<>();
+                for (Path child : deleteFiles(path)) {
+                    subtasks.add(new Task(child));
+                }
+                invokeAll(subtasks);
+                deleteOne(path, 0);
+            } catch (IOException e) {
+                throw new Wrapper(e);
+            }
+        }
+    }
+
+    /** to pass IOExceptions through the fork/join pool */
+    private static class Wrapper extends RuntimeException {
+        public Wrapper(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+}
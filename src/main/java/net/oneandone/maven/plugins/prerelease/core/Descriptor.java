@@ -37,25 +37,28 @@ import net.oneandone.sushi.util.Strings;
 
 /** Basically the prerelease.properties. Metadata about a prerelease. */
 public class Descriptor {
-    private static final String PRERELEASE = "prerelease";
-    private static final String SVN_ORIG = "svn.orig";
-    private static final String SVN_TAG = "svn.tag";
+    static final String FILE = "prerelease.properties";
+
+    static final String PRERELEASE = "prerelease";
+    static final String SVN_ORIG = "svn.orig";
+    static final String SVN_TAG = "svn.tag";
     private static final String PROJECT_GROUP_ID = "project.groupId";
     private static final String PROJECT_ARTIFACT_ID = "project.artifactId";
-    private static final String PROJECT_VERSION = "project.version"; // of the release
+    static final String PROJECT_VERSION = "project.version"; // of the release
     private static final String DEPLOY_REPOSITORY = "deployRepository";
     private static final String DEPLOY_PLUGIN_METADATA = "deployPluginMetadata";
     private static final String PREVIOUS = "previous"; // previous snapshot version
     private static final String NEXT = "next"; // next snapshot version
     private static final String DEPLOY_PROPERTIES = "deployProperties.";
+    private static final String FENCING_TOKEN = "fencingToken"; // of the lock the descriptor was written with
 
     public static Descriptor load(Target target) throws IOException {
         Properties properties;
-        InputStream src;
 
         properties = new Properties();
-        src = file(target).createInputStream();
-        properties.load(src);
+        try (InputStream src = target.createInputStream(file(target).getName())) {
+            properties.load(src);
+        }
         return new Descriptor(get(properties, PRERELEASE), target.getRevision(), get(properties, SVN_ORIG), get(properties, SVN_TAG),
                 new Project(get(properties, PROJECT_GROUP_ID), get(properties, PROJECT_ARTIFACT_ID), get(properties, PROJECT_VERSION)),
                 get(properties, DEPLOY_REPOSITORY), "true".equals(get(properties, DEPLOY_PLUGIN_METADATA)),
@@ -167,6 +170,7 @@ public class Descriptor {
     public void save(Target target) throws IOException {
         Properties properties;
         OutputStream dest;
+        long token;
 
         properties = new Properties();
         properties.setProperty(PRERELEASE, prerelease);
@@ -182,6 +186,10 @@ public class Descriptor {
         for (Map.Entry<String, String> entry : deployProperties.entrySet()) {
             properties.setProperty(DEPLOY_PROPERTIES + entry.getKey(), entry.getValue());
         }
+        token = target.fence("write descriptor of prerelease " + revision);
+        if (token != 0) {
+            properties.setProperty(FENCING_TOKEN, Long.toString(token));
+        }
         dest = file(target).createOutputStream(false);
         properties.store(dest, "");
         dest.close();
@@ -278,7 +286,7 @@ public class Descriptor {
 
 
     public static FileNode file(Target target) {
-        return target.join("prerelease.properties");
+        return target.join(FILE);
     }
 
     //--
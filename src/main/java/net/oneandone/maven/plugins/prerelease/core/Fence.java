@@ -0,0 +1,123 @@
+/**
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.prerelease.core;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import net.oneandone.sushi.fs.file.FileNode;
+
+/**
+ * Fencing tokens for archives shared by several hosts, e.g. a primary storage on NFS. Every exclusive lock gets the next number of
+ * its fence file: the archive lock for exclusive access, the revision lock otherwise. The holder checks that its token is still the
+ * current one before it renames prereleases or writes descriptors, so a holder that was paused so long that its lock was taken over
+ * fails with Fenced at its next check.
+ *
+ * This is check-then-act: the file system doesn't verify tokens, so a holder paused between a check and the following rename still
+ * performs this one rename. Fencing stops a superseded holder early, it does not make modifications atomic with the lock. Shared
+ * locks, and revisions locked temporarily by wipe or recovery, are not fenced.
+ *
+ * Lock files contain "pid@host token acquired", so the locksmith goal can tell local locks, whose process it can check, from locks
+ * of other hosts, which are only checked by their heartbeat; acquired is the time in millis used for wait estimates.
+ */
+public class Fence {
+    /** overrides the host name, e.g. to simulate several hosts with local processes */
+    public static final String HOST_PROPERTY = "prerelease.host";
+
+    private static String host = null;
+
+    public static synchronized String host() {
+        if (host == null) {
+            host = System.getProperty(HOST_PROPERTY);
+            if (host == null || host.isEmpty()) {
+                try {
+                    host = InetAddress.getLocalHost().getHostName();
+                } catch (UnknownHostException e) {
+                    host = "localhost";
+                }
+            }
+        }
+        return host;
+    }
+
+    /** @return owner of locks and journal operations created by this process */
+    public static String owner() {
+        return Archive.pid() + "@" + host();
+    }
+
+    /** @return host of an owner string; null for owners written by older versions, which are pids only */
+    public static String host(String owner) {
+        int idx;
+
+        idx = owner.indexOf('@');
+        return idx == -1 ? null : owner.substring(idx + 1);
+    }
+
+    public static int pid(String owner) {
+        int idx;
+
+        idx = owner.indexOf('@');
+        return Integer.parseInt(idx == -1 ? owner : owner.substring(0, idx));
+    }
+
+    //--
+
+    private final FileNode file;
+
+    public Fence(FileNode file) {
+        this.file = file;
+    }
+
+    public FileNode getFile() {
+        return file;
+    }
+
+    /** @return 0 if no token has been issued yet */
+    public long current() throws IOException {
+        return file.exists() ? Long.parseLong(file.readString().trim()) : 0;
+    }
+
+    /** Issues the next token; must only be invoked by the holder of the exclusive lock this fence belongs to. */
+    public long next() throws IOException {
+        long result;
+        FileNode tmp;
+
+        result = current() + 1;
+        tmp = file.getParent().join(file.getName() + "." + Archive.pid() + "-" + Thread.currentThread().getId() + ".tmp");
+        tmp.writeString(Long.toString(result));
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return result;
+    }
+
+    /**
+     * @param token as returned by next, 0 for holders of shared locks, which are not fenced
+     * @param what description of the modification for the error message
+     */
+    public void check(long token, String what) throws IOException {
+        long current;
+
+        if (token == 0) {
+            return;
+        }
+        current = current();
+        if (current != token) {
+            throw new Fenced(file, token, current, what);
+        }
+    }
+}
@@ -0,0 +1,30 @@
+/**
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.prerelease.core;
+
+import java.io.IOException;
+
+import net.oneandone.sushi.fs.file.FileNode;
+
+/** Thrown when a process that lost its archive or revision lock tries to modify the archive. */
+public class Fenced extends IOException {
+    public final FileNode file;
+
+    public Fenced(FileNode file, long token, long current, String what) {
+        super(file + ": lock lost, token " + token + " superseded by " + current + " - not allowed to " + what);
+        this.file = file;
+    }
+}
@@ -0,0 +1,493 @@
+/**
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.prerelease.core;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import org.apache.maven.plugin.logging.Log;
+
+import net.oneandone.sushi.fs.file.FileNode;
+
+/**
+ * Persistent index of an archive: maps revisions to the storage level and state of their prerelease directory (or container, see
+ * Backend). Stored next to the
+ * lock file, so lookups don't have to list or stat the archive directories. The index remembers the last-modified time of every
+ * archive directory; it's rebuilt from the directories if the index file is missing or if one of the directories was modified
+ * without updating the index (e.g. by manually deleting a prerelease).
+ *
+ * Not thread-safe. Without a latch file, callers have to hold the archive lock exclusively or share it for reading only; readers
+ * may rebuild the index concurrently, that's fine because they compute the same result and the index file is replaced atomically.
+ * With a latch file, processes sharing the archive lock serialize index updates and the directory modifications that go with it
+ * by holding the latch between lock() and unlock(); the index is re-read whenever the latch is acquired.
+ */
+public class Index {
+    public enum State {
+        /** prerelease directory, not necessarily promotable */
+        READY,
+        /** prerelease directory has been moved to REMOVE */
+        REMOVE,
+        /** prerelease has been promoted, directory has been moved to REMOVE */
+        PROMOTED
+    }
+
+    public static class Entry {
+        public final long revision;
+        public final int level;
+        public final State state;
+        /** bytes of the prerelease directory; -1 if not yet computed */
+        public final long size;
+        /** last time the prerelease was created, built or promoted, in milliseconds */
+        public final long accessed;
+
+        public Entry(long revision, int level, State state, long size, long accessed) {
+            this.revision = revision;
+            this.level = level;
+            this.state = state;
+            this.size = size;
+            this.accessed = accessed;
+        }
+
+        public String toString() {
+            return revision + "@" + level + ":" + state;
+        }
+    }
+
+    private static final String STAMP = "stamp.";
+
+    public static FileNode file(List<FileNode> directories) {
+        FileNode primary;
+
+        primary = directories.get(0);
+        return primary.getParent().join(primary.getName() + ".INDEX");
+    }
+
+    public static Index load(List<FileNode> directories) throws IOException {
+        return load(directories, null, -1, null);
+    }
+
+    /**
+     * @param latchFile null if the index is not modified concurrently
+     * @param log may be null
+     */
+    public static Index load(List<FileNode> directories, FileNode latchFile, int timeout, Log log) throws IOException {
+        Index index;
+        List<Backend> backends;
+
+        backends = new ArrayList<>();
+        for (FileNode directory : directories) {
+            backends.add(Backend.forArchive(directory));
+        }
+        index = new Index(file(directories), directories, backends, latchFile, timeout, log);
+        if (latchFile == null) {
+            index.reload();
+        } else {
+            index.refresh();
+        }
+        return index;
+    }
+
+    //--
+
+    private final FileNode file;
+    private final List<FileNode> directories;
+    private final List<Backend> backends;
+    private final TreeMap<Long, Entry> entries;
+
+    private final FileNode latchFile;
+    private final int timeout;
+    private final Log log;
+    private Latch latch;
+    private int depth;
+    /** true if the catalog has to be updated when the index is unlocked */
+    private boolean catalogPending;
+
+    private Index(FileNode file, List<FileNode> directories, List<Backend> backends, FileNode latchFile, int timeout, Log log) {
+        this.file = file;
+        this.directories = directories;
+        this.backends = backends;
+        this.entries = new TreeMap<>();
+        this.latchFile = latchFile;
+        this.timeout = timeout;
+        this.log = log;
+        this.latch = null;
+        this.depth = 0;
+        this.catalogPending = false;
+    }
+
+    /** Acquires the latch and re-reads the index. Re-entrant, every lock has to be paired with an unlock. Noop without latch file. */
+    public void lock() throws IOException {
+        if (depth == 0 && latchFile != null) {
+            latch = Latch.acquire(latchFile, false, timeout, log);
+            try {
+                reload();
+            } catch (IOException | RuntimeException | Error e) {
+                latch.close();
+                latch = null;
+                throw e;
+            }
+        }
+        depth++;
+    }
+
+    public void unlock() throws IOException {
+        if (depth == 0) {
+            throw new IllegalStateException();
+        }
+        depth--;
+        if (depth == 0) {
+            if (latch != null) {
+                try {
+                    latch.close();
+                } finally {
+                    latch = null;
+                }
+            }
+            flushCatalog();
+        }
+    }
+
+    /** @return entries of the index file, which may be newer than the entries of this index; reads without latch */
+    List<Entry> saved() throws IOException {
+        Map<Long, Entry> result;
+
+        result = new TreeMap<>();
+        read(result);
+        return new ArrayList<>(result.values());
+    }
+
+    /** Re-reads the index to see modifications of other processes. Noop without latch file or if the latch is held. */
+    public Index refresh() throws IOException {
+        if (latchFile != null && depth == 0) {
+            lock();
+            unlock();
+        }
+        return this;
+    }
+
+    public Entry lookup(long revision) {
+        return entries.get(revision);
+    }
+
+    /** @return directories of all prereleases in state READY */
+    public TreeMap<Long, FileNode> list() {
+        TreeMap<Long, FileNode> result;
+
+        result = new TreeMap<>();
+        for (Entry entry : entries.values()) {
+            if (entry.state == State.READY) {
+                result.put(entry.revision, directory(entry));
+            }
+        }
+        return result;
+    }
+
+    /** @return all entries, ordered by revision */
+    public List<Entry> entries() {
+        return new ArrayList<>(entries.values());
+    }
+
+    /** @return entries in state READY, ordered by revision */
+    public List<Entry> ready() {
+        List<Entry> result;
+
+        result = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            if (entry.state == State.READY) {
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+
+    /** @return directory of the archive in the first storage, storage/groupId/artifactId */
+    public FileNode primary() {
+        return directories.get(0);
+    }
+
+    public Backend backend(int level) {
+        return backends.get(level);
+    }
+
+    /** @return prerelease directory or container, or the REMOVE directory */
+    public FileNode directory(Entry entry) {
+        return entry.state == State.READY ? backends.get(entry.level).prerelease(directories.get(entry.level), entry.revision)
+                : directories.get(entry.level).join(Target.REMOVE);
+    }
+
+    /** Size and access time are kept when a READY prerelease is moved to another level; otherwise they're reset. */
+    public void put(long revision, int level, State state) throws IOException {
+        Entry old;
+
+        lock();
+        try {
+            old = entries.get(revision);
+            if (old != null && old.state == State.READY && state == State.READY) {
+                entries.put(revision, new Entry(revision, level, state, old.size, old.accessed));
+            } else {
+                entries.put(revision, new Entry(revision, level, state, -1, System.currentTimeMillis()));
+            }
+            save(true);
+        } finally {
+            unlock();
+        }
+    }
+
+    /** Records an access; saves only if the last access is older than a minute. Noop if there's no such prerelease. */
+    public void touch(long revision) throws IOException {
+        Entry old;
+        long now;
+
+        now = System.currentTimeMillis();
+        old = entries.get(revision);
+        if (old == null || now - old.accessed < 60 * 1000) {
+            return;
+        }
+        lock();
+        try {
+            old = entries.get(revision);
+            if (old != null) {
+                entries.put(revision, new Entry(revision, old.level, old.state, old.size, now));
+                save(false);
+            }
+        } finally {
+            unlock();
+        }
+    }
+
+    /** Caches computed directory sizes. */
+    public void sizes(Map<Long, Long> sizes) throws IOException {
+        Entry old;
+
+        lock();
+        try {
+            for (Map.Entry<Long, Long> size : sizes.entrySet()) {
+                old = entries.get(size.getKey());
+                if (old != null) {
+                    entries.put(old.revision, new Entry(old.revision, old.level, old.state, size.getValue(), old.accessed));
+                }
+            }
+            save(false);
+        } finally {
+            unlock();
+        }
+    }
+
+    public void remove(long revision) throws IOException {
+        lock();
+        try {
+            entries.remove(revision);
+            save(true);
+        } finally {
+            unlock();
+        }
+    }
+
+    public void removeAll(List<Long> revisions) throws IOException {
+        lock();
+        try {
+            for (Long revision : revisions) {
+                entries.remove(revision);
+            }
+            save(true);
+        } finally {
+            unlock();
+        }
+    }
+
+    /** Removes all entries for the REMOVE directory of the specified level. */
+    public void removeScheduled(int level) throws IOException {
+        Iterator<Entry> iter;
+        Entry entry;
+
+        lock();
+        try {
+            iter = entries.values().iterator();
+            while (iter.hasNext()) {
+                entry = iter.next();
+                if (entry.level == level && entry.state != State.READY) {
+                    iter.remove();
+                }
+            }
+            save(true);
+        } finally {
+            unlock();
+        }
+    }
+
+    //--
+
+    private void reload() throws IOException {
+        Map<Long, Entry> previous;
+
+        entries.clear();
+        previous = new TreeMap<>();
+        if (read(previous)) {
+            entries.putAll(previous);
+        } else {
+            rebuild(previous);
+        }
+    }
+
+    /**
+     * @param result receives the entries of the index file, even if it's stale
+     * @return false if the index file is missing or stale
+     */
+    private boolean read(Map<Long, Entry> result) throws IOException {
+        Properties properties;
+        String key;
+        String[] fields;
+        long revision;
+        boolean fresh;
+
+        if (!file.exists()) {
+            return false;
+        }
+        properties = file.readProperties();
+        fresh = true;
+        for (int level = 0; level < directories.size(); level++) {
+            if (!Long.toString(stamp(directories.get(level))).equals(properties.getProperty(STAMP + level))) {
+                fresh = false;
+            }
+        }
+        if (properties.getProperty(STAMP + directories.size()) != null) {
+            // number of storages has changed
+            return false;
+        }
+        for (Map.Entry<Object, Object> entry : properties.entrySet()) {
+            key = (String) entry.getKey();
+            if (!key.startsWith(STAMP)) {
+                fields = ((String) entry.getValue()).split(",");
+                revision = Long.parseLong(key);
+                if (fields.length != 4) {
+                    result.clear();
+                    return false;
+                }
+                result.put(revision, new Entry(revision, Integer.parseInt(fields[0]), State.valueOf(fields[1]),
+                        Long.parseLong(fields[2]), Long.parseLong(fields[3])));
+            }
+        }
+        return fresh;
+    }
+
+    /**
+     * Lists the storages. Size, access time and state are kept from the previous entries for prereleases that still exist, so a
+     * touched or temporarily unmounted storage doesn't reset retention data; entries for REMOVE directories are kept if the
+     * directory still exists.
+     *
+     * @param previous entries of a stale index file; empty if there is none
+     */
+    private void rebuild(Map<Long, Entry> previous) throws IOException {
+        FileNode directory;
+        long revision;
+        Entry old;
+
+        entries.clear();
+        for (int level = 0; level < directories.size(); level++) {
+            directory = directories.get(level);
+            if (directory.exists()) {
+                for (FileNode prerelease : directory.list()) {
+                    revision = backends.get(level).revision(prerelease);
+                    if (revision == -1) {
+                        // e.g. REMOVE
+                        continue;
+                    }
+                    old = previous.get(revision);
+                    // later storages win, similar to Archive.target
+                    if (old != null && old.state == State.READY) {
+                        entries.put(revision, new Entry(revision, level, State.READY, old.level == level ? old.size : -1,
+                                old.accessed));
+                    } else {
+                        entries.put(revision, new Entry(revision, level, State.READY, -1, prerelease.getLastModified()));
+                    }
+                }
+            }
+        }
+        for (Entry entry : previous.values()) {
+            if (entry.state != State.READY && entry.level < directories.size() && !entries.containsKey(entry.revision)
+                    && directories.get(entry.level).join(Target.REMOVE).isDirectory()) {
+                entries.put(entry.revision, entry);
+            }
+        }
+        save(true);
+    }
+
+    /**
+     * @param catalog true for state changes: new, moved or removed prereleases. Access times and sizes don't update the catalog;
+     *                it would rewrite the host-wide file for every build.
+     */
+    private void save(boolean catalog) throws IOException {
+        Properties properties;
+        FileNode tmp;
+        List<String> stamps;
+
+        stamps = new ArrayList<>();
+        for (FileNode directory : directories) {
+            stamps.add(Long.toString(stamp(directory)));
+        }
+        properties = new Properties();
+        for (int level = 0; level < stamps.size(); level++) {
+            properties.setProperty(STAMP + level, stamps.get(level));
+        }
+        for (Entry entry : entries.values()) {
+            properties.setProperty(Long.toString(entry.revision), entry.level + "," + entry.state + "," + entry.size + "," + entry.accessed);
+        }
+        file.getParent().mkdirsOpt();
+        tmp = file.getParent().join(file.getName() + "." + Archive.pid() + "-" + Thread.currentThread().getId() + ".tmp");
+        tmp.writeProperties(properties);
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        if (catalog) {
+            updateCatalog();
+        }
+    }
+
+    /**
+     * Replaces the catalog records of this archive, e.g. when a descriptor has been written. Deferred until the index is unlocked,
+     * so the host-wide catalog latch is never acquired while holding the index lock.
+     */
+    void updateCatalog() {
+        catalogPending = true;
+        if (depth == 0 && latch == null) {
+            flushCatalog();
+        }
+    }
+
+    private void flushCatalog() {
+        if (!catalogPending) {
+            return;
+        }
+        catalogPending = false;
+        try {
+            Catalog.forArchive(primary()).update(this, timeout, log);
+        } catch (IOException e) {
+            // the index is saved; the catalog is a cache that can be rebuilt
+            if (log != null) {
+                log.warn("cannot update catalog: " + e.getMessage());
+            }
+        }
+    }
+
+    private static long stamp(FileNode directory) throws IOException {
+        return directory.exists() ? directory.getLastModified() : 0;
+    }
+}
@@ -0,0 +1,375 @@
+/**
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.prerelease.core;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.oneandone.sushi.fs.file.FileNode;
+import net.oneandone.sushi.util.Separator;
+
+/**
+ * Append-only log of the operations on an archive, one file next to the archive directory. Every operation is recorded with a
+ * BEGIN line, optional STEP lines and a COMMIT or ABORT line, each with a timestamp. Lines are appended with a single write in
+ * append mode, so processes sharing the archive on a local file system can append concurrently. NFS does not guarantee atomic
+ * appends from different clients: lines may overwrite each other; they are skipped as malformed, and recovery may miss an
+ * operation, which the next index rebuild fixes. Operations without COMMIT or ABORT whose process died are recovered by
+ * Archive.open; the history goal reads the journal instead of scanning directories. Incomplete last lines (from a crash in the
+ * middle of a write) are ignored.
+ *
+ * A checkpoint file stores the offset into each journal file before which all operations have finished, so looking for
+ * pending operations parses only the tail of the journal.
+ *
+ * Line format: millis id event [name revision] [text], where id is pid.jvmstart.sequence@host; ids written by older versions
+ * have no host.
+ */
+public class Journal {
+    public enum Event {
+        BEGIN, STEP, COMMIT, ABORT
+    }
+
+    /** create of a prerelease in the archive; committed when the prerelease has been built */
+    public static final String CREATE = "CREATE";
+    /** staged prerelease moved into the archive */
+    public static final String PUBLISH = "PUBLISH";
+    /** prerelease moved into the REMOVE directory of its storage; the text is level and state */
+    public static final String REMOVE = "REMOVE";
+    /** prerelease moved to another storage; the text is the source and the destination level */
+    public static final String SWAP = "SWAP";
+    /** prerelease copied back into the primary storage; the text is the source level */
+    public static final String STAGE = "STAGE";
+    /** prereleases moved into the trash; the text lists the revisions, the revision field is 0 */
+    public static final String WIPE = "WIPE";
+    /** svn commit, deploy and local install of a prerelease; steps are recorded */
+    public static final String PROMOTE = "PROMOTE";
+
+    /** bytes after which the journal is rotated if no operation is pending; the previous one is kept */
+    public static final long ROTATE = 1024 * 1024;
+
+    private static final String JVM = Long.toString(ManagementFactory.getRuntimeMXBean().getStartTime(), 36);
+    private static final AtomicInteger SEQUENCE = new AtomicInteger();
+
+    /** Recorded operation. */
+    public static class Operation {
+        public final String id;
+        public final String name;
+        public final long revision;
+        public final String text;
+        public final long begin;
+        public final List<String> steps;
+        /** null if not committed or aborted (yet) */
+        public Event outcome;
+        /** -1 if not committed or aborted (yet) */
+        public long end;
+        public String message;
+
+        public Operation(String id, String name, long revision, String text, long begin) {
+            this.id = id;
+            this.name = name;
+            this.revision = revision;
+            this.text = text;
+            this.begin = begin;
+            this.steps = new ArrayList<>();
+            this.outcome = null;
+            this.end = -1;
+            this.message = null;
+        }
+
+        public int pid() {
+            return Integer.parseInt(id.substring(0, id.indexOf('.')));
+        }
+
+        /** @return host that started the operation; null if unknown */
+        public String host() {
+            return Fence.host(id);
+        }
+
+        /** @return true if the operation was started by this JVM */
+        public boolean isOwn() {
+            return id.startsWith(Archive.pid() + "." + JVM + ".") && Fence.host().equals(host());
+        }
+
+        /** @return true if the operation was started on another host, so its process cannot be checked */
+        public boolean isRemote() {
+            return host() != null && !Fence.host().equals(host());
+        }
+
+        public boolean isPending() {
+            return outcome == null;
+        }
+
+        public boolean concerns(long rev) {
+            return revision == rev || (name.equals(WIPE) && Separator.SPACE.split(text).contains(Long.toString(rev)));
+        }
+
+        /** @return last step; null if there is none */
+        public String lastStep() {
+            return steps.isEmpty() ? null : steps.get(steps.size() - 1);
+        }
+
+        @Override
+        public String toString() {
+            return name + " " + revision + " " + (outcome == null ? "pending" : outcome + " after " + (end - begin) + " ms")
+                    + (steps.isEmpty() ? "" : " " + steps) + (message == null ? "" : ": " + message);
+        }
+    }
+
+    private final FileNode file;
+
+    public Journal(FileNode file) {
+        this.file = file;
+    }
+
+    public FileNode getFile() {
+        return file;
+    }
+
+    /** @return id of the new operation */
+    public String begin(String name, long revision, String text) throws IOException {
+        String id;
+
+        id = Archive.pid() + "." + JVM + "." + SEQUENCE.incrementAndGet() + "@" + Fence.host();
+        append(id, Event.BEGIN, name + " " + revision + " " + text);
+        return id;
+    }
+
+    public void step(String id, String step) throws IOException {
+        append(id, Event.STEP, step);
+    }
+
+    public void commit(String id) throws IOException {
+        append(id, Event.COMMIT, "");
+    }
+
+    public void abort(String id, String message) throws IOException {
+        append(id, Event.ABORT, message);
+    }
+
+    private void append(String id, Event event, String text) throws IOException {
+        String line;
+
+        line = System.currentTimeMillis() + " " + id + " " + event + " " + text.replace('\n', ' ').replace('\r', ' ') + "\n";
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8)));
+        }
+    }
+
+    //--
+
+    /** @return operations of the previous and the current journal, oldest first */
+    public List<Operation> operations() throws IOException {
+        Map<String, Operation> result;
+
+        result = new LinkedHashMap<>();
+        read(previous(), 0, result, new HashMap<String, Long>());
+        read(file, 0, result, new HashMap<String, Long>());
+        return new ArrayList<>(result.values());
+    }
+
+    /** @return operations without COMMIT or ABORT; advances the checkpoint */
+    public List<Operation> pending() throws IOException {
+        long[] checkpoint;
+        Map<String, Operation> operations;
+        Map<String, Long> previousBegins;
+        Map<String, Long> currentBegins;
+        long[] next;
+        List<Operation> result;
+
+        checkpoint = readCheckpoint();
+        operations = new LinkedHashMap<>();
+        previousBegins = new HashMap<>();
+        currentBegins = new HashMap<>();
+        next = new long[2];
+        next[0] = read(previous(), checkpoint[0], operations, previousBegins);
+        next[1] = read(file, checkpoint[1], operations, currentBegins);
+        result = new ArrayList<>();
+        for (Operation operation : operations.values()) {
+            if (operation.isPending()) {
+                result.add(operation);
+                if (previousBegins.containsKey(operation.id)) {
+                    next[0] = Math.min(next[0], previousBegins.get(operation.id));
+                } else {
+                    next[1] = Math.min(next[1], currentBegins.get(operation.id));
+                }
+            }
+        }
+        if (next[0] != checkpoint[0] || next[1] != checkpoint[1]) {
+            writeCheckpoint(next);
+        }
+        return result;
+    }
+
+    /**
+     * Starts a new journal if the current one is too large and no operation is pending. Appends don't lock, so caller has to hold
+     * the index lock to exclude concurrent rotations; an operation that begins concurrently ends up in the previous journal,
+     * which is still read.
+     */
+    public void rotateOpt() throws IOException {
+        FileNode previous;
+        long[] checkpoint;
+
+        if (!file.exists() || file.length() <= ROTATE || !pending().isEmpty()) {
+            return;
+        }
+        checkpoint = readCheckpoint();
+        previous = previous();
+        previous.deleteFileOpt();
+        file.move(previous);
+        checkpoint[0] = checkpoint[1];
+        checkpoint[1] = 0;
+        writeCheckpoint(checkpoint);
+    }
+
+    /** @return true if rotateOpt has something to do */
+    public boolean isFull() throws IOException {
+        return file.exists() && file.length() > ROTATE;
+    }
+
+    private FileNode previous() {
+        return file.getParent().join(file.getName() + ".1");
+    }
+
+    private FileNode checkpointFile() {
+        return file.getParent().join(file.getName() + ".CHECKPOINT");
+    }
+
+    /** @return offsets into the previous and the current journal; zeros if there's no valid checkpoint */
+    private long[] readCheckpoint() throws IOException {
+        FileNode checkpoint;
+        String[] fields;
+        long[] result;
+
+        result = new long[2];
+        checkpoint = checkpointFile();
+        if (!checkpoint.exists()) {
+            return result;
+        }
+        fields = checkpoint.readString().trim().split(" ");
+        if (fields.length != 2) {
+            return result;
+        }
+        try {
+            result[0] = Long.parseLong(fields[0]);
+            result[1] = Long.parseLong(fields[1]);
+        } catch (NumberFormatException e) {
+            result[0] = 0;
+            result[1] = 0;
+        }
+        return result;
+    }
+
+    /** Concurrent writers may overwrite a newer checkpoint with an older one, which costs time but loses nothing. */
+    private void writeCheckpoint(long[] checkpoint) throws IOException {
+        FileNode dest;
+        FileNode tmp;
+
+        dest = checkpointFile();
+        tmp = dest.getParent().join(dest.getName() + "." + Archive.pid() + "-" + Thread.currentThread().getId() + ".tmp");
+        tmp.writeString(checkpoint[0] + " " + checkpoint[1] + "\n");
+        Files.move(tmp.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @param from offset of the first line to read; the file is read from the start if it's shorter, e.g. after a rotation
+     * @param begins receives the offsets of BEGIN lines
+     * @return offset after the last complete line
+     */
+    private static long read(FileNode file, long from, Map<String, Operation> result, Map<String, Long> begins) throws IOException {
+        ByteBuffer buffer;
+        byte[] bytes;
+        long size;
+        int start;
+
+        if (!file.exists()) {
+            return 0;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            size = channel.size();
+            if (from > size) {
+                from = 0;
+            }
+            buffer = ByteBuffer.allocate((int) (size - from));
+            while (buffer.hasRemaining() && channel.read(buffer, from + buffer.position()) > 0) {
+                // keep reading
+            }
+        }
+        bytes = buffer.array();
+        start = 0;
+        for (int i = 0; i < buffer.position(); i++) {
+            if (bytes[i] == '\n') {
+                line(new String(bytes, start, i - start, StandardCharsets.UTF_8), from + start, result, begins);
+                start = i + 1;
+            }
+        }
+        return from + start;
+    }
+
+    private static void line(String line, long offset, Map<String, Operation> result, Map<String, Long> begins) {
+        String[] fields;
+        String text;
+        String[] begin;
+        long millis;
+        Event event;
+        Operation operation;
+
+        fields = line.split(" ", 4);
+        if (fields.length < 3) {
+            return;
+        }
+        text = fields.length > 3 ? fields[3].trim() : "";
+        try {
+            millis = Long.parseLong(fields[0]);
+            event = Event.valueOf(fields[2]);
+            if (event == Event.BEGIN) {
+                begin = text.split(" ", 3);
+                if (begin.length >= 2) {
+                    result.put(fields[1], new Operation(fields[1], begin[0], Long.parseLong(begin[1]),
+                            begin.length > 2 ? begin[2] : "", millis));
+                    begins.put(fields[1], offset);
+                }
+                return;
+            }
+        } catch (IllegalArgumentException e) {
+            // incomplete line
+            return;
+        }
+        operation = result.get(fields[1]);
+        if (operation == null) {
+            // begun before the checkpoint, or in a journal that has been rotated away
+            return;
+        }
+        if (event == Event.STEP) {
+            operation.steps.add(text);
+        } else {
+            operation.outcome = event;
+            operation.end = millis;
+            operation.message = text.isEmpty() ? null : text;
+        }
+    }
+}
@@ -0,0 +1,302 @@
+/**
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.prerelease.core;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.FileLockInterruptionException;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.maven.plugin.logging.Log;
+
+import net.oneandone.sushi.fs.file.FileNode;
+
+/**
+ * Shared or exclusive lock on a file, held by an operating system lock (FileChannel.lock). The file is never deleted. Waiting
+ * processes block in the kernel and wake up as soon as the lock is released. Because operating system locks are held per process,
+ * threads of this JVM are serialized with a fair semaphore before they request the file lock; all shared latches of this JVM
+ * share one operating system lock.
+ */
+public class Latch implements AutoCloseable {
+    private static final Timer TIMER = new Timer("prerelease-latch", true);
+
+    private static final int PERMITS = Integer.MAX_VALUE;
+
+    private static final Map<String, Local> LOCAL = new HashMap<>();
+
+    private static synchronized Local local(FileNode file) {
+        Local result;
+
+        result = LOCAL.get(file.getAbsolute());
+        if (result == null) {
+            result = new Local();
+            LOCAL.put(file.getAbsolute(), result);
+        }
+        return result;
+    }
+
+    /**
+     * @param shared true for a read lock, false for a write lock
+     * @param timeout in seconds; -1 to try only once and never wait.
+     * @param log may be null
+     */
+    public static Latch acquire(FileNode file, boolean shared, int timeout, Log log) throws IOException {
+        Local local;
+        Watchdog watchdog;
+        int permits;
+        Latch result;
+
+        local = local(file);
+        permits = shared ? 1 : PERMITS;
+        if (timeout < 0) {
+            watchdog = null;
+        } else {
+            watchdog = new Watchdog(file, timeout, log);
+            TIMER.schedule(watchdog, 1000, 1000);
+        }
+        try {
+            acquire(local.permits, permits, file, watchdog);
+            try {
+                if (shared) {
+                    acquire(local.guard, file, watchdog);
+                    try {
+                        if (local.readers == 0) {
+                            local.shared = lock(file, true, watchdog);
+                        }
+                        local.readers++;
+                    } finally {
+                        local.guard.unlock();
+                    }
+                    result = new Latch(local, null);
+                } else {
+                    result = new Latch(local, lock(file, false, watchdog));
+                }
+            } catch (Throwable e) {
+                local.permits.release(permits);
+                throw e;
+            }
+        } finally {
+            if (watchdog != null) {
+                watchdog.finish();
+            }
+        }
+        if (log != null) {
+            log.debug((shared ? "shared" : "exclusive") + " latch " + file);
+        }
+        return result;
+    }
+
+    private static void acquire(Semaphore semaphore, int permits, FileNode file, Watchdog watchdog) throws IOException {
+        try {
+            // CAUTION: tryAcquire() without timeout ignores fairness
+            if (semaphore.tryAcquire(permits, 0, TimeUnit.SECONDS)) {
+                return;
+            }
+            if (watchdog == null) {
+                throw new LockTimeout(file, 0);
+            }
+            watchdog.waiting();
+            semaphore.acquire(permits);
+        } catch (InterruptedException e) {
+            throw interrupted(file, watchdog);
+        }
+    }
+
+    private static void acquire(ReentrantLock guard, FileNode file, Watchdog watchdog) throws IOException {
+        try {
+            if (watchdog == null) {
+                if (!guard.tryLock()) {
+                    throw new LockTimeout(file, 0);
+                }
+            } else {
+                guard.lockInterruptibly();
+            }
+        } catch (InterruptedException e) {
+            throw interrupted(file, watchdog);
+        }
+    }
+
+    private static FileLock lock(FileNode file, boolean shared, Watchdog watchdog) throws IOException {
+        FileChannel channel;
+        FileLock lock;
+
+        file.getParent().mkdirsOpt();
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            lock = channel.tryLock(0, Long.MAX_VALUE, shared);
+            if (lock == null) {
+                if (watchdog == null) {
+                    throw new LockTimeout(file, 0);
+                }
+                watchdog.waiting();
+                lock = channel.lock(0, Long.MAX_VALUE, shared);
+            }
+            return lock;
+        } catch (FileLockInterruptionException | ClosedByInterruptException e) {
+            channel.close();
+            throw interrupted(file, watchdog);
+        } catch (Throwable e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static IOException interrupted(FileNode file, Watchdog watchdog) {
+        if (watchdog == null) {
+            Thread.currentThread().interrupt();
+            return new InterruptedIOException("interrupted while locking " + file);
+        }
+        return watchdog.interrupted();
+    }
+
+    private static void release(FileLock lock) throws IOException {
+        try {
+            lock.release();
+        } finally {
+            lock.channel().close();
+        }
+    }
+
+    //--
+
+    /** Per-JVM state of a latch file */
+    private static class Local {
+        public final Semaphore permits = new Semaphore(PERMITS, true);
+        /** protects readers and shared */
+        public final ReentrantLock guard = new ReentrantLock();
+        public int readers = 0;
+        public FileLock shared = null;
+    }
+
+    private final Local local;
+    /** null for shared latches */
+    private final FileLock lock;
+
+    private Latch(Local local, FileLock lock) {
+        this.local = local;
+        this.lock = lock;
+    }
+
+    public boolean isShared() {
+        return lock == null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        FileLock shared;
+
+        if (lock == null) {
+            local.guard.lock();
+            try {
+                local.readers--;
+                if (local.readers == 0) {
+                    shared = local.shared;
+                    local.shared = null;
+                    release(shared);
+                }
+            } finally {
+                local.guard.unlock();
+                local.permits.release(1);
+            }
+        } else {
+            try {
+                release(lock);
+            } finally {
+                local.permits.release(PERMITS);
+            }
+        }
+    }
+
+    /** Reports progress while waiting and interrupts the waiting thread when the timeout expires. */
+    private static class Watchdog extends TimerTask {
+        private final FileNode file;
+        private final int timeout;
+        private final Log log;
+        private final Thread thread;
+        private int seconds;
+        private boolean waiting;
+        private boolean expired;
+        private boolean done;
+
+        public Watchdog(FileNode file, int timeout, Log log) {
+            this.file = file;
+            this.timeout = timeout;
+            this.log = log;
+            this.thread = Thread.currentThread();
+            this.seconds = 0;
+            this.waiting = false;
+            this.expired = false;
+            this.done = false;
+        }
+
+        public synchronized void waiting() {
+            if (!waiting) {
+                waiting = true;
+                if (log != null) {
+                    log.info("Waiting for " + file);
+                }
+            }
+        }
+
+        @Override
+        public synchronized void run() {
+            if (done) {
+                return;
+            }
+            seconds++;
+            if (seconds > timeout) {
+                expired = true;
+                cancel();
+                thread.interrupt();
+            } else if (waiting && seconds % 10 == 0 && log != null) {
+                log.info("Waiting for " + file + ": " + seconds + "s");
+            }
+        }
+
+        /** @return exception to throw after the waiting thread was interrupted */
+        public synchronized IOException interrupted() {
+            if (expired) {
+                if (log != null) {
+                    log.warn("Lock timed out after " + seconds + "s.");
+                }
+                return new LockTimeout(file, seconds);
+            } else {
+                // not caused by us - keep the flag
+                Thread.currentThread().interrupt();
+                return new InterruptedIOException("interrupted while waiting for " + file);
+            }
+        }
+
+        public synchronized void finish() {
+            done = true;
+            cancel();
+            if (expired) {
+                // clear interrupt, we might have got the lock before the interrupt was noticed
+                Thread.interrupted();
+            }
+        }
+    }
+}
@@ -0,0 +1,28 @@
+/**
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.prerelease.core;
+
+/** How archives are locked. All processes working on the same storages have to use the same mode. */
+public enum LockMode {
+    /** Create the lock file exclusively; waiters poll once a second. Stale lock files have to be removed with the locksmith goal. */
+    FILE,
+
+    /**
+     * Operating system lock on the stable groupId/artifactId.LATCH file. Waiters block until the lock is released, and the lock
+     * is released automatically when the holding process dies. The lock file is still written for the locksmith goal.
+     */
+    CHANNEL
+}
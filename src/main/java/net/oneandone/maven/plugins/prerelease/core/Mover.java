@@ -0,0 +1,295 @@
+/**
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.prerelease.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+import net.oneandone.sushi.fs.file.FileNode;
+
+/**
+ * Copies prerelease directories between file systems. The CRC-32 of every file is computed while copying it; the copy is read
+ * again and verified against it, and the file is recorded in a manifest. The copy is written to a temporary name (see temp) and
+ * renamed when it's complete, so a partial copy is never visible as a prerelease. An interrupted copy is resumed: files listed in
+ * the manifest are not copied again if the size and the CRC of their copy match.
+ */
+public class Mover {
+    /** suffix of copies in progress; not a valid prerelease name */
+    public static final String SUFFIX = ".MOVING";
+    private static final String MANIFEST = ".MANIFEST";
+
+    private static final int BUFFER = 65536;
+
+    /** @return temporary name to copy dest to */
+    public static FileNode temp(FileNode dest) {
+        return dest.getParent().join(dest.getName() + SUFFIX);
+    }
+
+    /** @return true if the file is a temporary copy or manifest; false for prereleases and other files */
+    public static boolean isTemp(FileNode file) {
+        return file.getName().endsWith(SUFFIX) || file.getName().endsWith(SUFFIX + MANIFEST);
+    }
+
+    /** @return revision of a temporary copy or manifest; -1 if the file is not a temporary copy */
+    public static long revision(FileNode file) {
+        String name;
+        int idx;
+
+        name = file.getName();
+        idx = name.indexOf('.');
+        if (idx == -1 || !isTemp(file)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(0, idx));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /** Deletes the temporary copy of dest; noop if there is none. */
+    public static void discard(FileNode dest) throws IOException {
+        FileNode temp;
+
+        temp = temp(dest);
+        if (temp.exists()) {
+            Trash.move(dest.getParent(), temp);
+        }
+        manifest(temp).deleteFileOpt();
+    }
+
+    private static FileNode manifest(FileNode temp) {
+        return temp.getParent().join(temp.getName() + MANIFEST);
+    }
+
+    //--
+
+    private final Throttle throttle;
+    private final int threads;
+
+    /** @param threads number of files copied in parallel */
+    public Mover(Throttle throttle, int threads) {
+        this.throttle = throttle;
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Copies the directory src to dest, which must not exist. Resumes a previous copy to the same dest.
+     *
+     * @return bytes transferred; files copied by a previous attempt don't count
+     */
+    public long copy(FileNode src, FileNode dest) throws IOException {
+        final Path srcRoot;
+        final Path tempRoot;
+        final FileNode manifest;
+        final Map<String, String> done;
+        final List<Future<Long>> futures;
+        final ExecutorService executor;
+        long result;
+
+        if (dest.exists()) {
+            throw new IOException("already exists: " + dest);
+        }
+        srcRoot = src.toPath();
+        tempRoot = temp(dest).toPath();
+        manifest = manifest(temp(dest));
+        done = readManifest(manifest);
+        futures = new ArrayList<>();
+        executor = Executors.newFixedThreadPool(threads);
+        try {
+            Files.walkFileTree(srcRoot, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                    throttle.file();
+                    Files.createDirectories(tempRoot.resolve(srcRoot.relativize(dir)));
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) throws IOException {
+                    final String relative;
+                    final Path target;
+
+                    relative = srcRoot.relativize(file).toString();
+                    target = tempRoot.resolve(relative);
+                    if (attrs.isSymbolicLink()) {
+                        throttle.file();
+                        Files.deleteIfExists(target);
+                        Files.createSymbolicLink(target, Files.readSymbolicLink(file));
+                    } else if (!isDone(done.get(relative), target, attrs.size())) {
+                        futures.add(executor.submit(new Callable<Long>() {
+                            @Override
+                            public Long call() throws IOException {
+                                long crc;
+
+                                throttle.file();
+                                crc = transfer(file, target, attrs.size());
+                                if (Files.isExecutable(file)) {
+                                    target.toFile().setExecutable(true);
+                                }
+                                Files.setLastModifiedTime(target, attrs.lastModifiedTime());
+                                append(manifest, Long.toHexString(crc) + " " + attrs.size() + " " + relative + "\n");
+                                return attrs.size();
+                            }
+                        }));
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            result = 0;
+            for (Future<Long> future : futures) {
+                result += get(future);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        Files.move(tempRoot, dest.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        manifest.deleteFileOpt();
+        return result;
+    }
+
+    /**
+     * Reads the copy of a file listed in the manifest, so a copy damaged after it was recorded is copied again.
+     *
+     * @param line from the manifest, null if the file is not listed
+     */
+    private static boolean isDone(String line, Path target, long size) throws IOException {
+        String[] fields;
+
+        if (line == null) {
+            return false;
+        }
+        fields = line.split(" ", 3);
+        return Long.parseLong(fields[1]) == size && Files.isRegularFile(target) && Files.size(target) == size
+                && Long.parseLong(fields[0], 16) == crc(target);
+    }
+
+    /** @return crc of the file, computed while copying and verified against the copy */
+    private long transfer(Path src, Path dest, long size) throws IOException {
+        CRC32 crc;
+        byte[] buffer;
+        ByteBuffer wrapped;
+        long position;
+        int count;
+
+        crc = new CRC32();
+        buffer = new byte[BUFFER];
+        wrapped = ByteBuffer.wrap(buffer);
+        try (FileChannel in = FileChannel.open(src, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(dest, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+            position = 0;
+            while (position < size) {
+                wrapped.clear();
+                wrapped.limit((int) Math.min(BUFFER, size - position));
+                count = in.read(wrapped);
+                if (count <= 0) {
+                    throw new IOException(src + ": file truncated while copying");
+                }
+                throttle.bytes(count);
+                crc.update(buffer, 0, count);
+                wrapped.flip();
+                while (wrapped.hasRemaining()) {
+                    out.write(wrapped);
+                }
+                position += count;
+            }
+            out.force(false);
+        }
+        if (Files.size(dest) != size || crc(dest) != crc.getValue()) {
+            throw new IOException(dest + ": checksum mismatch after copy");
+        }
+        return crc.getValue();
+    }
+
+    //--
+
+    public static long crc(Path file) throws IOException {
+        CRC32 crc;
+        byte[] buffer;
+        int count;
+
+        crc = new CRC32();
+        buffer = new byte[65536];
+        try (InputStream in = Files.newInputStream(file)) {
+            while (true) {
+                count = in.read(buffer);
+                if (count == -1) {
+                    return crc.getValue();
+                }
+                crc.update(buffer, 0, count);
+            }
+        }
+    }
+
+    /** @return manifest lines by relative path */
+    private static Map<String, String> readManifest(FileNode manifest) throws IOException {
+        Map<String, String> result;
+        String[] fields;
+
+        result = new HashMap<>();
+        if (manifest.exists()) {
+            for (String line : manifest.readLines()) {
+                fields = line.split(" ", 3);
+                if (fields.length == 3) {
+                    result.put(fields[2], line);
+                }
+            }
+        }
+        return result;
+    }
+
+    /** Appends with a single write, like the journal; an incomplete last line is ignored when reading. */
+    private static synchronized void append(FileNode manifest, String line) throws IOException {
+        try (FileChannel channel = FileChannel.open(manifest.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8)));
+        }
+    }
+
+    private static long get(Future<Long> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new IOException("copy interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("copy failed", e.getCause());
+        }
+    }
+}
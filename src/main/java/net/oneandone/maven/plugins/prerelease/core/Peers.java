@@ -0,0 +1,219 @@
+/**
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.prerelease.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.maven.plugin.logging.Log;
+
+import net.oneandone.maven.plugins.prerelease.util.Subversion;
+import net.oneandone.sushi.fs.World;
+import net.oneandone.sushi.fs.file.FileNode;
+
+/**
+ * Archives of other hosts to copy prereleases from instead of building them again. A peer is either a storage directory, e.g. the
+ * primary storage of another build agent mounted read-only, or an http url serving a zip storage, i.e. url/groupId/artifactId/
+ * revision.zip, which any static web server can do. A peer prerelease is used only if it was built from the same svn url and
+ * revision with the same plugin version, and if all its files match the checksums recorded when it was created. It's copied to a
+ * staging directory, verified and published into the archive like a staged prerelease.
+ */
+public class Peers {
+    private static final int CONNECT_TIMEOUT = 10 * 1000;
+    private static final int READ_TIMEOUT = 60 * 1000;
+
+    /** @param peers storage directories or http(s) urls, in the order they are asked */
+    public static Peers create(World world, List<String> peers, int threads) {
+        List<String> urls;
+        List<FileNode> directories;
+
+        urls = new ArrayList<>();
+        directories = new ArrayList<>();
+        for (String peer : peers) {
+            peer = peer.trim();
+            if (peer.isEmpty()) {
+                continue;
+            }
+            if (peer.startsWith("http://") || peer.startsWith("https://")) {
+                urls.add(peer.endsWith("/") ? peer : peer + "/");
+            } else {
+                directories.add(world.file(peer));
+            }
+        }
+        return new Peers(directories, urls, threads);
+    }
+
+    //--
+
+    private final List<FileNode> directories;
+    private final List<String> urls;
+    private final int threads;
+
+    public Peers(List<FileNode> directories, List<String> urls, int threads) {
+        this.directories = directories;
+        this.urls = urls;
+        this.threads = Math.max(1, threads);
+    }
+
+    public boolean isEmpty() {
+        return directories.isEmpty() && urls.isEmpty();
+    }
+
+    /**
+     * Copies the prerelease for the descriptor's revision from the first peer that has a matching one.
+     *
+     * @return published target; null if no peer has a matching prerelease
+     */
+    public Target fetchOpt(Archive archive, Descriptor descriptor, Subversion.SvnCredentials svnCredentials, Log log)
+            throws IOException {
+        FileNode primary;
+        String relative;
+        Backend backend;
+        FileNode candidate;
+        Target staged;
+        FileNode download;
+
+        primary = archive.directory(0);
+        relative = primary.getParent().getName() + "/" + primary.getName();
+        for (FileNode storage : directories) {
+            backend = Backend.forStorage(storage);
+            candidate = backend.prerelease(storage.join(relative), descriptor.revision);
+            if (candidate.exists() && matches(backend, candidate, descriptor, log)) {
+                staged = archive.stage(descriptor.revision, svnCredentials);
+                if (copy(backend, candidate, archive, staged, log)) {
+                    return publish(staged, candidate, log);
+                }
+            }
+        }
+        for (String url : urls) {
+            staged = archive.stage(descriptor.revision, svnCredentials);
+            download = staged.directory().getParent().join(staged.directory().getName() + ".zip");
+            try {
+                if (download(url + relative + "/" + descriptor.revision + ".zip", download, log)
+                        && matches(Backend.CONTAINER, download, descriptor, log)
+                        && copy(Backend.CONTAINER, download, archive, staged, log)) {
+                    return publish(staged, url, log);
+                }
+            } finally {
+                download.deleteFileOpt();
+            }
+        }
+        return null;
+    }
+
+    private static boolean matches(Backend backend, FileNode candidate, Descriptor descriptor, Log log) throws IOException {
+        Properties properties;
+
+        properties = new Properties();
+        try (InputStream src = backend.createInputStream(candidate, Descriptor.FILE)) {
+            properties.load(src);
+        } catch (IOException e) {
+            log.info("peer prerelease without descriptor, ignored: " + candidate);
+            return false;
+        }
+        if (!descriptor.svnOrig.equals(properties.getProperty(Descriptor.SVN_ORIG))) {
+            log.info("peer prerelease built from " + properties.getProperty(Descriptor.SVN_ORIG) + ", ignored: " + candidate);
+            return false;
+        }
+        if (!descriptor.prerelease.equals(properties.getProperty(Descriptor.PRERELEASE))) {
+            log.info("peer prerelease built with plugin version " + properties.getProperty(Descriptor.PRERELEASE) + ", ignored: "
+                    + candidate);
+            return false;
+        }
+        return true;
+    }
+
+    /** @return false if the copy does not match its checksums; the copy is discarded in this case */
+    private boolean copy(Backend backend, FileNode candidate, Archive archive, Target staged, Log log) throws IOException {
+        FileNode directory;
+        List<String> problems;
+
+        directory = staged.directory();
+        directory.getParent().mkdirsOpt();
+        log.info("copying peer prerelease " + candidate);
+        try {
+            Backend.DIRECTORY.copy(backend, candidate, directory, Throttle.NONE);
+            problems = new Checksums(threads).verify(Backend.DIRECTORY, directory);
+        } catch (IOException e) {
+            log.warn("cannot copy peer prerelease " + candidate + ": " + e.getMessage());
+            problems = null;
+        }
+        if (problems != null && problems.isEmpty()) {
+            return true;
+        }
+        if (problems == null) {
+            log.info("peer prerelease cannot be verified, ignored: " + candidate);
+        } else {
+            log.warn("peer prerelease is corrupted, ignored: " + candidate + " " + problems);
+        }
+        if (directory.exists()) {
+            Trash.move(archive.directory(0), directory);
+        }
+        return false;
+    }
+
+    private static Target publish(Target staged, Object from, Log log) throws IOException {
+        staged.measure();
+        if (staged.publish(log)) {
+            log.info("prerelease fetched from peer " + from);
+            staged.cacheSize();
+        }
+        return staged;
+    }
+
+    /** @return false if the peer has no such prerelease */
+    private static boolean download(String url, FileNode dest, Log log) throws IOException {
+        HttpURLConnection connection;
+        int code;
+
+        connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT);
+        connection.setReadTimeout(READ_TIMEOUT);
+        try {
+            code = connection.getResponseCode();
+        } catch (IOException e) {
+            log.info("peer not available: " + url + ": " + e.getMessage());
+            return false;
+        }
+        try {
+            if (code == HttpURLConnection.HTTP_NOT_FOUND) {
+                log.debug("not found on peer: " + url);
+                return false;
+            }
+            if (code != HttpURLConnection.HTTP_OK) {
+                log.info("peer failed with " + code + ": " + url);
+                return false;
+            }
+            dest.getParent().mkdirsOpt();
+            try (InputStream src = connection.getInputStream(); OutputStream out = dest.createOutputStream()) {
+                Backend.copy(src, out, Throttle.NONE);
+            } catch (IOException e) {
+                log.warn("download failed: " + url + ": " + e.getMessage());
+                return false;
+            }
+            log.info("downloaded " + url);
+            return true;
+        } finally {
+            connection.disconnect();
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/**
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.prerelease.core;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decides which storage a prerelease belongs to, used by the swap goal. The storage follows from the time since the last access
+ * (create, build, promote or stage-in): a prerelease idle for less than the first threshold belongs to the first storage, idle for
+ * less than the second threshold to the second storage, and so on; older ones belong to the last storage. Prereleases larger than
+ * the size limit go one storage further. The prerelease with the highest revision always belongs to the first storage because it's
+ * the most likely to be promoted next. Prereleases in a storage further than they belong are moved back.
+ */
+public class Placement {
+    /** Planned move of a prerelease. */
+    public static class Move {
+        public final long revision;
+        public final int from;
+        public final int to;
+        /** bytes; -1 if unknown */
+        public final long size;
+
+        public Move(long revision, int from, int to, long size) {
+            this.revision = revision;
+            this.from = from;
+            this.to = to;
+            this.size = size;
+        }
+
+        public boolean isUp() {
+            return to < from;
+        }
+
+        @Override
+        public String toString() {
+            return revision + ": storage " + (from + 1) + " -> " + (to + 1);
+        }
+    }
+
+    /** maximum milliseconds since last access for the first, second, ... storage, ascending */
+    public final long[] idle;
+    /** bytes above which a prerelease goes one storage further; 0 for no limit */
+    public final long large;
+
+    public Placement(long[] idle, long large) {
+        for (int i = 0; i < idle.length; i++) {
+            if (idle[i] <= 0 || (i > 0 && idle[i] < idle[i - 1])) {
+                throw new IllegalArgumentException("idle times have to be positive and ascending");
+            }
+        }
+        if (large < 0) {
+            throw new IllegalArgumentException("large " + large);
+        }
+        this.idle = idle;
+        this.large = large;
+    }
+
+    /**
+     * @param levels number of storages
+     * @return level the prerelease belongs to
+     */
+    public int level(Index.Entry entry, boolean newest, int levels, long now) {
+        int result;
+
+        if (newest) {
+            return 0;
+        }
+        result = 0;
+        while (result < idle.length && now - entry.accessed >= idle[result]) {
+            result++;
+        }
+        if (large > 0 && entry.size > large) {
+            result++;
+        }
+        return Math.min(result, levels - 1);
+    }
+
+    /**
+     * @param prereleases entries in state READY with sizes
+     * @param levels number of storages
+     * @return moves for prereleases that are not in the storage they belong to; moves down first, to make room for moves up
+     */
+    public List<Move> plan(List<Index.Entry> prereleases, int levels, long now) {
+        Index.Entry newest;
+        List<Move> down;
+        List<Move> up;
+        int level;
+
+        down = new ArrayList<>();
+        up = new ArrayList<>();
+        if (prereleases.isEmpty()) {
+            return down;
+        }
+        newest = prereleases.get(0);
+        for (Index.Entry entry : prereleases) {
+            if (entry.revision > newest.revision) {
+                newest = entry;
+            }
+        }
+        for (Index.Entry entry : prereleases) {
+            level = level(entry, entry == newest, levels, now);
+            if (level > entry.level) {
+                down.add(new Move(entry.revision, entry.level, level, entry.size));
+            } else if (level < entry.level) {
+                up.add(new Move(entry.revision, entry.level, level, entry.size));
+            }
+        }
+        down.addAll(up);
+        return down;
+    }
+}
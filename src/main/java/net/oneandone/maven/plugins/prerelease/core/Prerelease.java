@@ -47,12 +47,18 @@ public class Prerelease {
         FileNode workingCopy;
 
         descriptor = Descriptor.load(target);
+        if (target.isPacked()) {
+            throw new IOException("prerelease " + target.getRevision() + " is packed in a cold storage, run prerelease:prefetch to "
+                    + "stage it in: " + target);
+        }
         workingCopy = target.join("tags", descriptor.getTagName());
         workingCopy.checkDirectory();
         return new Prerelease(target, workingCopy, descriptor);
     }
 
-    public static Prerelease create(Maven maven, Map<String, String> propertyArgs, Log log, Descriptor descriptor, Target target) throws Exception {
+    /** @param dedup true to link artifacts and svn pristines to the blob store of the storage, see Blobs */
+    public static Prerelease create(Maven maven, Map<String, String> propertyArgs, Log log, Descriptor descriptor, Target target,
+            boolean dedup) throws Exception {
         Prerelease prerelease;
         FileNode tags;
         FileNode checkout;
@@ -82,11 +88,24 @@ public class Prerelease {
                     descriptor.svnOrig, descriptor.svnTag);
             Archive.adjustChangesOpt(prerelease.checkout, prerelease.descriptor.project.version);
             prerelease.create(maven, propertyArgs);
+            if (dedup) {
+                log.info("dedup saved " + target.dedup() + " bytes");
+            }
+            log.info("checksums recorded for " + target.recordChecksums() + " files");
             log.info("created prerelease in " + prerelease.target);
         } catch (Exception e) {
             target.scheduleRemove(log, "create failed: " + e.getMessage());
             throw e;
         }
+        if (target.isStaged()) {
+            // outside of the archive lock
+            target.measure();
+            target.publish(log);
+            // checkout has moved
+            prerelease = load(target);
+        }
+        target.created();
+        target.cacheSize();
         return prerelease;
     }
 
@@ -232,21 +251,38 @@ public class Prerelease {
     private void promoteLocked(Log log, Map<String, String> propertyArgs, String commitTagMessage, String revertTagMessage, String commitNextMessage,
             FileNode origCommit, Maven maven) throws Exception {
         FileNode installed;
+        Journal journal;
+        String operation;
 
-        commit(log, renderMessage(commitTagMessage));
+        journal = target.journal();
+        operation = journal.begin(Journal.PROMOTE, descriptor.revision, descriptor.project.toString());
+        try {
+            commit(log, renderMessage(commitTagMessage));
+        } catch (Exception e) {
+            journal.abort(operation, "svn commit failed: " + e.getMessage());
+            throw e;
+        }
+        journal.step(operation, "tagged");
         try {
             maven.deployPrerelease(log, propertyArgs, this);
         } catch (Exception e) {
             log.info("deployment failed - reverting tag");
             revertCommit(log, renderMessage(revertTagMessage));
             target.scheduleRemove(log, "deployment failed (tag has been reverted): " + e.getMessage());
+            journal.abort(operation, "deployment failed (tag has been reverted): " + e.getMessage());
             throw e;
         }
+        journal.step(operation, "deployed");
 
         // local install
         installed = descriptor.project.localRepo(maven);
         installed.deleteTreeOpt();
+        for (FileNode file : artifacts().list()) {
+            // the local repository must not modify blobs
+            Blobs.unshare(file.toPath());
+        }
         artifacts().move(installed);
+        journal.step(operation, "installed");
 
         try {
             log.info("Update pom and changes ...");
@@ -255,13 +291,15 @@ public class Prerelease {
             // Move prerelease directory into REMOVE directory because it's invalid now:
             // tag was committed, and artifacts have been deployed. It's not removed immediately to make
             // distribution file available locally.
-            target.scheduleRemove(log, "prerelease has been promoted");
+            target.schedulePromoted(log);
         } catch (Exception e) {
             log.warn("Promote succeeded: your artifacts have been deployed, and your svn tag was created. ");
             log.warn("However, some post-release step failed with this exception:");
             log.warn(e);
             log.warn("Thus, you can use your release, but someone should have a look at this exception.");
+            journal.step(operation, "post-release step failed: " + e.getMessage());
         }
+        journal.commit(operation);
     }
 
     public String renderMessage(String message) throws SubstitutionException {
@@ -0,0 +1,108 @@
+/**
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.prerelease.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Decides which prereleases Archive.wipe removes. Prereleases are removed least recently used first until all limits are met;
+ * the prerelease with the highest revision is never removed. 0 disables a limit.
+ */
+public class Retention {
+    public static Retention keep(int keep) {
+        return new Retention(keep, 0, 0, 0);
+    }
+
+    /** maximum number of prereleases */
+    public final int keep;
+    /** maximum milliseconds since last access */
+    public final long maxAge;
+    /** maximum bytes of all prereleases of the archive */
+    public final long archiveQuota;
+    /** maximum bytes of the prereleases of the archive in one storage */
+    public final long storageQuota;
+
+    public Retention(int keep, long maxAge, long archiveQuota, long storageQuota) {
+        if (keep < 0 || maxAge < 0 || archiveQuota < 0 || storageQuota < 0) {
+            throw new IllegalArgumentException();
+        }
+        this.keep = keep;
+        this.maxAge = maxAge;
+        this.archiveQuota = archiveQuota;
+        this.storageQuota = storageQuota;
+    }
+
+    /** @return true if select needs the sizes of prereleases */
+    public boolean needsSizes() {
+        return archiveQuota > 0 || storageQuota > 0;
+    }
+
+    /**
+     * @param prereleases entries in state READY; with sizes if needsSizes
+     * @param levels number of storages
+     * @return prereleases to remove, least recently used first
+     */
+    public List<Index.Entry> select(List<Index.Entry> prereleases, int levels, long now) {
+        List<Index.Entry> candidates;
+        Index.Entry newest;
+        int count;
+        long archiveBytes;
+        long[] storageBytes;
+        List<Index.Entry> result;
+
+        result = new ArrayList<>();
+        if (prereleases.isEmpty()) {
+            return result;
+        }
+        count = prereleases.size();
+        archiveBytes = 0;
+        storageBytes = new long[levels];
+        newest = prereleases.get(0);
+        for (Index.Entry entry : prereleases) {
+            archiveBytes += Math.max(0, entry.size);
+            storageBytes[entry.level] += Math.max(0, entry.size);
+            if (entry.revision > newest.revision) {
+                newest = entry;
+            }
+        }
+        candidates = new ArrayList<>(prereleases);
+        candidates.remove(newest);
+        Collections.sort(candidates, new Comparator<Index.Entry>() {
+            @Override
+            public int compare(Index.Entry left, Index.Entry right) {
+                if (left.accessed != right.accessed) {
+                    return left.accessed < right.accessed ? -1 : 1;
+                }
+                return Long.compare(left.revision, right.revision);
+            }
+        });
+        for (Index.Entry entry : candidates) {
+            if ((keep > 0 && count > keep)
+                    || (maxAge > 0 && now - entry.accessed > maxAge)
+                    || (archiveQuota > 0 && archiveBytes > archiveQuota)
+                    || (storageQuota > 0 && storageBytes[entry.level] > storageQuota)) {
+                result.add(entry);
+                count--;
+                archiveBytes -= Math.max(0, entry.size);
+                storageBytes[entry.level] -= Math.max(0, entry.size);
+            }
+        }
+        return result;
+    }
+}
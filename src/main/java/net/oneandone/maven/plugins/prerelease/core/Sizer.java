@@ -0,0 +1,175 @@
+/**
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.prerelease.core;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Computes the size of directory trees, see Archive.size. With more than one thread, subdirectories are walked in parallel on a
+ * fork/join pool, like the Deleter does. Symlinks are not followed; files removed concurrently are ignored.
+ */
+public class Sizer implements AutoCloseable {
+    /** default number of threads to walk a prerelease */
+    public static final int THREADS = 4;
+
+    private final ForkJoinPool pool;
+
+    /** @param threads 1 to walk sequentially in the calling thread */
+    public Sizer(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads: " + threads);
+        }
+        this.pool = threads == 1 ? null : new ForkJoinPool(threads);
+    }
+
+    /**
+     * @return bytes of all files in the tree. Files linked to a blob count with their share, i.e. the size divided by the number of
+     * prereleases referencing the blob
+     */
+    public long size(Path root) throws IOException {
+        if (attributesOpt(root) == null) {
+            throw new NoSuchFileException(root.toString());
+        }
+        if (pool == null) {
+            return sizeTree(root);
+        }
+        try {
+            return pool.invoke(new Task(root));
+        } catch (Wrapper e) {
+            throw e.getCause();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    //--
+
+    private long sizeTree(Path path) throws IOException {
+        List<Path> directories;
+        long result;
+
+        directories = new ArrayList<>();
+        result = sizeFiles(path, directories);
+        for (Path directory : directories) {
+            result += sizeTree(directory);
+        }
+        return result;
+    }
+
+    /** @param directories receives the subdirectories to walk */
+    private static long sizeFiles(Path path, List<Path> directories) throws IOException {
+        BasicFileAttributes attrs;
+        long result;
+
+        result = 0;
+        attrs = attributesOpt(path);
+        if (attrs == null) {
+            return result;
+        }
+        if (!attrs.isDirectory()) {
+            return share(path, attrs);
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
+            for (Path child : stream) {
+                attrs = attributesOpt(child);
+                if (attrs == null) {
+                    continue;
+                }
+                if (attrs.isDirectory()) {
+                    directories.add(child);
+                } else {
+                    result += share(child, attrs);
+                }
+            }
+        } catch (NoSuchFileException e) {
+            // removed concurrently
+        }
+        return result;
+    }
+
+    private static long share(Path file, BasicFileAttributes attrs) throws IOException {
+        int links;
+
+        links = attrs.size() < Blobs.MIN_SIZE ? 1 : Blobs.links(file);
+        return links > 1 ? attrs.size() / (links - 1) : attrs.size();
+    }
+
+    private static BasicFileAttributes attributesOpt(Path path) throws IOException {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    private static class Task extends RecursiveTask<Long> {
+        private final Path path;
+
+        public Task(Path path) {
+            this.path = path;
+        }
+
+        @Override
+        protected Long compute() {
+            List<Path> directories;
+            List<Task> subtasks;
+            long result;
+
+            try {
+                directories = new ArrayList<>();
+                result = sizeFiles(path, directories);
+            } catch (IOException e) {
+                throw new Wrapper(e);
+            }
+            subtasks = new ArrayList<>();
+            for (Path directory : directories) {
+                subtasks.add(new Task(directory));
+            }
+            invokeAll(subtasks);
+            for (Task subtask : subtasks) {
+                result += subtask.join();
+            }
+            return result;
+        }
+    }
+
+    /** to pass IOExceptions through the fork/join pool */
+    private static class Wrapper extends RuntimeException {
+        public Wrapper(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/**
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.prerelease.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import net.oneandone.sushi.fs.file.FileNode;
+
+/**
+ * Copies a prerelease from a cold storage into the primary storage. Files are copied in parallel because cold storages are
+ * usually network file systems or spinning disks with high latency per file. Directories are copied by the Mover; containers are
+ * unpacked here and every file is verified with the CRC-32 recorded in the zip file. Both write to a temporary name and rename when
+ * complete.
+ */
+public class StageIn {
+    /**
+     * @param dest does not exist; it's created when the copy is complete
+     * @return bytes copied
+     */
+    public static long copy(Backend from, FileNode src, FileNode dest, int threads) throws IOException {
+        StageIn stageIn;
+        long result;
+
+        if (from.isDirectory()) {
+            return new Mover(Throttle.NONE, threads).copy(src, dest);
+        }
+        Mover.discard(dest);
+        stageIn = new StageIn(threads);
+        try {
+            result = stageIn.container(src, Mover.temp(dest).toPath());
+        } finally {
+            stageIn.executor.shutdownNow();
+        }
+        Files.move(Mover.temp(dest).toPath(), dest.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        return result;
+    }
+
+    private final ExecutorService executor;
+    private final List<Future<Long>> futures;
+    private long bytes;
+
+    private StageIn(int threads) {
+        this.executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        this.futures = new ArrayList<>();
+        this.bytes = 0;
+    }
+
+    /**
+     * ZipFile is thread-safe, so entries are unpacked in parallel from the same file.
+     *
+     * @return bytes copied
+     */
+    private long container(FileNode src, final Path dest) throws IOException {
+        final ZipFile zip;
+        Enumeration<? extends ZipEntry> entries;
+
+        zip = new ZipFile(src.toPath().toFile());
+        try {
+            Files.createDirectory(dest);
+            entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                final ZipEntry e = entries.nextElement();
+                final Path path;
+
+                path = dest.resolve(e.getName());
+                if (!path.normalize().startsWith(dest)) {
+                    throw new IOException(src + ": invalid entry " + e.getName());
+                }
+                if (e.isDirectory()) {
+                    Files.createDirectories(path);
+                } else if (Backend.Container.isLink(e)) {
+                    Files.createDirectories(path.getParent());
+                    try (InputStream in = zip.getInputStream(e)) {
+                        Files.createSymbolicLink(path, Backend.Container.readLink(in));
+                    }
+                } else {
+                    Files.createDirectories(path.getParent());
+                    futures.add(executor.submit(new Callable<Long>() {
+                        @Override
+                        public Long call() throws IOException {
+                            try (InputStream in = zip.getInputStream(e)) {
+                                copy(in, path);
+                            }
+                            verify(path, e.getSize(), e.getCrc());
+                            if (Backend.Container.isExecutable(e)) {
+                                path.toFile().setExecutable(true);
+                            }
+                            Files.setLastModifiedTime(path, FileTime.fromMillis(e.getTime()));
+                            return e.getSize();
+                        }
+                    }));
+                }
+            }
+            return await();
+        } finally {
+            zip.close();
+        }
+    }
+
+    /** @return bytes copied so far */
+    private long await() throws IOException {
+        try {
+            for (Future<Long> future : futures) {
+                bytes += future.get();
+            }
+        } catch (InterruptedException e) {
+            throw new IOException("stage-in interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("stage-in failed", e.getCause());
+        }
+        futures.clear();
+        return bytes;
+    }
+
+    //--
+
+    private static void copy(InputStream src, Path dest) throws IOException {
+        try (OutputStream out = Files.newOutputStream(dest)) {
+            Backend.copy(src, out, Throttle.NONE);
+        }
+    }
+
+    private static void verify(Path file, long size, long crc) throws IOException {
+        if (Files.size(file) != size) {
+            throw new IOException(file + ": size mismatch after copy: expected " + size + ", got " + Files.size(file));
+        }
+        if (Mover.crc(file) != crc) {
+            throw new IOException(file + ": checksum mismatch after copy");
+        }
+    }
+}
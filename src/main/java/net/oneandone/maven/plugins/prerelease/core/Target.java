@@ -16,6 +16,8 @@
 package net.oneandone.maven.plugins.prerelease.core;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
 
 import org.apache.maven.plugin.logging.Log;
 
@@ -25,19 +27,35 @@ import net.oneandone.sushi.launcher.Launcher;
 
 /**
  * Directory for a prerelease. The prerelease is not necessarily promotable (it might not exist (yet), or it may be broken, or it
- * might already be promoted).
+ * might already be promoted). Staged targets live in a private staging directory until they are published into the archive.
  */
 public class Target {
     public static final String REMOVE = "REMOVE";
 
+    private final Archive archive;
+    private int level;
     private FileNode directory;
     private final long revision;
     private final Subversion.SvnCredentials svnCredentials;
+    private boolean staged;
+    /** journaled create of a prerelease in the archive; null if none is pending */
+    private String creating;
+    /** measured size of the prerelease; -1 if unknown */
+    private long size;
 
-    public Target(FileNode directory, long revision, Subversion.SvnCredentials svnCredentials) {
+    public Target(Archive archive, int level, FileNode directory, long revision, Subversion.SvnCredentials svnCredentials, boolean staged) {
+        this.archive = archive;
+        this.level = level;
         this.directory = directory;
         this.revision = revision;
         this.svnCredentials = svnCredentials;
+        this.staged = staged;
+        this.creating = null;
+        this.size = -1;
+    }
+
+    public boolean isStaged() {
+        return staged;
     }
 
     public boolean exists() {
@@ -48,18 +66,173 @@ public class Target {
         return exists() ? Prerelease.load(this) : null;
     }
 
+    FileNode directory() {
+        return directory;
+    }
+
     public FileNode join(String ... paths) {
         return directory.join(paths);
     }
 
+    /** @return level of the storage the prerelease is in, 0 for the primary storage */
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * Moves the prerelease from a cold storage back into the primary storage. Noop if it's already there or if it doesn't exist.
+     *
+     * @return true if the prerelease was staged in
+     */
+    public boolean stageIn(Log log, int threads) throws IOException {
+        FileNode dest;
+        long started;
+        Index.Entry entry;
+
+        if (staged || level == 0 || !exists()) {
+            return false;
+        }
+        log.info("staging in prerelease from storage " + (level + 1) + ": " + directory);
+        started = System.currentTimeMillis();
+        dest = archive.stageIn(revision, threads);
+        if (dest == null) {
+            // staged in concurrently, e.g. while upgrading the revision lock
+            entry = archive.index().lookup(revision);
+            level = entry.level;
+            directory = archive.index().directory(entry);
+            return false;
+        }
+        directory = dest;
+        level = 0;
+        log.info("staged in to " + dest + " (" + (System.currentTimeMillis() - started) + " ms)");
+        return true;
+    }
+
+    /** @return true if the prerelease is stored in a container and has to be unpacked before it can be used in place */
+    public boolean isPacked() throws IOException {
+        return !staged && !backend().isDirectory();
+    }
+
+    /** Reads a single file of the prerelease without unpacking it. */
+    public InputStream createInputStream(String path) throws IOException {
+        return backend().createInputStream(directory, path);
+    }
+
+    private Backend backend() throws IOException {
+        return staged ? Backend.DIRECTORY : Backend.forArchive(archive.directory(level));
+    }
+
     public void scheduleRemove(Log log, String message) throws IOException {
+        scheduleRemove(log, message, Index.State.REMOVE);
+    }
+
+    /** Invoked after successful promotion; the directory is kept to make distribution files available locally until the next wipe. */
+    public void schedulePromoted(Log log) throws IOException {
+        scheduleRemove(log, "prerelease has been promoted", Index.State.PROMOTED);
+    }
+
+    private void scheduleRemove(Log log, String message, Index.State state) throws IOException {
         FileNode remove;
+        String operation;
 
+        archive.checkWritable();
         remove = removeDirectory();
         log.info(message + " - moving prerelease to " + remove);
-        directory.move(remove);
-        remove.join("CAUSE").writeString(message);
-        directory = remove;
+        archive.lockRevision(revision);
+        archive.index().lock();
+        try {
+            operation = staged ? null : archive.journal().begin(Journal.REMOVE, revision, level + " " + state);
+            if (remove.exists()) {
+                // left over from another revision
+                Trash.move(archive.directory(level), remove);
+                archive.index().removeScheduled(level);
+            }
+            remove.getParent().mkdirsOpt();
+            if (!staged) {
+                archive.fence(revision, "remove prerelease " + revision);
+            }
+            directory.move(remove);
+            remove.join("CAUSE").writeString(message);
+            directory = remove;
+            staged = false;
+            archive.index().put(revision, level, state);
+            if (operation != null) {
+                archive.journal().commit(operation);
+            }
+            if (creating != null) {
+                archive.journal().abort(creating, message);
+                creating = null;
+            }
+        } finally {
+            archive.index().unlock();
+        }
+    }
+
+    /**
+     * Compacts a new prerelease by linking its artifacts and the svn pristines of its tag checkout to the blob store of the storage
+     * this target is created in.
+     *
+     * @return bytes saved
+     */
+    public long dedup() throws IOException {
+        return Blobs.forArchive(archive.directory(level)).dedupPrerelease(directory());
+    }
+
+    /**
+     * Records checksums of a new prerelease, verified by the scrub goal.
+     *
+     * @return number of files
+     */
+    public int recordChecksums() throws IOException {
+        return new Checksums(Runtime.getRuntime().availableProcessors()).record(directory);
+    }
+
+    /**
+     * Checks that the archive or revision lock is still held, unless this target is staged: staged targets are private to this
+     * process.
+     *
+     * @return fencing token, 0 for staged targets or without lock
+     */
+    long fence(String what) throws IOException {
+        if (staged) {
+            return 0;
+        }
+        archive.fence(revision, what);
+        return archive.token(revision);
+    }
+
+    /** Invoked when the prerelease has been built successfully. Updates the catalog with the descriptor. */
+    public void created() throws IOException {
+        if (creating != null) {
+            archive.journal().commit(creating);
+            creating = null;
+            // the index entry was added before the descriptor existed
+            archive.index().updateCatalog();
+        }
+    }
+
+    Journal journal() {
+        return archive.journal();
+    }
+
+    /** Computes the size of the prerelease. Invoke it before publish to walk a staged prerelease without the archive lock. */
+    public void measure() throws IOException {
+        try (Sizer sizer = new Sizer(Sizer.THREADS)) {
+            size = sizer.size(directory.toPath());
+        }
+    }
+
+    /** Caches the size of the prerelease, so retention and stats don't have to walk it later. Measures it if necessary. */
+    public void cacheSize() throws IOException {
+        Index.Entry entry;
+
+        entry = archive.index().lookup(revision);
+        if (entry != null && entry.state == Index.State.READY && entry.size < 0) {
+            if (size < 0) {
+                measure();
+            }
+            archive.index().sizes(Collections.singletonMap(revision, size));
+        }
     }
 
     public long getRevision() {
@@ -67,8 +240,77 @@ public class Target {
     }
 
     public void create() throws IOException {
-        removeDirectory().deleteTreeOpt();
-        directory.mkdirs();
+        FileNode remove;
+
+        archive.checkWritable();
+        if (staged) {
+            directory.deleteTreeOpt();
+            directory.mkdirs();
+            return;
+        }
+        remove = removeDirectory();
+        archive.index().lock();
+        try {
+            if (remove.exists()) {
+                Trash.move(archive.directory(level), remove);
+                archive.index().removeScheduled(level);
+            }
+            creating = archive.journal().begin(Journal.CREATE, revision, "");
+            directory.mkdirs();
+            archive.index().put(revision, level, Index.State.READY);
+        } finally {
+            archive.index().unlock();
+        }
+    }
+
+    /**
+     * Moves a staged target into the archive, locking the archive and the revision if not done yet. If the prerelease has been
+     * created concurrently, the staged directory is deleted and this target points to the existing prerelease.
+     *
+     * @return false if the staged directory was discarded
+     */
+    public boolean publish(Log log) throws IOException {
+        Index.Entry entry;
+        FileNode dest;
+        FileNode discard;
+        String operation;
+
+        if (!staged) {
+            throw new IllegalStateException("not staged: " + directory);
+        }
+        archive.checkWritable();
+        archive.lockRevision(revision);
+        archive.index().lock();
+        try {
+            entry = archive.index().lookup(revision);
+            if (entry != null && entry.state == Index.State.READY) {
+                discard = directory;
+                level = entry.level;
+                directory = archive.index().directory(entry);
+                size = -1;
+            } else {
+                discard = null;
+                dest = archive.directory(0).join(Long.toString(revision));
+                archive.fence(revision, "publish prerelease " + revision);
+                operation = archive.journal().begin(Journal.PUBLISH, revision, "");
+                dest.getParent().mkdirsOpt();
+                directory.move(dest);
+                level = 0;
+                directory = dest;
+                archive.index().put(revision, level, Index.State.READY);
+                archive.journal().commit(operation);
+            }
+            staged = false;
+        } finally {
+            archive.index().unlock();
+        }
+        if (discard != null) {
+            log.info("prerelease has been created concurrently in " + directory + " - discarding " + discard);
+            Trash.move(archive.directory(0), discard);
+            return false;
+        }
+        log.info("published prerelease to " + directory);
+        return true;
     }
 
     public Subversion.SvnCredentials getSvnCredentials() {
@@ -79,7 +321,7 @@ public class Target {
     }
 
     private FileNode removeDirectory() {
-        return directory.getParent().join(REMOVE);
+        return archive.directory(level).join(REMOVE);
     }
 
     public boolean checkoutLinkOpt(String path) throws IOException {
@@ -0,0 +1,99 @@
+/**
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.prerelease.core;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Limits bytes and files per second of copies between storages, so background goals like swap don't starve builds on the same
+ * disks. Shared by all threads of a goal; every thread sleeps until its bytes or files fit into the budget. Renames within a file
+ * system are not throttled.
+ */
+public class Throttle {
+    public static final Throttle NONE = new Throttle(0, 0);
+
+    private static final long SECOND = 1000000000L;
+
+    private final long bytesPerSecond;
+    private final long filesPerSecond;
+
+    /** nano time when the bytes reserved so far have been transferred at the configured rate */
+    private long bytesDone;
+    private long filesDone;
+
+    /**
+     * @param bytesPerSecond 0 for no limit
+     * @param filesPerSecond 0 for no limit
+     */
+    public Throttle(long bytesPerSecond, long filesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        this.filesPerSecond = filesPerSecond;
+        this.bytesDone = System.nanoTime();
+        this.filesDone = bytesDone;
+    }
+
+    public boolean isUnlimited() {
+        return bytesPerSecond == 0 && filesPerSecond == 0;
+    }
+
+    /** Invoked before copying the specified number of bytes. */
+    public void bytes(long count) throws InterruptedIOException {
+        if (bytesPerSecond > 0) {
+            sleep(reserveBytes(count));
+        }
+    }
+
+    /** Invoked before creating a file, directory or symlink. */
+    public void file() throws InterruptedIOException {
+        if (filesPerSecond > 0) {
+            sleep(reserveFile());
+        }
+    }
+
+    private synchronized long reserveBytes(long count) {
+        long now;
+
+        now = System.nanoTime();
+        bytesDone = Math.max(bytesDone, now) + count * SECOND / bytesPerSecond;
+        return bytesDone - now;
+    }
+
+    private synchronized long reserveFile() {
+        long now;
+
+        now = System.nanoTime();
+        filesDone = Math.max(filesDone, now) + SECOND / filesPerSecond;
+        return filesDone - now;
+    }
+
+    private static void sleep(long nanos) throws InterruptedIOException {
+        // bursts of up to 100 ms are fine
+        if (nanos <= SECOND / 10) {
+            return;
+        }
+        try {
+            Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("throttled copy interrupted");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return isUnlimited() ? "unlimited" : ((bytesPerSecond == 0 ? "" : bytesPerSecond / 1024 / 1024 + " MB/s ")
+                + (filesPerSecond == 0 ? "" : filesPerSecond + " files/s")).trim();
+    }
+}
@@ -0,0 +1,152 @@
+/**
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.prerelease.core;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.oneandone.sushi.fs.OnShutdown;
+import net.oneandone.sushi.fs.file.FileNode;
+
+/**
+ * Fair queue for processes waiting for the lock file of lock mode FILE. Every waiter creates a ticket file in the queue directory;
+ * ticket names sort in arrival order, and only the waiter with the first ticket tries to create the lock file. Waiters touch their
+ * ticket while waiting, tickets not touched for STALE seconds belong to dead processes and are removed.
+ *
+ * In addition, lock holders record how long they held the lock; the last durations are used to estimate the waiting time.
+ */
+public class Tickets {
+    private static final int STALE = 60;
+
+    /** number of hold durations to remember */
+    private static final int HISTORY = 10;
+
+    private static final AtomicInteger SEQUENCE = new AtomicInteger();
+
+    public static Tickets enter(FileNode directory) throws IOException {
+        FileNode ticket;
+
+        directory.mkdirsOpt();
+        ticket = directory.join(String.format("%016d-%010d-%010d", System.currentTimeMillis(), Archive.pid(), SEQUENCE.incrementAndGet()));
+        OnShutdown.get().deleteAtExit(ticket);
+        ticket.mkfile();
+        return new Tickets(directory, ticket);
+    }
+
+    //--
+
+    private final FileNode directory;
+    private final FileNode ticket;
+
+    private Tickets(FileNode directory, FileNode ticket) {
+        this.directory = directory;
+        this.ticket = ticket;
+    }
+
+    /** Touches the ticket and removes stale ones. @return number of live tickets ahead of this one; 0 if it's our turn */
+    public int position() throws IOException {
+        long now;
+        int result;
+
+        now = System.currentTimeMillis();
+        if (ticket.exists()) {
+            ticket.setLastModified(now);
+        } else {
+            // someone considered us dead
+            ticket.mkfile();
+        }
+        result = 0;
+        for (FileNode other : directory.list()) {
+            if (other.getName().compareTo(ticket.getName()) < 0) {
+                try {
+                    if (now - other.getLastModified() > STALE * 1000L) {
+                        other.deleteFileOpt();
+                        continue;
+                    }
+                } catch (IOException e) {
+                    // removed concurrently
+                    continue;
+                }
+                result++;
+            }
+        }
+        return result;
+    }
+
+    public void leave() throws IOException {
+        ticket.deleteFileOpt();
+        OnShutdown.get().dontDeleteAtExit(ticket);
+    }
+
+    //--
+
+    /** Appends the duration a lock was held to the history file. Invoked by the lock holder. */
+    public static void record(FileNode history, long millis) throws IOException {
+        List<String> lines;
+
+        lines = history.exists() ? new ArrayList<>(history.readLines()) : new ArrayList<String>();
+        lines.add(Long.toString(millis / 1000));
+        while (lines.size() > HISTORY) {
+            lines.remove(0);
+        }
+        history.writeLines(lines);
+    }
+
+    /**
+     * @param lock current lock file; the time since it was acquired is subtracted from the average hold time
+     * @param position number of waiters ahead
+     * @return estimated waiting time in seconds or -1 if unknown
+     */
+    public static long estimate(FileNode history, FileNode lock, int position) {
+        long sum;
+        int count;
+        long average;
+        long remaining;
+
+        sum = 0;
+        count = 0;
+        try {
+            if (history.exists()) {
+                for (String line : history.readLines()) {
+                    sum += Long.parseLong(line.trim());
+                    count++;
+                }
+            }
+            if (count == 0) {
+                return -1;
+            }
+            average = sum / count;
+            remaining = lock.exists() ? average - (System.currentTimeMillis() - acquired(lock)) / 1000 : 0;
+        } catch (IOException | NumberFormatException e) {
+            // concurrently modified or removed - not worth failing for
+            return -1;
+        }
+        return Math.max(0, remaining) + position * average;
+    }
+
+    /**
+     * @return when the lock was acquired: the third field of the lock file, or its last-modified time for lock files of older
+     * versions, which don't refresh it
+     */
+    public static long acquired(FileNode lock) throws IOException {
+        String[] fields;
+
+        fields = lock.readString().trim().split(" ");
+        return fields.length > 2 ? Long.parseLong(fields[2]) : lock.getLastModified();
+    }
+}
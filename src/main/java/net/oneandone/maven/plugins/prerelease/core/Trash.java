@@ -0,0 +1,64 @@
+/**
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.prerelease.core;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.oneandone.sushi.fs.file.FileNode;
+
+/**
+ * Trash directory next to an archive directory, one per storage. Removing a prerelease is a rename into the trash, which is cheap
+ * enough to be done while holding the archive lock. The trash is deleted later without lock, see reap. Entry names contain pid and
+ * host, so they're unique even if several hosts share the storage, and the Deleter tolerates files deleted concurrently, so
+ * processes can move into and reap the same trash at the same time.
+ */
+public class Trash {
+    public static final String SUFFIX = ".TRASH";
+
+    private static final AtomicInteger SEQUENCE = new AtomicInteger();
+
+    /** @param archiveDirectory directory of the archive in one of the storages */
+    public static FileNode directory(FileNode archiveDirectory) {
+        return archiveDirectory.getParent().join(archiveDirectory.getName() + SUFFIX);
+    }
+
+    /**
+     * Moves the directory into the trash of the specified archive directory. Both are in the same file system, so this is a rename.
+     *
+     * @return the directory in the trash
+     */
+    public static FileNode move(FileNode archiveDirectory, FileNode directory) throws IOException {
+        FileNode trash;
+        FileNode dest;
+
+        trash = directory(archiveDirectory);
+        trash.mkdirsOpt();
+        dest = trash.join(directory.getName() + "-" + Archive.pid() + "-" + Fence.host() + "-" + SEQUENCE.incrementAndGet());
+        directory.move(dest);
+        return dest;
+    }
+
+    /** Deletes the content of the trash directory. */
+    public static void reap(FileNode trash, Deleter deleter) throws IOException {
+        if (!trash.isDirectory()) {
+            return;
+        }
+        for (FileNode entry : trash.list()) {
+            deleter.delete(entry.toPath());
+        }
+    }
+}
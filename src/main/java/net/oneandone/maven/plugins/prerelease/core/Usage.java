@@ -0,0 +1,99 @@
+/**
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.prerelease.core;
+
+/** Disk usage of an archive in one storage, or of all archives of a storage. */
+public class Usage {
+    public final int level;
+    public int prereleases;
+    /** bytes of all prereleases with known size */
+    public long bytes;
+    /** number of prereleases with unknown size, e.g. because they were locked */
+    public int unknown;
+    /** lowest revision; -1 if there are no prereleases */
+    public long oldest;
+    /** highest revision; -1 if there are no prereleases */
+    public long newest;
+    /** number of REMOVE directories left over from failed or promoted prereleases */
+    public int removes;
+    public long removeBytes;
+
+    public Usage(int level) {
+        this.level = level;
+        this.oldest = -1;
+        this.newest = -1;
+    }
+
+    public boolean isEmpty() {
+        return prereleases == 0 && removes == 0;
+    }
+
+    public void prerelease(long revision, long size) {
+        prereleases++;
+        if (size < 0) {
+            unknown++;
+        } else {
+            bytes += size;
+        }
+        if (oldest == -1 || revision < oldest) {
+            oldest = revision;
+        }
+        if (newest == -1 || revision > newest) {
+            newest = revision;
+        }
+    }
+
+    public void remove(long size) {
+        removes++;
+        removeBytes += Math.max(0, size);
+    }
+
+    /** Adds the usage of another archive of the same storage. Revisions are not comparable between archives and not added. */
+    public void add(Usage other) {
+        prereleases += other.prereleases;
+        bytes += other.bytes;
+        unknown += other.unknown;
+        removes += other.removes;
+        removeBytes += other.removeBytes;
+    }
+
+    /** @return bytes of prereleases and leftovers */
+    public long total() {
+        return bytes + removeBytes;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder result;
+
+        result = new StringBuilder();
+        result.append(prereleases).append(" prereleases, ").append(mb(bytes));
+        if (unknown > 0) {
+            result.append(" (").append(unknown).append(" unknown)");
+        }
+        if (oldest != -1) {
+            result.append(", revisions ").append(oldest).append('-').append(newest);
+        }
+        if (removes > 0) {
+            result.append(", REMOVE ").append(removes).append(" ").append(mb(removeBytes));
+        }
+        return result.toString();
+    }
+
+    private static String mb(long bytes) {
+        return (bytes / 1024 / 1024) + " MB";
+    }
+}
@@ -0,0 +1,176 @@
+/**
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.prerelease.util;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import net.oneandone.sushi.fs.World;
+import net.oneandone.sushi.fs.file.FileNode;
+import net.oneandone.sushi.io.OS;
+import net.oneandone.sushi.util.Separator;
+
+/** Looks up start times of local processes. */
+public abstract class Processes {
+    /** @return /proc based implementation if available, ps based otherwise */
+    public static Processes create(World world) {
+        FileNode proc;
+
+        proc = world.file("/proc");
+        if (proc.join("self", "stat").exists()) {
+            return new Proc(proc);
+        } else {
+            return new Ps((FileNode) world.getWorking());
+        }
+    }
+
+    /** @return start time in milliseconds or null if there's no such process */
+    public abstract Long started(int pid) throws IOException;
+
+    //--
+
+    /** Linux: reads /proc/[pid]/stat, no fork, no date parsing. */
+    public static class Proc extends Processes {
+        /** USER_HZ; fixed for the user space interface of all Linux platforms */
+        private static final long TICKS_PER_SECOND = 100;
+
+        /** field 22 of /proc/[pid]/stat, counted from the state field that follows the command name */
+        private static final int STARTTIME = 22 - 3;
+
+        private final FileNode proc;
+        private long boot;
+
+        public Proc(FileNode proc) {
+            this.proc = proc;
+            this.boot = -1;
+        }
+
+        @Override
+        public Long started(int pid) throws IOException {
+            FileNode stat;
+            String line;
+            int idx;
+            String[] fields;
+
+            stat = proc.join(Integer.toString(pid), "stat");
+            try {
+                line = stat.readString();
+            } catch (IOException e) {
+                if (stat.exists()) {
+                    throw e;
+                }
+                return null;
+            }
+            // the command name may contain blanks and parenthesis
+            idx = line.lastIndexOf(')');
+            if (idx == -1) {
+                throw new IOException(stat + ": unexpected format: " + line);
+            }
+            fields = line.substring(idx + 1).trim().split(" ");
+            if (fields.length <= STARTTIME) {
+                throw new IOException(stat + ": unexpected format: " + line);
+            }
+            return boot() + Long.parseLong(fields[STARTTIME]) * 1000 / TICKS_PER_SECOND;
+        }
+
+        private long boot() throws IOException {
+            if (boot == -1) {
+                for (String line : proc.join("stat").readLines()) {
+                    if (line.startsWith("btime ")) {
+                        boot = Long.parseLong(line.substring(6).trim()) * 1000;
+                        return boot;
+                    }
+                }
+                throw new IOException("btime not found in " + proc.join("stat"));
+            }
+            return boot;
+        }
+    }
+
+    /** Other systems: parses the output of ps. Resolution is one day for processes that did not start today (except for Mac OS). */
+    public static class Ps extends Processes {
+        private static final SimpleDateFormat TODAY = new SimpleDateFormat("HH:mm:ss");
+        private static final SimpleDateFormat OTHER = new SimpleDateFormat("MMM dd", Locale.US);
+        private static final SimpleDateFormat MAC = new SimpleDateFormat("EEE MMM dd HH:mm:ss yyyy");
+
+        private final FileNode working;
+        private Map<Integer, Long> started;
+
+        public Ps(FileNode working) {
+            this.working = working;
+            this.started = null;
+        }
+
+        @Override
+        public Long started(int pid) throws IOException {
+            if (started == null) {
+                started = startedMap();
+            }
+            return started.get(pid);
+        }
+
+        private Map<Integer, Long> startedMap() throws IOException {
+            String[] cmd;
+            Map<Integer, Long> result;
+            boolean first;
+            int idx;
+            String pid;
+            String startedStr;
+            Date startedDate;
+
+            result = new HashMap<>();
+            first = true;
+            if (OS.CURRENT == OS.MAC) {
+                cmd = new String[] { "ps", "ax", "-o", "pid", "-o", "lstart"};
+            } else {
+                cmd = new String[] { "ps", "ax", "--format", "pid,start" };
+            }
+
+            for (String line : Separator.RAW_LINE.split(working.exec(cmd))) {
+                if (first) {
+                    if (!line.contains("PID")) {
+                        throw new IllegalStateException(line);
+                    }
+                    first = false;
+                } else {
+                    line = line.trim();
+                    idx = line.indexOf(' ');
+                    if (idx == -1) {
+                        throw new IllegalStateException(line);
+                    }
+                    pid = line.substring(0, idx);
+                    startedStr = line.substring(idx + 1).trim();
+                    try {
+                        if (OS.CURRENT == OS.MAC) {
+                            startedDate = MAC.parse(startedStr);
+                        } else {
+                            startedDate = (startedStr.indexOf(':') == -1 ? OTHER: TODAY).parse(startedStr);
+                        }
+                    } catch (ParseException e) {
+                        throw new IllegalStateException("invalid date in line " + line, e);
+                    }
+                    result.put(Integer.parseInt(pid), startedDate.getTime());
+                }
+            }
+            return result;
+        }
+    }
+}
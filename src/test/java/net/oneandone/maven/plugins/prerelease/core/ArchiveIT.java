@@ -21,8 +21,22 @@ import net.oneandone.sushi.fs.file.FileNode;
 import org.apache.maven.plugin.logging.Log;
 import org.junit.Test;
 
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 public class ArchiveIT extends IntegrationBase {
@@ -85,6 +99,551 @@ public class ArchiveIT extends IntegrationBase {
         archive.close();
     }
 
+    @Test
+    public void lockChannel2Thread() throws Exception {
+        final FileNode tmp;
+        final Archive archive;
+        final Archive archive2;
+        long started;
+
+        tmp = WORLD.getTemp().createTempDirectory();
+        archive = Archive.open(Collections.singletonList(tmp), LockMode.CHANNEL, 5, nullLog());
+        assertNull(Archive.tryOpen(Collections.singletonList(tmp), LockMode.CHANNEL));
+        new Thread() {
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                    archive.close();
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }.start();
+        started = System.currentTimeMillis();
+        archive2 = Archive.open(Collections.singletonList(tmp), LockMode.CHANNEL, 10, systemOutLog());
+        // no polling: woken up as soon as the lock is released
+        assertTrue(System.currentTimeMillis() - started < 1000);
+        archive2.close();
+    }
+
+    @Test
+    public void lockChannelTimeout() throws Exception {
+        final FileNode tmp;
+        final Archive archive;
+
+        tmp = WORLD.getTemp().createTempDirectory();
+        archive = Archive.open(Collections.singletonList(tmp), LockMode.CHANNEL, 5, nullLog());
+        try {
+            try (Archive archive2 = Archive.open(Collections.singletonList(tmp), LockMode.CHANNEL, 1, nullLog())) {
+                // empty - exception expected
+            }
+            fail();
+        } catch (LockTimeout e) {
+            // ok
+        }
+        archive.close();
+        Archive.open(Collections.singletonList(tmp), LockMode.CHANNEL, 1, nullLog()).close();
+    }
+
+    @Test
+    public void lockShared() throws Exception {
+        FileNode tmp;
+        List<FileNode> directories;
+        Archive reader;
+        Archive reader2;
+        Archive writer;
+
+        tmp = WORLD.getTemp().createTempDirectory();
+        directories = Collections.singletonList(tmp.join("g", "a"));
+        reader = Archive.open(directories, LockMode.CHANNEL, Access.READ, 1, nullLog());
+        reader2 = Archive.open(directories, LockMode.CHANNEL, Access.READ, 1, nullLog());
+        assertNull(Archive.tryOpen(directories, LockMode.CHANNEL));
+        assertTrue(reader.list().isEmpty());
+        try {
+            reader.wipe(1);
+            fail();
+        } catch (IllegalStateException e) {
+            // ok
+        }
+        reader.close();
+        assertNull(Archive.tryOpen(directories, LockMode.CHANNEL));
+        reader2.close();
+        writer = Archive.open(directories, LockMode.CHANNEL, Access.EXCLUSIVE, 1, nullLog());
+        try {
+            Archive.open(directories, LockMode.CHANNEL, Access.READ, 1, nullLog());
+            fail();
+        } catch (LockTimeout e) {
+            // ok
+        }
+        writer.close();
+        Archive.open(directories, LockMode.CHANNEL, Access.READ, 1, nullLog()).close();
+    }
+
+    @Test
+    public void lockRevision() throws Exception {
+        FileNode tmp;
+        List<FileNode> directories;
+        Archive first;
+        Archive second;
+
+        tmp = WORLD.getTemp().createTempDirectory();
+        directories = Collections.singletonList(tmp.join("g", "a"));
+        first = Archive.open(directories, LockMode.CHANNEL, Access.REVISION, 1, nullLog());
+        second = Archive.open(directories, LockMode.CHANNEL, Access.REVISION, 1, nullLog());
+        first.target(1, null).create();
+        second.target(2, null).create();
+        try {
+            second.target(17, null);
+            fail();
+        } catch (LockTimeout e) {
+            // ok - same stripe as revision 1
+        }
+        assertEquals(Arrays.asList(1L, 2L), new ArrayList<>(second.list().keySet()));
+        second.wipe(1);
+        // revision 1 is locked by the first archive
+        assertEquals(Arrays.asList(1L, 2L), new ArrayList<>(first.list().keySet()));
+        first.close();
+        second.wipe(1);
+        assertEquals(Arrays.asList(2L), new ArrayList<>(second.list().keySet()));
+        assertNull(Archive.tryOpen(directories, LockMode.CHANNEL));
+        second.close();
+        Archive.tryOpen(directories, LockMode.CHANNEL).close();
+    }
+
+    @Test
+    public void staging() throws Exception {
+        FileNode tmp;
+        List<FileNode> directories;
+        Archive first;
+        Archive second;
+        Target winner;
+        Target loser;
+        FileNode staged;
+
+        tmp = WORLD.getTemp().createTempDirectory();
+        directories = Collections.singletonList(tmp.join("g", "a"));
+        first = Archive.openDeferred(directories, LockMode.FILE, Access.REVISION, 1, 0, nullLog());
+        second = Archive.openDeferred(directories, LockMode.FILE, Access.REVISION, 1, 0, nullLog());
+        winner = first.stage(3, null);
+        loser = second.stage(3, null);
+        winner.create();
+        loser.create();
+        staged = WORLD.file(loser.toString());
+        assertTrue(staged.isDirectory());
+        // staging does not lock
+        Archive.tryOpen(directories).close();
+        assertTrue(winner.publish(nullLog()));
+        assertTrue(first.contains(3));
+        assertNull(Archive.tryOpen(directories));
+        first.close();
+        assertFalse(loser.publish(nullLog()));
+        assertFalse(staged.exists());
+        assertEquals(directories.get(0).join("3").getAbsolute(), loser.toString());
+        assertEquals(Arrays.asList(3L), new ArrayList<>(second.list().keySet()));
+        second.close();
+    }
+
+    @Test
+    public void tickets() throws Exception {
+        FileNode queue;
+        FileNode history;
+        List<String> names;
+        Tickets first;
+        Tickets second;
+        Tickets third;
+
+        queue = WORLD.getTemp().createTempDirectory();
+        first = Tickets.enter(queue);
+        second = Tickets.enter(queue);
+        third = Tickets.enter(queue);
+        assertEquals(0, first.position());
+        assertEquals(1, second.position());
+        assertEquals(2, third.position());
+        first.leave();
+        assertEquals(0, second.position());
+        // second died
+        names = new ArrayList<>();
+        for (FileNode ticket : queue.list()) {
+            names.add(ticket.getName());
+        }
+        Collections.sort(names);
+        queue.join(names.get(0)).setLastModified(System.currentTimeMillis() - 120000);
+        assertEquals(0, third.position());
+        assertEquals(1, queue.list().size());
+        third.leave();
+
+        history = queue.join("history");
+        assertEquals(-1, Tickets.estimate(history, queue.join("nosuchlock"), 0));
+        Tickets.record(history, 10000);
+        Tickets.record(history, 30000);
+        assertEquals(40, Tickets.estimate(history, queue.join("nosuchlock"), 2));
+        // held for 15 seconds, refreshed by its heartbeat
+        queue.join("lock").writeString("1@host 1 " + (System.currentTimeMillis() - 15000));
+        assertEquals(5 + 20, Tickets.estimate(history, queue.join("lock"), 1));
+    }
+
+    @Test
+    public void lease() throws Exception {
+        FileNode tmp;
+        List<FileNode> directories;
+        FileNode lock;
+        Archive archive;
+
+        tmp = WORLD.getTemp().createTempDirectory();
+        directories = Collections.singletonList(tmp.join("g", "a"));
+        lock = tmp.join("g", "a.LOCK");
+        lock.getParent().mkdirsOpt();
+        lock.writeString("0");
+        assertNull(Archive.tryOpen(directories, LockMode.FILE, 30, nullLog()));
+        // killed process, no more heartbeats
+        lock.setLastModified(System.currentTimeMillis() - 31000);
+        assertNull(Archive.tryOpen(directories, LockMode.FILE, 0, nullLog()));
+        archive = Archive.tryOpen(directories, LockMode.FILE, 30, nullLog());
+        assertTrue(lock.readString().startsWith(Fence.owner() + " " + archive.token() + " "));
+        archive.close();
+        assertFalse(lock.exists());
+    }
+
+    @Test
+    public void fencing() throws Exception {
+        FileNode tmp;
+        List<FileNode> directories;
+        FileNode lock;
+        Archive paused;
+        Archive archive;
+
+        tmp = WORLD.getTemp().createTempDirectory();
+        directories = Collections.singletonList(tmp.join("g", "a"));
+        lock = tmp.join("g", "a.LOCK");
+        paused = Archive.tryOpen(directories, LockMode.FILE, 30, nullLog());
+        paused.target(1, null).create();
+        paused.target(2, null).create();
+        assertEquals(1, paused.token());
+        // holder paused longer than the lease: its lock is taken over
+        lock.setLastModified(System.currentTimeMillis() - 31000);
+        archive = Archive.tryOpen(directories, LockMode.FILE, 30, nullLog());
+        assertEquals(2, archive.token());
+        try {
+            paused.target(1, null).scheduleRemove(nullLog(), "late");
+            fail();
+        } catch (Fenced e) {
+            // ok
+        }
+        archive.target(2, null).scheduleRemove(nullLog(), "test");
+        assertEquals(Arrays.asList(1L), new ArrayList<>(archive.list().keySet()));
+        // does not delete the lock of the new holder
+        paused.close();
+        assertTrue(lock.exists());
+        archive.close();
+        assertFalse(lock.exists());
+        assertEquals("2", tmp.join("g", "a.FENCE").readString());
+    }
+
+    @Test
+    public void fencingProcesses() throws Exception {
+        FileNode tmp;
+        List<FileNode> directories;
+        FileNode lock;
+        Process process;
+        BufferedReader stdout;
+        Archive archive;
+
+        tmp = WORLD.getTemp().createTempDirectory();
+        directories = Collections.singletonList(tmp.join("g", "a"));
+        lock = tmp.join("g", "a.LOCK");
+        process = new ProcessBuilder(Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-D" + Fence.HOST_PROPERTY + "=other-host", "-cp", System.getProperty("java.class.path"),
+                FencedProcess.class.getName(), directories.get(0).getAbsolute()).redirectErrorStream(true).start();
+        stdout = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+        try {
+            assertEquals("token 1", stdout.readLine());
+            assertTrue(lock.readString().contains("@other-host "));
+            // the other host is paused longer than the lease: its lock is taken over
+            lock.setLastModified(System.currentTimeMillis() - 31000);
+            archive = Archive.tryOpen(directories, LockMode.FILE, 30, nullLog());
+            assertEquals(2, archive.token());
+            process.getOutputStream().write('\n');
+            process.getOutputStream().flush();
+            assertEquals("fenced", stdout.readLine());
+            assertEquals(0, process.waitFor());
+            assertTrue(lock.readString().startsWith(Fence.owner() + " "));
+            assertEquals(Arrays.asList(1L), new ArrayList<>(archive.list().keySet()));
+            archive.close();
+        } finally {
+            process.destroy();
+        }
+    }
+
+    @Test
+    public void fencingRevisions() throws Exception {
+        FileNode tmp;
+        List<FileNode> directories;
+
+        tmp = WORLD.getTemp().createTempDirectory();
+        directories = Collections.singletonList(tmp.join("g", "a"));
+        try (Archive archive = Archive.open(directories, LockMode.CHANNEL, Access.REVISION, 1, nullLog())) {
+            archive.target(1, null).create();
+            assertEquals(0, archive.token());
+            assertEquals(1, archive.token(1));
+            assertEquals(0, archive.token(2));
+            // the revision lock is lost, e.g. with the NFS lease of this client, and taken over
+            new Fence(tmp.join("g", "a.FENCE1")).next();
+            try {
+                archive.target(1, null).scheduleRemove(nullLog(), "late");
+                fail();
+            } catch (Fenced e) {
+                // ok
+            }
+        }
+    }
+
+    @Test
+    public void trash() throws Exception {
+        FileNode tmp;
+        List<FileNode> directories;
+        FileNode trash;
+
+        tmp = WORLD.getTemp().createTempDirectory();
+        directories = Collections.singletonList(tmp.join("g", "a"));
+        try (Archive archive = Archive.open(directories, 1, nullLog())) {
+            archive.target(1, null).create();
+            archive.target(1, null).join("file").writeString("a");
+            archive.target(2, null).create();
+            archive.target(2, null).scheduleRemove(nullLog(), "test");
+            archive.target(3, null).create();
+            archive.wipe(1);
+            assertEquals(Arrays.asList(3L), new ArrayList<>(archive.list().keySet()));
+        }
+        trash = Trash.directory(directories.get(0));
+        assertEquals(2, trash.list().size());
+        try (Deleter deleter = new Deleter(2, 1000)) {
+            Archive.reap(directories, deleter);
+            assertEquals(4, deleter.getFiles());
+            // "a" and CAUSE "test"
+            assertEquals(1 + 4, deleter.getBytes());
+        }
+        assertEquals(0, trash.list().size());
+    }
+
+    @Test
+    public void evict() throws Exception {
+        FileNode tmp;
+        List<FileNode> directories;
+
+        tmp = WORLD.getTemp().createTempDirectory();
+        directories = Collections.singletonList(tmp.join("g", "a"));
+        try (Archive archive = Archive.open(directories, 1, nullLog())) {
+            archive.target(1, null).create();
+            archive.target(1, null).join("file").writeString("abc");
+            archive.target(2, null).create();
+            assertEquals(2, archive.prereleases(true).size());
+            for (Index.Entry entry : archive.prereleases(false)) {
+                assertEquals(entry.revision == 1 ? 3 : 0, entry.size);
+            }
+            assertTrue(archive.evict(1));
+            assertFalse(archive.evict(1));
+            assertEquals(Arrays.asList(2L), new ArrayList<>(archive.list().keySet()));
+        }
+        assertEquals(1, Trash.directory(directories.get(0)).list().size());
+    }
+
+    @Test
+    public void usage() throws Exception {
+        FileNode tmp;
+        List<FileNode> directories;
+        List<Usage> usage;
+
+        tmp = WORLD.getTemp().createTempDirectory();
+        directories = Arrays.asList(tmp.join("1", "g", "a"), tmp.join("2", "g", "a"));
+        try (Archive archive = Archive.open(directories, 1, nullLog())) {
+            archive.target(1, null).create();
+            archive.target(1, null).join("file").writeString("abc");
+            archive.target(2, null).create();
+            archive.target(2, null).join("file").writeString("ab");
+            archive.target(3, null).create();
+            archive.target(3, null).scheduleRemove(nullLog(), "x");
+            archive.swap(1);
+            usage = archive.usage();
+            assertEquals("1 prereleases, 0 MB, revisions 2-2, REMOVE 1 0 MB", usage.get(0).toString());
+            assertEquals(2, usage.get(0).bytes);
+            assertEquals(1, usage.get(0).removeBytes);
+            assertEquals(3, usage.get(1).bytes);
+            assertEquals(1, usage.get(1).oldest);
+        }
+        // cached
+        assertEquals(3, Index.load(directories).lookup(1).size);
+    }
+
+    @Test
+    public void journal() throws Exception {
+        FileNode tmp;
+        List<FileNode> directories;
+        FileNode file;
+        List<Journal.Operation> operations;
+        String dead;
+        String content;
+
+        tmp = WORLD.getTemp().createTempDirectory();
+        directories = Arrays.asList(tmp.join("1", "g", "a"), tmp.join("2", "g", "a"));
+        try (Archive archive = Archive.open(directories, 1, nullLog())) {
+            archive.target(1, null).create();
+            archive.target(2, null).create();
+            archive.target(3, null).create();
+            archive.swap(2);
+            file = archive.journal().getFile();
+        }
+        // operations of a process that died: a create of 3 and a swap of 1 that copied half of the files
+        dead = System.currentTimeMillis() + " " + Integer.MAX_VALUE + ".x.";
+        file.writeString(file.readString() + dead + "1 BEGIN CREATE 3 \n" + dead + "2 BEGIN SWAP 1 0\n");
+        Mover.temp(directories.get(1).join("1")).mkdirs();
+        Mover.temp(directories.get(1).join("1")).join("half").writeString("");
+        content = file.readString();
+        // reading doesn't recover, not even with lock mode FILE
+        Archive.open(directories, LockMode.FILE, Access.READ, 1, nullLog()).close();
+        assertEquals(content, file.readString());
+        try (Archive archive = Archive.open(directories, 1, nullLog())) {
+            assertEquals(Arrays.asList(1L, 2L), new ArrayList<>(archive.list().keySet()));
+            assertEquals(directories.get(0).join("1"), archive.list().get(1L));
+            assertEquals(directories.get(1).join("2"), archive.list().get(2L));
+            operations = archive.journal().operations();
+        }
+        assertEquals(6, operations.size());
+        assertTrue(operations.get(0).isPending());
+        assertEquals(Journal.SWAP, operations.get(3).name);
+        assertEquals(Journal.Event.COMMIT, operations.get(3).outcome);
+        assertEquals("recovered: rolled back", operations.get(4).message);
+        assertEquals("recovered: partial copy kept to resume", operations.get(5).message);
+        try (Archive archive = Archive.open(directories, 1, nullLog())) {
+            archive.wipe(10);
+            // kept while the prerelease has not been moved
+            assertTrue(Mover.temp(directories.get(1).join("1")).exists());
+            archive.swap(1);
+            archive.wipe(10);
+            assertFalse(Mover.temp(directories.get(1).join("1")).exists());
+        }
+    }
+
+    @Test
+    public void container() throws Exception {
+        FileNode tmp;
+        List<FileNode> directories;
+        Target target;
+        Properties properties;
+
+        tmp = WORLD.getTemp().createTempDirectory();
+        Backend.init(tmp.join("2"), Backend.CONTAINER);
+        directories = Arrays.asList(tmp.join("1", "g", "a"), tmp.join("2", "g", "a"), tmp.join("3", "g", "a"));
+        try (Archive archive = Archive.open(directories, 1, nullLog())) {
+            target = archive.target(1, null);
+            target.create();
+            target.join("prerelease.properties").writeString("prerelease=1");
+            target.join("tags", "t").mkdirs();
+            target.join("tags", "t", "run.sh").writeString("#!/bin/sh");
+            target.join("tags", "t", "run.sh").toPath().toFile().setExecutable(true);
+            assertEquals(directories.get(1).join("1.zip"), archive.swap(1));
+            assertFalse(directories.get(0).join("1").exists());
+            assertTrue(archive.contains(1));
+            target = archive.target(1, null);
+            assertTrue(target.isPacked());
+            properties = new Properties();
+            try (InputStream src = target.createInputStream("prerelease.properties")) {
+                properties.load(src);
+            }
+            assertEquals("1", properties.getProperty("prerelease"));
+        }
+        // rebuild recognizes containers
+        Index.file(directories).deleteFile();
+        try (Archive archive = Archive.open(directories, 1, nullLog())) {
+            assertEquals(directories.get(1).join("1.zip"), archive.list().get(1L));
+            assertEquals(directories.get(2).join("1"), archive.swap(1));
+            assertTrue(directories.get(2).join("1", "tags", "t", "run.sh").toPath().toFile().canExecute());
+            assertFalse(directories.get(1).join("1.zip").exists());
+        }
+    }
+
+    @Test
+    public void stageIn() throws Exception {
+        FileNode tmp;
+        List<FileNode> directories;
+        Target target;
+
+        tmp = WORLD.getTemp().createTempDirectory();
+        Backend.init(tmp.join("3"), Backend.CONTAINER);
+        directories = Arrays.asList(tmp.join("1", "g", "a"), tmp.join("2", "g", "a"), tmp.join("3", "g", "a"));
+        try (Archive archive = Archive.open(directories, 1, nullLog())) {
+            for (long revision = 1; revision <= 3; revision++) {
+                target = archive.target(revision, null);
+                target.create();
+                target.join("tags", "t").mkdirs();
+                target.join("tags", "t", "pom.xml").writeString("pom " + revision);
+                Files.createSymbolicLink(target.join("tags", "t", "link").toPath(), Paths.get("pom.xml"));
+                archive.swap(revision);
+            }
+            archive.swap(2);
+            assertEquals(directories.get(1).join("1"), archive.list().get(1L));
+            assertEquals(directories.get(2).join("2.zip"), archive.list().get(2L));
+
+            target = archive.target(1, null);
+            assertTrue(target.stageIn(nullLog(), 2));
+            assertEquals(0, target.getLevel());
+            assertEquals("pom 1", target.join("tags", "t", "pom.xml").readString());
+            assertFalse(target.stageIn(nullLog(), 2));
+
+            target = archive.target(2, null);
+            assertTrue(target.isPacked());
+            assertTrue(target.stageIn(nullLog(), 2));
+            assertFalse(target.isPacked());
+            assertEquals(directories.get(0).join("2"), archive.list().get(2L));
+            assertEquals("pom 2", target.join("tags", "t", "link").readString());
+            assertFalse(directories.get(2).join("2.zip").exists());
+        }
+        // readers upgrade the revision lock
+        try (Archive archive = Archive.open(directories, LockMode.CHANNEL, Access.READ, 1, nullLog())) {
+            target = archive.target(3, null);
+            assertEquals(1, target.getLevel());
+            assertTrue(target.stageIn(nullLog(), 2));
+            assertEquals(directories.get(0).join("3"), archive.list().get(3L));
+            assertEquals("pom 3", target.join("tags", "t", "pom.xml").readString());
+        }
+    }
+
+    @Test
+    public void index() throws Exception {
+        FileNode primary;
+        FileNode secondary;
+        List<FileNode> directories;
+
+        primary = WORLD.getTemp().createTempDirectory();
+        secondary = WORLD.getTemp().createTempDirectory();
+        directories = Arrays.asList(primary.join("g", "a"), secondary.join("g", "a"));
+        directories.get(0).join("3").mkdirs();
+        directories.get(1).join("1").mkdirs();
+        directories.get(1).join("2").mkdirs();
+        directories.get(1).join(Target.REMOVE).mkdirs();
+        try (Archive archive = Archive.open(directories, 1, nullLog())) {
+            assertEquals(Arrays.asList(1L, 2L, 3L), new ArrayList<>(archive.list().keySet()));
+            assertEquals(directories.get(1).join("2"), archive.list().get(2L));
+            assertNull(archive.swap(2));
+            assertEquals(directories.get(1).join("3"), archive.swap(3));
+            assertNull(archive.swap(3));
+            assertEquals(directories.get(0).join("3"), archive.move(3, 0, Throttle.NONE));
+            assertNull(archive.move(3, 0, Throttle.NONE));
+            assertTrue(archive.target(3, null).exists());
+            assertEquals(directories.get(0).join("4"), archive.target(4, null).join());
+        }
+        assertTrue(Index.file(directories).exists());
+
+        // modified without updating the index
+        directories.get(1).join("1").deleteDirectory();
+        try (Archive archive = Archive.open(directories, 1, nullLog())) {
+            assertEquals(Arrays.asList(2L, 3L), new ArrayList<>(archive.list().keySet()));
+            archive.wipe(1);
+            assertEquals(Arrays.asList(3L), new ArrayList<>(archive.list().keySet()));
+            assertFalse(directories.get(1).join("2").exists());
+            assertFalse(directories.get(1).join(Target.REMOVE).exists());
+        }
+    }
+
     public static Log nullLog() {
         return new Log() {
             @Override
@@ -0,0 +1,67 @@
+/**
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.prerelease.core;
+
+import net.oneandone.sushi.fs.World;
+import net.oneandone.sushi.fs.file.FileNode;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class BackendTest {
+    @Test
+    public void prefix() {
+        assertEquals(Backend.CONTAINER, Backend.prefixOpt("zip:/cold"));
+        assertEquals(Backend.DIRECTORY, Backend.prefixOpt("directory:/hot"));
+        assertNull(Backend.prefixOpt("/mnt/a:b"));
+        assertNull(Backend.prefixOpt("C:\\prereleases"));
+    }
+
+    @Test
+    public void init() throws IOException {
+        FileNode tmp;
+        FileNode storage;
+
+        tmp = new World().getTemp().createTempDirectory();
+        storage = tmp.join("empty");
+        Backend.init(storage, Backend.DIRECTORY);
+        assertFalse(storage.exists());
+        Backend.init(storage, Backend.CONTAINER);
+        assertEquals(Backend.CONTAINER, Backend.forStorage(storage));
+        Backend.init(storage, Backend.CONTAINER);
+        try {
+            Backend.init(storage, Backend.DIRECTORY);
+            fail();
+        } catch (IOException e) {
+            // ok
+        }
+
+        storage = tmp.join("used");
+        storage.join("g", "a", "123").mkdirs();
+        try {
+            Backend.init(storage, Backend.CONTAINER);
+            fail();
+        } catch (IOException e) {
+            // ok
+        }
+        assertEquals(Backend.DIRECTORY, Backend.forStorage(storage));
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.prerelease.core;
+
+import net.oneandone.sushi.fs.World;
+import net.oneandone.sushi.fs.file.FileNode;
+import net.oneandone.sushi.util.Strings;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+
+public class BlobsTest {
+    @Test
+    public void dedup() throws IOException {
+        FileNode storage;
+        Blobs blobs;
+        FileNode first;
+        FileNode second;
+        String content;
+
+        storage = new World().getTemp().createTempDirectory();
+        blobs = Blobs.forArchive(storage.join("g", "a"));
+        content = Strings.times('x', (int) Blobs.MIN_SIZE);
+        first = storage.join("g", "a", "1", "artifacts");
+        first.mkdirs();
+        first.join("a.jar").writeString(content);
+        first.join("a.pom").writeString("small");
+        second = storage.join("g", "a", "2", "artifacts");
+        second.mkdirs();
+        second.join("a.jar").writeString(content);
+        second.join("a.pom").writeString("small");
+
+        assertEquals(0, blobs.dedup(first));
+        assertEquals(Blobs.MIN_SIZE, blobs.dedup(second));
+        assertEquals(3, Blobs.links(second.join("a.jar").toPath()));
+        assertEquals(1, Blobs.links(second.join("a.pom").toPath()));
+        assertEquals(content, second.join("a.jar").readString());
+        assertEquals(Blobs.MIN_SIZE / 2 + 5, Archive.size(second.toPath()));
+        try (Sizer sizer = new Sizer(4)) {
+            assertEquals(Blobs.MIN_SIZE / 2 + 5, sizer.size(second.toPath()));
+            assertEquals(2 * (Blobs.MIN_SIZE / 2 + 5), sizer.size(storage.join("g", "a").toPath()));
+        }
+
+        Blobs.unshare(second.join("a.jar").toPath());
+        assertEquals(1, Blobs.links(second.join("a.jar").toPath()));
+        assertEquals(content, second.join("a.jar").readString());
+
+        try (Deleter deleter = new Deleter(1, 0)) {
+            assertEquals(0, blobs.collect(deleter));
+            first.deleteTree();
+            assertEquals(1, blobs.collect(deleter));
+        }
+    }
+
+    @Test
+    public void pristines() throws IOException {
+        FileNode storage;
+        Blobs blobs;
+        String name;
+        FileNode first;
+        FileNode second;
+
+        storage = new World().getTemp().createTempDirectory();
+        blobs = Blobs.forArchive(storage.join("g", "a"));
+        name = "0123456789012345678901234567890123456789";
+        first = storage.join("g", "a", "1", "tags", ".svn", "pristine");
+        first.join("01").mkdirs();
+        first.join("01", name + ".svn-base").writeString("content");
+        second = storage.join("g", "a", "2", "tags", ".svn", "pristine");
+        second.join("01").mkdirs();
+        second.join("01", name + ".svn-base").writeString("content");
+        second.join("01", "other.svn-base").writeString("other");
+
+        assertEquals(0, blobs.dedupPristines(first));
+        assertEquals(7, blobs.dedupPristines(second));
+        assertEquals(3, Blobs.links(second.join("01", name + ".svn-base").toPath()));
+        assertEquals(1, Blobs.links(second.join("01", "other.svn-base").toPath()));
+        assertEquals("content", second.join("01", name + ".svn-base").readString());
+        assertEquals(0, blobs.dedupPristines(storage.join("nosuchdir")));
+
+        // linked files free nothing
+        try (Deleter deleter = new Deleter(1, 0)) {
+            deleter.delete(second.toPath());
+            assertEquals(5, deleter.getBytes());
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/**
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.prerelease.core;
+
+import net.oneandone.sushi.fs.World;
+import net.oneandone.sushi.fs.file.FileNode;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CatalogTest {
+    @Test
+    public void updates() throws IOException {
+        FileNode storage;
+        Catalog catalog;
+        Index index;
+        List<Catalog.Record> records;
+        long length;
+
+        storage = new World().getTemp().createTempDirectory();
+        catalog = Catalog.forStorage(storage);
+        assertTrue(catalog.all().isEmpty());
+        archive(storage, "g", "b", 3);
+        archive(storage, "h", "a", 1);
+        index = archive(storage, "g", "a", 2);
+
+        records = catalog.all();
+        assertEquals(6, records.size());
+        assertEquals("g:a 1 READY storage 1 1.0.1 https://svn/g/a", records.get(0).toString());
+        assertEquals("h", records.get(5).groupId);
+        assertEquals(5, catalog.select("g", null).size());
+        records = catalog.select("g", "b");
+        assertEquals(3, records.size());
+        assertEquals(3, records.get(2).revision);
+        assertEquals("https://svn/tags/b-1.0.3", records.get(2).svnTag);
+        assertTrue(catalog.select("g", "c").isEmpty());
+        assertTrue(catalog.select("f", null).isEmpty());
+
+        index.put(2, 0, Index.State.PROMOTED);
+        index.remove(1);
+        records = catalog.select("g", "a");
+        assertEquals(1, records.size());
+        assertEquals(Index.State.PROMOTED, records.get(0).state);
+        // descriptor kept from the READY record
+        assertEquals("1.0.2", records.get(0).version);
+        assertEquals(6 - 1, catalog.all().size());
+
+        // sizes don't change the catalog
+        length = storage.join(Catalog.FILE + ".0.LOG").length();
+        index.sizes(Collections.singletonMap(2L, 100L));
+        assertEquals(length, storage.join(Catalog.FILE + ".0.LOG").length());
+    }
+
+    @Test
+    public void compact() throws IOException {
+        FileNode storage;
+        Catalog catalog;
+        Index index;
+
+        storage = new World().getTemp().createTempDirectory();
+        catalog = Catalog.forStorage(storage);
+        archive(storage, "g", "b", 3);
+        index = archive(storage, "g", "a", 100);
+        assertFalse(catalog.getFile().exists());
+        while (!catalog.getFile().exists()) {
+            index.put(1, 0, Index.State.PROMOTED);
+            index.put(1, 0, Index.State.READY);
+        }
+        // first generation; its log is kept for readers of the previous base file
+        assertTrue(storage.join(Catalog.FILE + ".0.LOG").exists());
+        assertEquals(103, catalog.all().size());
+        index.remove(2);
+        assertTrue(storage.join(Catalog.FILE + ".1.LOG").exists());
+        assertEquals(99, catalog.select("g", "a").size());
+        assertEquals(3, catalog.select("g", "b").size());
+        assertEquals(102, catalog.all().size());
+    }
+
+    @Test
+    public void created() throws Exception {
+        FileNode storage;
+        Catalog catalog;
+        Target target;
+
+        storage = new World().getTemp().createTempDirectory();
+        catalog = Catalog.forStorage(storage);
+        try (Archive archive = Archive.open(Collections.singletonList(storage.join("g", "a")), 1, null)) {
+            target = archive.target(1, null);
+            target.create();
+            assertFalse(catalog.select("g", "a").get(0).hasDescriptor());
+            target.join(Descriptor.FILE).writeLines(Descriptor.PROJECT_VERSION + "=1.0.1", Descriptor.SVN_ORIG + "=https://svn/g/a",
+                    Descriptor.SVN_TAG + "=https://svn/tags/a-1.0.1");
+            target.created();
+            assertEquals("https://svn/g/a", catalog.select("g", "a").get(0).svnOrig);
+        }
+    }
+
+    @Test
+    public void rebuild() throws IOException {
+        FileNode storage;
+        Catalog catalog;
+        List<Catalog.Record> records;
+
+        storage = new World().getTemp().createTempDirectory();
+        catalog = Catalog.forStorage(storage);
+        archive(storage, "g", "a", 2);
+        records = new ArrayList<>(catalog.select("g", "a"));
+        Collections.reverse(records);
+        records.remove(0);
+        catalog.rebuild(records, -1, null);
+        assertEquals(1, catalog.all().size());
+        assertEquals(1, catalog.all().get(0).revision);
+    }
+
+    private static Index archive(FileNode storage, String groupId, String artifactId, int count) throws IOException {
+        FileNode directory;
+        FileNode prerelease;
+        List<FileNode> directories;
+
+        directory = storage.join(groupId, artifactId);
+        for (int revision = 1; revision <= count; revision++) {
+            prerelease = directory.join(Integer.toString(revision));
+            prerelease.mkdirs();
+            prerelease.join(Descriptor.FILE).writeLines(
+                    Descriptor.PROJECT_VERSION + "=1.0." + revision,
+                    Descriptor.SVN_ORIG + "=https://svn/" + groupId + "/" + artifactId,
+                    Descriptor.SVN_TAG + "=https://svn/tags/" + artifactId + "-1.0." + revision);
+        }
+        directories = new ArrayList<>();
+        directories.add(directory);
+        return Index.load(directories);
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.prerelease.core;
+
+import net.oneandone.sushi.fs.World;
+import net.oneandone.sushi.fs.file.FileNode;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ChecksumsTest {
+    @Test
+    public void covered() {
+        assertTrue(Checksums.isCovered("artifacts/a/b.jar"));
+        assertTrue(Checksums.isCovered("tags/x/pom.xml"));
+        assertTrue(Checksums.isCovered("tags/.svn/pristine/ab/abc.svn-base"));
+        assertFalse(Checksums.isCovered("tags/.svn/wc.db"));
+        assertFalse(Checksums.isCovered("tags/x/target/classes"));
+        assertFalse(Checksums.isCovered("tags/x/sub/target"));
+        assertFalse(Checksums.isCovered("prerelease.properties"));
+    }
+
+    @Test
+    public void verify() throws IOException {
+        FileNode prerelease;
+        Checksums checksums;
+
+        prerelease = prerelease();
+        checksums = new Checksums(3);
+        assertNull(checksums.verify(Backend.DIRECTORY, prerelease));
+        assertEquals(4, checksums.record(prerelease));
+        assertEquals(Collections.emptyList(), checksums.verify(Backend.DIRECTORY, prerelease));
+
+        // not covered
+        prerelease.join("tags", ".svn", "wc.db").writeString("modified");
+        prerelease.join("tags", "x", "target", "out").writeString("rebuilt");
+        assertEquals(Collections.emptyList(), checksums.verify(Backend.DIRECTORY, prerelease));
+
+        prerelease.join("artifacts", "a.jar").writeString("jaR");
+        prerelease.join("tags", "x", "pom.xml").writeString("<pro");
+        prerelease.join("tags", ".svn", "pristine", "ab", "abc").deleteFile();
+        assertEquals(Arrays.asList("checksum mismatch: artifacts/a.jar", "missing: tags/.svn/pristine/ab/abc",
+                "size 4, expected 9: tags/x/pom.xml"), checksums.verify(Backend.DIRECTORY, prerelease));
+    }
+
+    @Test
+    public void container() throws IOException {
+        FileNode prerelease;
+        FileNode zip;
+        Checksums checksums;
+
+        prerelease = prerelease();
+        checksums = new Checksums(2);
+        checksums.record(prerelease);
+        zip = prerelease.getParent().join("1.zip");
+        Backend.CONTAINER.copy(Backend.DIRECTORY, prerelease, zip, Throttle.NONE);
+        assertEquals(Collections.emptyList(), checksums.verify(Backend.CONTAINER, zip));
+    }
+
+    private static FileNode prerelease() throws IOException {
+        FileNode result;
+
+        result = new World().getTemp().createTempDirectory().join("1");
+        result.join("artifacts").mkdirs();
+        result.join("artifacts", "a.jar").writeString("jar");
+        result.join("artifacts", "a.pom").writeString("pom");
+        result.join("tags", "x", "target").mkdirs();
+        result.join("tags", "x", "pom.xml").writeString("<project>");
+        result.join("tags", "x", "target", "out").writeString("built");
+        result.join("tags", ".svn", "pristine", "ab").mkdirs();
+        result.join("tags", ".svn", "pristine", "ab", "abc").writeString("pristine");
+        result.join("tags", ".svn", "wc.db").writeString("db");
+        result.join("prerelease.properties").writeString("project.version=1.0");
+        return result;
+    }
+}
@@ -0,0 +1,64 @@
+/**
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.prerelease.core;
+
+import net.oneandone.sushi.fs.World;
+import net.oneandone.sushi.fs.file.FileNode;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FenceTest {
+    @Test
+    public void tokens() throws IOException {
+        Fence fence;
+
+        fence = new Fence(new World().getTemp().createTempDirectory().join("a.FENCE"));
+        assertEquals(0, fence.current());
+        fence.check(0, "no token");
+        assertEquals(1, fence.next());
+        fence.check(1, "current token");
+        assertEquals(2, fence.next());
+        try {
+            fence.check(1, "old token");
+            fail();
+        } catch (Fenced e) {
+            assertTrue(e.getMessage().contains("token 1 superseded by 2"));
+        }
+    }
+
+    @Test
+    public void owner() {
+        assertEquals(Archive.pid(), Fence.pid(Fence.owner()));
+        assertEquals(Fence.host(), Fence.host(Fence.owner()));
+        assertEquals(123, Fence.pid("123"));
+        assertNull(Fence.host("123"));
+        assertEquals("build-2.example.com", Fence.host("123@build-2.example.com"));
+    }
+
+    @Test
+    public void remoteOperations() {
+        assertFalse(new Journal.Operation("1.a.1", Journal.CREATE, 1, "", 0).isRemote());
+        assertTrue(new Journal.Operation("1.a.1@" + Fence.host() + "-other", Journal.CREATE, 1, "", 0).isRemote());
+        assertFalse(new Journal.Operation("1.a.1@" + Fence.host(), Journal.CREATE, 1, "", 0).isRemote());
+    }
+}
@@ -0,0 +1,56 @@
+/**
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.prerelease.core;
+
+import net.oneandone.sushi.fs.World;
+import net.oneandone.sushi.fs.file.FileNode;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Lock holder in a separate JVM, started by ArchiveIT with -Dprerelease.host to simulate another host. Creates a prerelease,
+ * reports its token and waits for a line on stdin, i.e. it's paused until the parent has taken over the lock; then it tries to
+ * remove the prerelease.
+ */
+public class FencedProcess {
+    public static void main(String[] args) throws Exception {
+        List<FileNode> directories;
+        Archive archive;
+        Target target;
+
+        directories = Collections.singletonList(new World().file(args[0]));
+        archive = Archive.tryOpen(directories, LockMode.FILE, 30, ArchiveIT.nullLog());
+        if (archive == null) {
+            System.out.println("locked");
+            return;
+        }
+        target = archive.target(1, null);
+        target.create();
+        target.created();
+        System.out.println("token " + archive.token());
+        new BufferedReader(new InputStreamReader(System.in)).readLine();
+        try {
+            archive.target(1, null).scheduleRemove(ArchiveIT.nullLog(), "late");
+            System.out.println("not fenced");
+        } catch (Fenced e) {
+            System.out.println("fenced");
+        }
+        archive.close();
+    }
+}
@@ -0,0 +1,63 @@
+/**
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.prerelease.core;
+
+import net.oneandone.sushi.fs.World;
+import net.oneandone.sushi.fs.file.FileNode;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class IndexTest {
+    @Test
+    public void rebuildKeepsEntries() throws IOException {
+        FileNode directory;
+        List<FileNode> directories;
+        Index index;
+        long accessed;
+
+        directory = new World().getTemp().createTempDirectory().join("g", "a");
+        directory.join("1").mkdirs();
+        directory.join("2").mkdirs();
+        directories = Collections.singletonList(directory);
+        index = Index.load(directories);
+        index.sizes(Collections.singletonMap(1L, 100L));
+        directory.join(Target.REMOVE).mkdirs();
+        index.put(3, 0, Index.State.PROMOTED);
+        accessed = index.lookup(1).accessed;
+
+        // external modification: the index is stale
+        directory.join("4").mkdirs();
+        directory.setLastModified(directory.getLastModified() - 5000);
+        index = Index.load(directories);
+        assertEquals(100, index.lookup(1).size);
+        assertEquals(accessed, index.lookup(1).accessed);
+        assertEquals(-1, index.lookup(2).size);
+        assertEquals(Index.State.PROMOTED, index.lookup(3).state);
+        assertEquals(Index.State.READY, index.lookup(4).state);
+
+        directory.join(Target.REMOVE).deleteDirectory();
+        directory.setLastModified(directory.getLastModified() - 5000);
+        index = Index.load(directories);
+        assertNull(index.lookup(3));
+        assertEquals(100, index.lookup(1).size);
+    }
+}
@@ -0,0 +1,81 @@
+/**
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.prerelease.core;
+
+import net.oneandone.sushi.fs.World;
+import net.oneandone.sushi.fs.file.FileNode;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class JournalTest {
+    @Test
+    public void checkpoint() throws IOException {
+        FileNode file;
+        Journal journal;
+        String first;
+        String second;
+
+        file = new World().getTemp().createTempDirectory().join(".JOURNAL");
+        journal = new Journal(file);
+        first = journal.begin(Journal.CREATE, 1, "");
+        journal.commit(first);
+        second = journal.begin(Journal.CREATE, 2, "");
+        assertEquals(1, journal.pending().size());
+        assertEquals(second, journal.pending().get(0).id);
+        journal.step(second, "half");
+        journal.commit(second);
+        assertTrue(journal.pending().isEmpty());
+        // lines before the checkpoint are not parsed again
+        file.writeString(file.readString().replace(first + " COMMIT", first + " BROKEN"));
+        first = journal.begin(Journal.CREATE, 3, "");
+        assertEquals(first, journal.pending().get(0).id);
+        assertEquals(1, journal.pending().size());
+        assertTrue(journal.operations().get(0).isPending());
+        // incomplete line
+        file.writeString(file.readString() + "123 " + first);
+        assertEquals(1, journal.pending().size());
+    }
+
+    @Test
+    public void rotate() throws IOException {
+        FileNode file;
+        Journal journal;
+        String pending;
+        String id;
+
+        file = new World().getTemp().createTempDirectory().join(".JOURNAL");
+        journal = new Journal(file);
+        pending = journal.begin(Journal.SWAP, 1, "0 1");
+        while (!journal.isFull()) {
+            id = journal.begin(Journal.CREATE, 2, "");
+            journal.commit(id);
+        }
+        journal.rotateOpt();
+        assertTrue(journal.isFull());
+        journal.commit(pending);
+        journal.rotateOpt();
+        assertFalse(journal.isFull());
+        assertTrue(journal.pending().isEmpty());
+        pending = journal.begin(Journal.CREATE, 3, "");
+        assertEquals(pending, journal.pending().get(0).id);
+        assertEquals(Journal.Event.COMMIT, journal.operations().get(0).outcome);
+    }
+}
@@ -0,0 +1,91 @@
+/**
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.prerelease.core;
+
+import net.oneandone.sushi.fs.World;
+import net.oneandone.sushi.fs.file.FileNode;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MoverTest {
+    @Test
+    public void copy() throws IOException {
+        FileNode tmp;
+        FileNode src;
+        FileNode dest;
+
+        tmp = new World().getTemp().createTempDirectory();
+        src = tmp.join("src");
+        src.join("a", "b").mkdirs();
+        src.join("a", "b", "file").writeString("abc");
+        src.join("empty").mkdirs();
+        for (int i = 0; i < 10; i++) {
+            src.join("a", i + ".txt").writeString(Integer.toString(i));
+        }
+        src.join("a", "run.sh").writeString("#!/bin/sh");
+        src.join("a", "run.sh").toPath().toFile().setExecutable(true);
+        Files.createSymbolicLink(src.join("link").toPath(), src.join("a", "b", "file").toPath().getFileName());
+        dest = tmp.join("1");
+
+        assertEquals(3 + 10 + 9, new Mover(Throttle.NONE, 3).copy(src, dest));
+        assertEquals("abc", dest.join("a", "b", "file").readString());
+        assertEquals("7", dest.join("a", "7.txt").readString());
+        assertTrue(dest.join("empty").isDirectory());
+        assertTrue(dest.join("a", "run.sh").toPath().toFile().canExecute());
+        assertTrue(Files.isSymbolicLink(dest.join("link").toPath()));
+        assertFalse(Mover.temp(dest).exists());
+        // no manifest left
+        assertEquals(2, tmp.list().size());
+    }
+
+    @Test
+    public void resume() throws IOException {
+        FileNode tmp;
+        FileNode src;
+        FileNode dest;
+        FileNode temp;
+
+        tmp = new World().getTemp().createTempDirectory();
+        src = tmp.join("src");
+        src.mkdirs();
+        src.join("done").writeString("abc");
+        src.join("partial").writeString("defgh");
+        src.join("damaged").writeString("xyz");
+        dest = tmp.join("2");
+        temp = Mover.temp(dest);
+        // interrupted copy: "done" and "damaged" are listed in the manifest, "partial" is not; "damaged" changed afterwards
+        temp.mkdirs();
+        temp.join("done").writeString("abc");
+        temp.join("partial").writeString("de");
+        temp.join("damaged").writeString("xxx");
+        tmp.join("2" + Mover.SUFFIX + ".MANIFEST").writeString(Long.toHexString(Mover.crc(src.join("done").toPath())) + " 3 done\n"
+                + Long.toHexString(Mover.crc(src.join("damaged").toPath())) + " 3 damaged\n");
+        assertEquals(2, Mover.revision(temp));
+
+        assertEquals(5 + 3, new Mover(Throttle.NONE, 1).copy(src, dest));
+        assertEquals("abc", dest.join("done").readString());
+        assertEquals("defgh", dest.join("partial").readString());
+        assertEquals("xyz", dest.join("damaged").readString());
+        assertFalse(temp.exists());
+        assertFalse(tmp.join("2" + Mover.SUFFIX + ".MANIFEST").exists());
+    }
+}
@@ -0,0 +1,156 @@
+/**
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.prerelease.core;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import net.oneandone.sushi.fs.World;
+import net.oneandone.sushi.fs.file.FileNode;
+import org.apache.maven.plugin.logging.Log;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PeersTest {
+    private static final World WORLD = new World();
+    private static final Log LOG = new SystemStreamLog();
+
+    @Test
+    public void directory() throws Exception {
+        FileNode tmp;
+        FileNode peer;
+        Peers peers;
+        Target target;
+
+        tmp = WORLD.getTemp().createTempDirectory();
+        peer = tmp.join("peer");
+        prerelease(peer, 5, "1.0");
+        prerelease(peer, 6, "0.9");
+        peers = new Peers(Collections.singletonList(peer), Collections.<String>emptyList(), 2);
+        try (Archive archive = Archive.open(directories(tmp), 1, LOG)) {
+            // no such revision, other plugin version
+            assertNull(peers.fetchOpt(archive, descriptor(7), null, LOG));
+            assertNull(peers.fetchOpt(archive, descriptor(6), null, LOG));
+            target = peers.fetchOpt(archive, descriptor(5), null, LOG);
+            assertEquals("jar 5", target.join("artifacts", "a.jar").readString());
+            assertEquals(Arrays.asList(5L), list(archive));
+        }
+    }
+
+    @Test
+    public void corrupted() throws Exception {
+        FileNode tmp;
+        FileNode peer;
+        Peers peers;
+
+        tmp = WORLD.getTemp().createTempDirectory();
+        peer = tmp.join("peer");
+        prerelease(peer, 5, "1.0").join("artifacts", "a.jar").writeString("jaR 5");
+        peers = new Peers(Collections.singletonList(peer), Collections.<String>emptyList(), 2);
+        try (Archive archive = Archive.open(directories(tmp), 1, LOG)) {
+            assertNull(peers.fetchOpt(archive, descriptor(5), null, LOG));
+            assertTrue(list(archive).isEmpty());
+        }
+    }
+
+    @Test
+    public void http() throws Exception {
+        final FileNode tmp;
+        FileNode src;
+        HttpServer server;
+        Peers peers;
+        Target target;
+
+        tmp = WORLD.getTemp().createTempDirectory();
+        src = prerelease(tmp.join("peer"), 5, "1.0");
+        tmp.join("served", "g", "a").mkdirs();
+        Backend.CONTAINER.copy(Backend.DIRECTORY, src, tmp.join("served", "g", "a", "5.zip"), Throttle.NONE);
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                FileNode file;
+                byte[] bytes;
+
+                file = tmp.join("served").join(exchange.getRequestURI().getPath().substring("/prereleases/".length()));
+                if (file.isFile()) {
+                    bytes = file.readBytes();
+                    exchange.sendResponseHeaders(200, bytes.length);
+                    try (OutputStream dest = exchange.getResponseBody()) {
+                        dest.write(bytes);
+                    }
+                } else {
+                    exchange.sendResponseHeaders(404, -1);
+                }
+                exchange.close();
+            }
+        });
+        server.start();
+        try {
+            peers = Peers.create(WORLD, Arrays.asList("http://localhost:" + server.getAddress().getPort() + "/prereleases"), 2);
+            try (Archive archive = Archive.open(directories(tmp), 1, LOG)) {
+                assertNull(peers.fetchOpt(archive, descriptor(6), null, LOG));
+                target = peers.fetchOpt(archive, descriptor(5), null, LOG);
+                assertEquals("jar 5", target.join("artifacts", "a.jar").readString());
+                assertEquals(Arrays.asList(5L), list(archive));
+            }
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    private static List<FileNode> directories(FileNode tmp) {
+        return Collections.singletonList(tmp.join("local", "g", "a"));
+    }
+
+    private static List<Long> list(Archive archive) throws IOException {
+        return new ArrayList<>(archive.list().keySet());
+    }
+
+    private static Descriptor descriptor(long revision) {
+        return new Descriptor("1.0", revision, "https://svn/g/a/trunk", "https://svn/g/a/tags/a-1.0." + revision,
+                new Project("g", "a", "1.0." + revision), "", false, "1.0-SNAPSHOT", "1.1-SNAPSHOT",
+                new HashMap<String, String>(), null);
+    }
+
+    /** @return prerelease directory in the peer storage */
+    private static FileNode prerelease(FileNode storage, long revision, String plugin) throws IOException {
+        FileNode result;
+
+        result = storage.join("g", "a", Long.toString(revision));
+        result.join("artifacts").mkdirs();
+        result.join("artifacts", "a.jar").writeString("jar " + revision);
+        result.join("tags", "a-1.0." + revision).mkdirs();
+        result.join("tags", "a-1.0." + revision, "pom.xml").writeString("<project/>");
+        result.join(Descriptor.FILE).writeLines(Descriptor.PRERELEASE + "=" + plugin,
+                Descriptor.SVN_ORIG + "=https://svn/g/a/trunk");
+        new Checksums(1).record(result);
+        return result;
+    }
+}
@@ -0,0 +1,77 @@
+/**
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.prerelease.core;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+public class PlacementTest {
+    private static final long NOW = 1000000;
+
+    @Test
+    public void idle() {
+        Placement placement;
+
+        placement = new Placement(new long[] { 100, 1000 }, 0);
+        check(placement, "");
+        // newest stays in the first storage
+        check(placement, "", entry(1, 0, 10, 0));
+        check(placement, "2: storage 1 -> 3, 3: storage 1 -> 2",
+                entry(1, 0, 10, NOW), entry(2, 0, 10, NOW - 1000), entry(3, 0, 10, NOW - 100), entry(4, 0, 10, 0));
+        // directly to the last storage, and back up
+        check(placement, "1: storage 1 -> 3, 2: storage 3 -> 1", entry(1, 0, 10, 0), entry(2, 2, 10, NOW - 99),
+                entry(3, 1, 10, NOW - 500), entry(4, 0, 10, NOW));
+        // not beyond the last storage
+        check(placement, "1: storage 1 -> 2", 2, entry(1, 0, 10, 0), entry(2, 0, 10, 0));
+    }
+
+    @Test
+    public void large() {
+        Placement placement;
+
+        placement = new Placement(new long[] { 100 }, 50);
+        check(placement, "2: storage 1 -> 2", entry(1, 0, 50, NOW), entry(2, 0, 51, NOW), entry(3, 0, 100, NOW));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void descending() {
+        new Placement(new long[] { 100, 10 }, 0);
+    }
+
+    private static Index.Entry entry(long revision, int level, long size, long accessed) {
+        return new Index.Entry(revision, level, Index.State.READY, size, accessed);
+    }
+
+    private static void check(Placement placement, String expected, Index.Entry ... prereleases) {
+        check(placement, expected, 3, prereleases);
+    }
+
+    private static void check(Placement placement, String expected, int levels, Index.Entry ... prereleases) {
+        StringBuilder actual;
+
+        actual = new StringBuilder();
+        for (Placement.Move move : placement.plan(Arrays.asList(prereleases), levels, NOW)) {
+            if (actual.length() > 0) {
+                actual.append(", ");
+            }
+            actual.append(move);
+        }
+        assertEquals(expected, actual.toString());
+    }
+}
@@ -0,0 +1,64 @@
+/**
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.prerelease.core;
+
+import net.oneandone.sushi.util.Separator;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class RetentionTest {
+    private static final long NOW = 1000000;
+
+    @Test
+    public void keep() {
+        check(Retention.keep(1), "");
+        check(Retention.keep(1), "", entry(1, 0, 10, 5));
+        check(Retention.keep(2), "1", entry(1, 0, 10, 5), entry(2, 0, 10, 6), entry(3, 0, 10, 7));
+        // least recently used first, newest revision is never removed
+        check(Retention.keep(1), "2 1", entry(1, 0, 10, 7), entry(2, 0, 10, 5), entry(3, 0, 10, 1));
+        check(Retention.keep(0), "", entry(1, 0, 10, 7), entry(2, 0, 10, 5));
+    }
+
+    @Test
+    public void age() {
+        check(new Retention(0, 100, 0, 0), "1", entry(1, 0, 10, NOW - 101), entry(2, 0, 10, NOW - 100), entry(3, 0, 10, NOW - 500));
+    }
+
+    @Test
+    public void quota() {
+        check(new Retention(0, 0, 25, 0), "2", entry(1, 0, 10, 7), entry(2, 0, 10, 5), entry(3, 0, 10, 6));
+        check(new Retention(0, 0, 0, 15), "1", entry(1, 0, 10, 7), entry(2, 1, 10, 5), entry(3, 0, 10, 6));
+    }
+
+    private static Index.Entry entry(long revision, int level, long size, long accessed) {
+        return new Index.Entry(revision, level, Index.State.READY, size, accessed);
+    }
+
+    private static void check(Retention retention, String expected, Index.Entry ... prereleases) {
+        List<String> revisions;
+
+        revisions = new ArrayList<>();
+        for (Index.Entry entry : retention.select(Arrays.asList(prereleases), 2, NOW)) {
+            revisions.add(Long.toString(entry.revision));
+        }
+        assertEquals(expected, Separator.SPACE.join(revisions));
+    }
+}
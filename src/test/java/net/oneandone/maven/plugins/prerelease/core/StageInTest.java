@@ -0,0 +1,49 @@
+/**
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.prerelease.core;
+
+import net.oneandone.sushi.fs.World;
+import net.oneandone.sushi.fs.file.FileNode;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class StageInTest {
+    @Test
+    public void container() throws IOException {
+        FileNode tmp;
+        FileNode src;
+        FileNode zip;
+        FileNode dest;
+
+        tmp = new World().getTemp().createTempDirectory();
+        src = tmp.join("src");
+        src.join("a").mkdirs();
+        src.join("a", "file").writeString("abc");
+        src.join("b").writeString("de");
+        zip = tmp.join("1.zip");
+        Backend.CONTAINER.copy(Backend.DIRECTORY, src, zip, Throttle.NONE);
+        dest = tmp.join("dest");
+
+        assertEquals(5, StageIn.copy(Backend.CONTAINER, zip, dest, 2));
+        assertEquals("abc", dest.join("a", "file").readString());
+        assertEquals("de", dest.join("b").readString());
+        assertFalse(Mover.temp(dest).exists());
+    }
+}
@@ -0,0 +1,53 @@
+/**
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.prerelease.core;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ThrottleTest {
+    @Test
+    public void bytes() throws IOException {
+        Throttle throttle;
+        long started;
+
+        throttle = new Throttle(1024 * 1024, 0);
+        started = System.currentTimeMillis();
+        for (int i = 0; i < 5; i++) {
+            throttle.bytes(256 * 1024);
+        }
+        // 1.25 seconds worth of bytes; the last chunk is reserved, not transferred
+        assertTrue(System.currentTimeMillis() - started >= 900);
+        assertEquals("1 MB/s", throttle.toString());
+    }
+
+    @Test
+    public void unlimited() throws IOException {
+        long started;
+
+        started = System.currentTimeMillis();
+        for (int i = 0; i < 1000; i++) {
+            Throttle.NONE.bytes(Integer.MAX_VALUE);
+            Throttle.NONE.file();
+        }
+        assertTrue(System.currentTimeMillis() - started < 1000);
+        assertEquals("unlimited", Throttle.NONE.toString());
+    }
+}
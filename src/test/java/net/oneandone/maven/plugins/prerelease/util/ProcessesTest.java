@@ -0,0 +1,51 @@
+/**
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.prerelease.util;
+
+import net.oneandone.maven.plugins.prerelease.core.Archive;
+import net.oneandone.sushi.fs.World;
+import net.oneandone.sushi.fs.file.FileNode;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ProcessesTest {
+    @Test
+    public void proc() throws IOException {
+        World world;
+        FileNode proc;
+
+        world = new World();
+        proc = world.getTemp().createTempDirectory();
+        proc.join("stat").writeLines("cpu  1 2 3", "btime 1000");
+        proc.join("42").mkdir();
+        proc.join("42", "stat").writeString("42 (java (x) y) S 1 42 42 0 -1 4194304 82 0 0 0 0 0 0 0 20 0 1 0 250 2703360 289");
+        assertEquals(Long.valueOf(1002500), new Processes.Proc(proc).started(42));
+        assertNull(new Processes.Proc(proc).started(43));
+    }
+
+    @Test
+    public void self() throws IOException {
+        Long started;
+
+        started = Processes.create(new World()).started(Archive.pid());
+        assertTrue(started != null && started <= System.currentTimeMillis());
+    }
+}